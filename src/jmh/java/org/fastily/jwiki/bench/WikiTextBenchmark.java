@@ -0,0 +1,104 @@
+package org.fastily.jwiki.bench;
+
+import org.fastily.jwiki.core.WParser;
+import org.fastily.jwiki.core.WParser.WikiText;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.xml.stream.XMLStreamException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks building and rendering WikiText objects for large pages. Run with {@code gradle jmh}.
+ *
+ * @author Fastily
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WikiTextBenchmark {
+    /**
+     * The number of sections on the generated page.
+     */
+    @Param({ "100", "1000" })
+    public int sections;
+
+    /**
+     * The wikitext of the generated page.
+     */
+    private String text;
+
+    /**
+     * A parse tree of the generated page, where entities split the text into many small Characters events.
+     */
+    private String tree;
+
+    /**
+     * The generated page, parsed.
+     */
+    private WikiText parsed;
+
+    /**
+     * Generates a page with an infobox and {@link #sections} sections of prose, links, citations and entities.
+     */
+    @Setup
+    public void setUp() {
+        StringBuilder t = new StringBuilder("{{Infobox settlement|name=Example|population=1234|image=<!-- none -->}}\n");
+        StringBuilder x = new StringBuilder("<root><template><title>Infobox settlement</title><part><name>name</name><equals>=</equals>"
+                + "<value>Example</value></part></template>\n");
+
+        for (int i = 0; i < sections; i++) {
+            String prose = String.format("== Section %d ==\n'''Example''' is a [[town]] &amp; [[Municipality|municipality]]. ", i).repeat(4);
+            t.append(prose.replace("&amp;", "&")).append("{{Cite web|url=https://example.org/").append(i).append("|title=Source}}\n");
+            x.append(prose).append("<template><title>Cite web</title><part><name>url</name><equals>=</equals><value>https://example.org/").append(i)
+                    .append("</value></part><part><name>title</name><equals>=</equals><value>Source</value></part></template>\n");
+        }
+
+        text = t.toString();
+        tree = x.append("</root>").toString();
+        parsed = WParser.parseLocal(text);
+    }
+
+    /**
+     * Parses the page locally.
+     *
+     * @return The parsed page
+     */
+    @Benchmark
+    public WikiText parseLocal() {
+        return WParser.parseLocal(text);
+    }
+
+    /**
+     * Parses the page's parse tree, which appends many small Strings to each WikiText.
+     *
+     * @return The parsed page
+     * @throws XMLStreamException On parse error.
+     */
+    @Benchmark
+    public WikiText parseTree() throws XMLStreamException {
+        return WParser.parseTree(tree);
+    }
+
+    /**
+     * Renders the parsed page back into wikitext.
+     *
+     * @return The wikitext of the page
+     */
+    @Benchmark
+    public String render() {
+        return parsed.toString();
+    }
+}
@@ -0,0 +1,158 @@
+package org.fastily.jwiki.core;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of requests in flight to a single host, and adapts the limit to the load of the server with an AIMD (additive increase,
+ * multiplicative decrease) policy. Each successful response raises the limit by about one request per round trip, while timeouts, server errors,
+ * {@code maxlag} and {@code ratelimited} errors halve it. Latency is not used as a signal, since the modules of the API differ too much in cost for
+ * one host to have a meaningful baseline. Waiting requests are queued and admitted by the {@link RequestScheduler}.
+ *
+ * @author Fastily
+ */
+public class AdaptiveLimiter {
+    /**
+     * The factor to multiply the limit by when the server reports an error or overload.
+     */
+    private static final double BACKOFF = 0.5;
+
+    /**
+     * The current limit. Fractional so that additive increases of less than one request accumulate.
+     */
+    private double limit;
+
+    /**
+     * The maximum limit.
+     */
+    private int maxLimit;
+
+    /**
+     * The number of requests in flight.
+     */
+    private int inFlight = 0;
+
+    /**
+     * Guards the state of this limiter.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Constructor, creates a new AdaptiveLimiter.
+     *
+     * @param initial The initial limit.
+     * @param maxLimit The maximum limit.
+     */
+    public AdaptiveLimiter(int initial, int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.max(1, Math.min(initial, this.maxLimit));
+    }
+
+    /**
+     * Reserves a slot for a request if fewer requests than the limit are in flight. If successful, this must be followed by a call to
+     * {@link #release(boolean)}.
+     *
+     * @return True if a slot was reserved.
+     */
+    public boolean tryAcquire() {
+        lock.lock();
+        try {
+            if (inFlight >= (int) limit)
+                return false;
+
+            inFlight++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a slot reserved with {@link #tryAcquire()}, and adjusts the limit according to the outcome of the request.
+     *
+     * @param overloaded True if the request timed out, or failed with a server error, {@code maxlag}, or {@code ratelimited}.
+     * @see #release()
+     */
+    public void release(boolean overloaded) {
+        lock.lock();
+        try {
+            inFlight--;
+
+            if (overloaded)
+                limit = Math.max(1, limit * BACKOFF);
+            else
+                limit = Math.min(maxLimit, limit + 1 / limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a slot reserved with {@link #tryAcquire()} without adjusting the limit, for requests whose outcome says nothing about
+     * the load of the server, e.g. because they were cancelled or failed before reaching it.
+     */
+    public void release() {
+        lock.lock();
+        try {
+            inFlight--;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the maximum limit. The current limit is lowered if it exceeds the new maximum.
+     *
+     * @param maxLimit The new maximum limit.
+     */
+    public void setMaxLimit(int maxLimit) {
+        lock.lock();
+        try {
+            this.maxLimit = Math.max(1, maxLimit);
+            limit = Math.min(limit, this.maxLimit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the current limit.
+     *
+     * @return The maximum number of requests currently allowed in flight.
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the maximum limit.
+     *
+     * @return The maximum limit.
+     */
+    public int getMaxLimit() {
+        lock.lock();
+        try {
+            return maxLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of requests in flight.
+     *
+     * @return The number of requests in flight.
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
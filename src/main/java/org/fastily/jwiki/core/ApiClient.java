@@ -1,6 +1,8 @@
 package org.fastily.jwiki.core;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import okhttp3.Call;
 import okhttp3.Cookie;
 import okhttp3.CookieJar;
 import okhttp3.FormBody;
@@ -11,15 +13,29 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
 import org.fastily.jwiki.dwrap.TokenizedResponse;
+import org.fastily.jwiki.metrics.ConnectionTimer;
+import org.fastily.jwiki.metrics.JfrEvents;
+import org.fastily.jwiki.metrics.MetricsListener;
+import org.fastily.jwiki.metrics.RequestEvent;
+import org.fastily.jwiki.util.GSONP;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.Proxy;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 /**
@@ -34,6 +50,11 @@ public class ApiClient {
      */
     private static final MediaType octetstream = MediaType.parse("application/octet-stream");
 
+    /**
+     * The longest URL which is safe to send with a {@code GET}. Longer URLs may be rejected by the Wikimedia servers and proxies in between.
+     */
+    private static final int MAX_URL_LENGTH = 8000;
+
     /**
      * HTTP client used for all requests.
      */
@@ -46,6 +67,21 @@ public class ApiClient {
 
     private final JwikiCookieJar cookieJar;
 
+    /**
+     * Limits the number of requests in flight to this ApiClient's host.
+     */
+    protected final AdaptiveLimiter limiter;
+
+    /**
+     * The parameters which name the modules of a {@code query} request.
+     */
+    private static final List<String> QUERY_MODULES = List.of("list", "prop", "meta", "generator");
+
+    /**
+     * The CallSlot which requests made by the current thread are registered with, so that they can be cancelled from other threads. Null if none.
+     */
+    static final ThreadLocal<CallSlot> currentSlot = new ThreadLocal<>();
+
     /**
      * Constructor, create a new ApiClient for a Wiki instance.
      *
@@ -56,11 +92,13 @@ public class ApiClient {
         this.wiki = wiki;
 
         this.cookieJar = new JwikiCookieJar();
-        OkHttpClient.Builder builder = new OkHttpClient.Builder().cookieJar(this.cookieJar).readTimeout(2, TimeUnit.MINUTES);
+        OkHttpClient.Builder builder = new OkHttpClient.Builder().cookieJar(this.cookieJar).readTimeout(2, TimeUnit.MINUTES)
+                .eventListenerFactory(ConnectionTimer.factory(call -> call.request().tag(MetricsListener.class)));
         if (proxy != null)
             builder.proxy(proxy);
 
         this.client = builder.build();
+        this.limiter = new AdaptiveLimiter(Conf.INITIAL_CONCURRENCY, wiki.conf.maxConcurrency);
     }
 
     /**
@@ -73,9 +111,10 @@ public class ApiClient {
         this.wiki = to;
         this.client = from.apiclient.client;
         this.cookieJar = from.apiclient.cookieJar;
+        this.limiter = new AdaptiveLimiter(Conf.INITIAL_CONCURRENCY, to.conf.maxConcurrency);
 
-        Map<String, String> l = new HashMap<>();
-        this.cookieJar.getCj().get(from.conf.hostname).forEach((k, v) -> {
+        Map<String, String> l = new ConcurrentHashMap<>();
+        this.cookieJar.getCj().getOrDefault(from.conf.hostname, Map.of()).forEach((k, v) -> {
             if (k.contains("centralauth"))
                 l.put(k, v);
         });
@@ -83,6 +122,15 @@ public class ApiClient {
         this.cookieJar.getCj().put(this.wiki.conf.hostname, l);
     }
 
+    /**
+     * Gets the limiter which controls the number of requests in flight to this ApiClient's host.
+     *
+     * @return The AdaptiveLimiter of this ApiClient.
+     */
+    public AdaptiveLimiter getLimiter() {
+        return limiter;
+    }
+
     /**
      * Create a basic Request template which serves as the basis for any Request objects.
      *
@@ -96,6 +144,217 @@ public class ApiClient {
         return new Request.Builder().url(hb.build()).header("User-Agent", this.wiki.conf.userAgent);
     }
 
+    /**
+     * Executes a Request once the {@link RequestScheduler} of this ApiClient's Wiki and the {@link AdaptiveLimiter} of this ApiClient allow it, and reports
+     * its outcome to the limiter. The slot is held until the body of the Response is closed, so that the limit bounds the requests actually being served,
+     * and the time on the network includes reading the body. The time spent waiting and on the network is attached to the Request sent as a
+     * {@link Timing} tag, and the Wiki's MetricsListener as a MetricsListener tag for {@link ConnectionTimer}.
+     *
+     * @param r The Request to execute
+     * @return The Response to {@code r}. Its body must be closed.
+     * @throws IOException Network error
+     */
+    private Response execute(Request r) throws IOException {
+        long queued = System.nanoTime();
+        wiki.scheduler.acquire(wiki, limiter);
+
+        Timing t = new Timing();
+        t.start = System.nanoTime();
+        Call call = null;
+        try {
+            t.queueWait = t.start - queued;
+            t.bytesOut = r.url().toString().length() + (r.body() != null ? Math.max(0, r.body().contentLength()) : 0);
+
+            call = this.client.newCall(r.newBuilder().tag(Timing.class, t).tag(MetricsListener.class, wiki.listener).build());
+            t.slot = currentSlot.get();
+            if (t.slot != null)
+                t.slot.set(call);
+
+            t.event.begin();
+            Response response = call.execute();
+            t.overloaded = isOverloaded(response);
+
+            ResponseBody body = response.body();
+            if (body == null) {
+                finish(t);
+                return response;
+            }
+
+            Call c = call;
+            BufferedSource source = Okio.buffer(new ForwardingSource(body.source()) {
+                @Override
+                public long read(Buffer sink, long byteCount) throws IOException {
+                    try {
+                        return super.read(sink, byteCount);
+                    } catch (IOException e) {
+                        if (!c.isCanceled() && isTimeout(e))
+                            t.overloaded = true;
+
+                        throw e;
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        finish(t);
+                    }
+                }
+            });
+            return response.newBuilder().body(ResponseBody.create(source, body.contentType(), body.contentLength())).build();
+        } catch (Throwable e) {
+            // a cancelled call or a client-side error (e.g. DNS, refused connection) is not a sign of overload, but a timeout is
+            if (e instanceof IOException && call != null && !call.isCanceled() && isTimeout((IOException) e))
+                t.overloaded = true;
+
+            finish(t);
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the slot of a request once its Response was read, or it failed. Does nothing if the slot was already released.
+     *
+     * @param t The Timing of the request.
+     */
+    private void finish(Timing t) {
+        if (!t.finished.compareAndSet(false, true))
+            return;
+
+        if (t.slot != null)
+            t.slot.set(null);
+
+        t.event.end();
+        t.networkTime = System.nanoTime() - t.start;
+        if (t.overloaded != null)
+            wiki.scheduler.release(limiter, t.overloaded);
+        else
+            wiki.scheduler.release(limiter);
+    }
+
+    /**
+     * Reads and parses a Response, and reports its measurements to the {@link MetricsListener} of this ApiClient's Wiki, if any,
+     * and to Java Flight Recorder.
+     *
+     * @param response The Response to read
+     * @param params The URL parameters of the request.
+     * @param form The form parameters of the request, or an empty Map.
+     * @return A TokenizedResponse wrapping {@code response}
+     * @throws IOException Network error
+     */
+    private TokenizedResponse tokenize(Response response, Map<String, String> params, Map<String, String> form) throws IOException {
+        TokenizedResponse tr = new TokenizedResponse(response);
+        report(response, params, form, tr.getBodySize(), tr.getParseTime(), tr.getJsonBody());
+
+        return tr;
+    }
+
+    /**
+     * Reports the measurements of a request to the {@link MetricsListener} of this ApiClient's Wiki, if any, and commits its
+     * {@link JfrEvents.Request} if Java Flight Recorder is recording it. Errors thrown by the listener are logged and ignored.
+     *
+     * @param response The Response to the request
+     * @param params The URL parameters of the request.
+     * @param form The form parameters of the request, or an empty Map.
+     * @param bytesIn The size of the response body, in bytes, or -1 if unknown.
+     * @param parseTime The time taken to parse the response body, in nanoseconds.
+     * @param json The parsed response, or null.
+     */
+    private void report(Response response, Map<String, String> params, Map<String, String> form, long bytesIn, long parseTime, JsonElement json) {
+        Timing t = response.request().tag(Timing.class);
+        if (t == null || wiki.listener == null && !t.event.shouldCommit())
+            return;
+
+        String action = params.getOrDefault("action", form.get("action"));
+        StringBuilder module = new StringBuilder();
+        if ("query".equals(action))
+            for (String k : QUERY_MODULES) {
+                String v = params.getOrDefault(k, form.get(k));
+                if (v != null)
+                    module.append(module.length() == 0 ? "" : "|").append(v);
+            }
+
+        if (t.event.shouldCommit()) {
+            t.event.host = wiki.conf.hostname;
+            t.event.action = action;
+            t.event.module = module.length() == 0 ? null : module.toString();
+            t.event.status = response.code();
+            t.event.bytesOut = t.bytesOut;
+            t.event.bytesIn = bytesIn;
+            t.event.queueWait = t.queueWait;
+            t.event.commit();
+        }
+
+        if (wiki.listener == null)
+            return;
+
+        try {
+            wiki.listener.onRequest(new RequestEvent(wiki.conf.hostname, action, module.length() == 0 ? null : module.toString(), response.code(),
+                    t.bytesOut, bytesIn, t.queueWait, t.networkTime, parseTime, countItems(json)));
+        } catch (RuntimeException e) {
+            WikiLogger.warn(wiki, "MetricsListener threw an exception", e);
+        }
+    }
+
+    /**
+     * Counts the items in a {@code query} response, i.e. the entries of each list and the pages of each {@code prop} query.
+     *
+     * @param e The parsed response
+     * @return The number of items in {@code e}, or 0 if it is not a {@code query} response.
+     */
+    private static int countItems(JsonElement e) {
+        if (e == null || !e.isJsonObject() || !e.getAsJsonObject().has("query") || !e.getAsJsonObject().get("query").isJsonObject())
+            return 0;
+
+        int n = 0;
+        for (Map.Entry<String, JsonElement> x : e.getAsJsonObject().getAsJsonObject("query").entrySet())
+            if (x.getValue().isJsonArray() && !x.getKey().equals("normalized") && !x.getKey().equals("redirects"))
+                n += x.getValue().getAsJsonArray().size();
+            else if (x.getValue().isJsonObject() && x.getKey().equals("pages"))
+                n += x.getValue().getAsJsonObject().size();
+
+        return n;
+    }
+
+    /**
+     * Determines if a Response indicates that the server is overloaded. MediaWiki names the error code of failed API requests in the
+     * {@code MediaWiki-API-Error} header, so this does not need to read the body.
+     *
+     * @param response The Response to check
+     * @return True if {@code response} is a server error, or a {@code maxlag} or {@code ratelimited} error.
+     */
+    private static boolean isOverloaded(Response response) {
+        String code = response.header("MediaWiki-API-Error");
+        return response.code() >= 500 || response.code() == 429 || "maxlag".equals(code) || "ratelimited".equals(code);
+    }
+
+    /**
+     * Determines if an IOException thrown by a Call means that the server did not respond in time. OkHttp reports read and connect timeouts with a
+     * SocketTimeoutException, and call timeouts with an InterruptedIOException whose message is {@code timeout}.
+     *
+     * @param e The IOException to check
+     * @return True if {@code e} is a timeout.
+     */
+    private static boolean isTimeout(IOException e) {
+        return e instanceof SocketTimeoutException || e instanceof InterruptedIOException && "timeout".equals(e.getMessage());
+    }
+
+    /**
+     * Determines if a {@code GET} with the specified parameters would produce a URL which is short enough to be sent safely.
+     *
+     * @param params Any URL parameters (not URL-encoded).
+     * @return True if the parameters may be sent with a {@code GET}, or false if they should be sent with a {@code POST}.
+     */
+    protected boolean fitsInURL(Map<String, String> params) {
+        HttpUrl.Builder hb = this.wiki.conf.baseURL.newBuilder();
+        params.forEach(hb::addQueryParameter);
+
+        // leave room for the token and assertuser parameters
+        return hb.build().toString().length() + 200 < MAX_URL_LENGTH;
+    }
+
     /**
      * Basic {@code GET} to the MediaWiki api.
      *
@@ -104,11 +363,11 @@ public class ApiClient {
      * @throws IOException Network error
      */
     protected Response basicGET(Map<String, String> params) throws IOException {
-        return this.client.newCall(startReq(params).get().build()).execute();
+        return execute(startReq(params).get().build());
     }
 
     /**
-     * Basic {@code GET} to the MediaWiki API with a retry if the login token has expired.
+     * Basic {@code GET} to the MediaWiki API with a retry if the login token or a restored session has expired.
      *
      * @param params Any URL parameters (not URL-encoded).
      * @param tokenKey The key to put in the {@code param} data that maps to the token. If null, no token is inserted.
@@ -116,18 +375,26 @@ public class ApiClient {
      * @throws IOException Network error
      */
     protected TokenizedResponse basicTokenizedGET(Map<String, String> params, String tokenKey) throws IOException {
+        wiki.awaitBootstrap();
+
         Map<String, String> copiedParams = params instanceof HashMap ? params : new HashMap<>(params);
         if (tokenKey != null)
             copiedParams.put(tokenKey, wiki.conf.token);
+        boolean asserted = assertSession(copiedParams);
+
+        TokenizedResponse response;
+        try {
+            response = tokenize(this.basicGET(copiedParams), copiedParams, Map.of());
+        } finally {
+            if (asserted)
+                copiedParams.remove("assertuser");
+        }
 
-        TokenizedResponse response = new TokenizedResponse(this.basicGET(copiedParams));
-
-        if (isBadToken(response) && this.wiki.username != null && this.wiki.password != null) {
-            this.wiki.internalLogin();
+        if (shouldRetry(response, asserted)) {
             if (tokenKey != null)
                 copiedParams.put(tokenKey, wiki.conf.token);
             // Only attempt once after refreshing login
-            return new TokenizedResponse(this.basicGET(copiedParams));
+            return tokenize(this.basicGET(copiedParams), copiedParams, Map.of());
         }
 
         return response;
@@ -145,11 +412,11 @@ public class ApiClient {
         FormBody.Builder fb = new FormBody.Builder();
         form.forEach(fb::add);
 
-        return this.client.newCall(startReq(params).post(fb.build()).build()).execute();
+        return execute(startReq(params).post(fb.build()).build());
     }
 
     /**
-     * Basic form-data {@code POST} to the MediaWiki API with a retry if the login token has expired.
+     * Basic form-data {@code POST} to the MediaWiki API with a retry if the login token or a restored session has expired.
      *
      * @param params Any URL parameters (not URL-encoded).
      * @param form The Key-Value form parameters to {@code POST}.
@@ -158,18 +425,26 @@ public class ApiClient {
      * @throws IOException Network error
      */
     protected TokenizedResponse basicTokenizedPOST(Map<String, String> params, Map<String, String> form, String tokenKey) throws IOException {
+        wiki.awaitBootstrap();
+
         Map<String, String> copiedForm = form instanceof HashMap ? form : new HashMap<>(form);
         if (tokenKey != null)
             copiedForm.put(tokenKey, wiki.conf.token);
+        boolean asserted = assertSession(copiedForm);
+
+        TokenizedResponse response;
+        try {
+            response = tokenize(this.basicPOST(params, copiedForm), params, copiedForm);
+        } finally {
+            if (asserted)
+                copiedForm.remove("assertuser");
+        }
 
-        TokenizedResponse response = new TokenizedResponse(this.basicPOST(params, copiedForm));
-
-        if (isBadToken(response) && this.wiki.username != null && this.wiki.password != null) {
-            this.wiki.internalLogin();
+        if (shouldRetry(response, asserted)) {
             if (tokenKey != null)
                 copiedForm.put(tokenKey, wiki.conf.token);
             // Only attempt once after refreshing login
-            return new TokenizedResponse(this.basicPOST(params, copiedForm));
+            return tokenize(this.basicPOST(params, copiedForm), params, copiedForm);
         }
 
         return response;
@@ -192,20 +467,76 @@ public class ApiClient {
 
         mpb.addFormDataPart("chunk", fn, RequestBody.create(chunk, octetstream));
 
-        Request r = startReq(params).post(mpb.build()).build();
-        return this.client.newCall(r).execute();
+        Response response = execute(startReq(params).post(mpb.build()).build());
+        ResponseBody body = response.body();
+        if (body == null) {
+            report(response, params, form, -1, 0, null);
+            return response;
+        }
+
+        // read the reply now, which releases the slot of the request and completes its Timing
+        byte[] b = body.bytes();
+        response = response.newBuilder().body(ResponseBody.create(b, body.contentType())).build();
+        report(response, params, form, b.length, 0, null);
+
+        return response;
     }
 
-    protected static boolean isBadToken(TokenizedResponse response) {
-        JsonObject json = response.getJsonBody().getAsJsonObject();
+    /**
+     * Adds an {@code assertuser} parameter to a request if this ApiClient's Wiki was restored from a session snapshot which has not been validated yet.
+     *
+     * @param params The request parameters to add the assertion to.
+     * @return True if the assertion was added.
+     */
+    private boolean assertSession(Map<String, String> params) {
+        if (!wiki.unverifiedSession || wiki.conf.uname == null)
+            return false;
 
-        if (json.has("error")) {
-            JsonObject error = json.getAsJsonObject("error");
-            String code = error.getAsJsonPrimitive("code").getAsString();
-            return "badtoken".equals(code);
-        }
+        params.put("assertuser", wiki.conf.uname);
+        return true;
+    }
+
+    /**
+     * Determines if a request should be retried because the login token or the restored session has expired. Logs in again (or refreshes the login status of
+     * anonymous Wiki objects with an expired session) before returning true.
+     *
+     * @param response The response to the request
+     * @param asserted True if the request was sent with an {@code assertuser} parameter.
+     * @return True if the request should be retried.
+     */
+    private boolean shouldRetry(TokenizedResponse response, boolean asserted) {
+        String code = getErrorCode(response);
+        boolean expiredSession = asserted && ("assertuserfailed".equals(code) || "assertnameduserfailed".equals(code));
+        if (asserted)
+            wiki.unverifiedSession = false;
+
+        if (this.wiki.username != null && this.wiki.password != null && (expiredSession || "badtoken".equals(code)))
+            this.wiki.internalLogin();
+        else if (expiredSession) {
+            WikiLogger.info(wiki, "Restored session has expired");
+            this.wiki.refreshLoginStatus();
+        } else
+            return false;
+
+        if (wiki.stats != null)
+            wiki.stats.relogins.increment();
+
+        return true;
+    }
+
+    /**
+     * Gets the error code of an API response.
+     *
+     * @param response The response to check
+     * @return The error code, or null if {@code response} is not an error.
+     */
+    private static String getErrorCode(TokenizedResponse response) {
+        JsonObject json = response.getJsonBody().getAsJsonObject();
+        return json.has("error") ? GSONP.getStr(json.getAsJsonObject("error"), "code") : null;
+    }
 
-        return false;
+    protected static boolean isBadToken(TokenizedResponse response) {
+        return "badtoken".equals(getErrorCode(response));
     }
 
     public JwikiCookieJar getCookieJar() {
@@ -213,12 +544,124 @@ public class ApiClient {
     }
 
     /**
-     * Basic CookieJar policy for use with jwiki.
+     * Holds the request in flight for a sequence of requests, such as the queries of a WQuery, so that it can be cancelled from another thread. Register
+     * a CallSlot with {@link ApiClient#currentSlot} to have the requests made by the current thread placed in it. A CallSlot may have a parent, which
+     * also holds its requests in flight and cancels it when cancelled, so that a task running several WQuery objects can be stopped as a whole.
+     */
+    static final class CallSlot {
+        /**
+         * The CallSlot which is cancelled along with this one, or null.
+         */
+        private final CallSlot parent;
+
+        /**
+         * The request in flight, or null.
+         */
+        private volatile Call call;
+
+        /**
+         * Flag indicating if this CallSlot was cancelled.
+         */
+        private volatile boolean cancelled = false;
+
+        /**
+         * Constructor, creates a CallSlot without a parent.
+         */
+        CallSlot() {
+            this(null);
+        }
+
+        /**
+         * Constructor, creates a CallSlot which is cancelled when {@code parent} is.
+         *
+         * @param parent The parent CallSlot. Optional param - set null to disable.
+         */
+        CallSlot(CallSlot parent) {
+            this.parent = parent;
+        }
+
+        /**
+         * Sets the request in flight, here and in the parent, if any. The request is cancelled immediately if this CallSlot was cancelled.
+         *
+         * @param call The request in flight, or null.
+         */
+        void set(Call call) {
+            this.call = call;
+            if (parent != null)
+                parent.set(call);
+
+            if (call != null && isCancelled())
+                call.cancel();
+        }
+
+        /**
+         * Cancels the request in flight, if any, and any request made afterwards.
+         */
+        void cancel() {
+            cancelled = true;
+
+            Call c = call;
+            if (c != null)
+                c.cancel();
+        }
+
+        /**
+         * Test if this CallSlot or its parent was cancelled.
+         *
+         * @return True if this CallSlot or its parent was cancelled.
+         */
+        boolean isCancelled() {
+            return cancelled || parent != null && parent.isCancelled();
+        }
+    }
+
+    /**
+     * The time a request spent waiting and on the network, its approximate size, its outcome, and its Java Flight Recorder event.
+     */
+    private static class Timing {
+        /**
+         * The Java Flight Recorder event of the request.
+         */
+        private final JfrEvents.Request event = new JfrEvents.Request();
+
+        /**
+         * Flag indicating if the slot of the request was released.
+         */
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        /**
+         * The time, in nanoseconds, the request was sent.
+         */
+        private long start;
+
+        /**
+         * The time, in nanoseconds, spent waiting to be sent and from sending the request to reading the last byte of the response.
+         */
+        private volatile long queueWait, networkTime;
+
+        /**
+         * True if the request was a sign of overload, false if it was not, or null if its outcome says nothing about the load of the server.
+         */
+        private volatile Boolean overloaded;
+
+        /**
+         * The CallSlot the request was registered with, or null.
+         */
+        private CallSlot slot;
+
+        /**
+         * The approximate size of the request, in bytes.
+         */
+        private long bytesOut;
+    }
+
+    /**
+     * Basic CookieJar policy for use with jwiki. Safe for concurrent use, since it is shared by every Wiki created with {@link Wiki#getWiki(String)}.
      *
      * @author Fastily
      */
     public static class JwikiCookieJar implements CookieJar {
-        private final Map<String, Map<String, String>> cj = new HashMap<>();
+        private final Map<String, Map<String, String>> cj = new ConcurrentHashMap<>();
 
         /**
          * Constructor, create a new JwikiCookieJar
@@ -234,7 +677,7 @@ public class ApiClient {
         public void saveFromResponse(HttpUrl url, List<Cookie> cookies) {
             String host = url.host();
 
-            Map<String, String> m = this.cj.computeIfAbsent(host, k -> new HashMap<>());
+            Map<String, String> m = this.cj.computeIfAbsent(host, k -> new ConcurrentHashMap<>());
             for (Cookie c : cookies)
                 m.put(c.name(), c.value());
         }
@@ -245,8 +688,9 @@ public class ApiClient {
         @Override
         public List<Cookie> loadForRequest(HttpUrl url) {
             String host = url.host();
-            if (this.cj.containsKey(host)) {
-                return this.cj.get(host).entrySet().stream()
+            Map<String, String> m = this.cj.get(host);
+            if (m != null) {
+                return m.entrySet().stream()
                         .map(e -> new Cookie.Builder().name(e.getKey()).value(e.getValue()).domain(host).build())
                         .collect(Collectors.toList());
             } else {
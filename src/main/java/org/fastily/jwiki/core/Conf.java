@@ -8,6 +8,11 @@ import okhttp3.HttpUrl;
  * @author Fastily
  */
 public class Conf {
+    /**
+     * The initial number of requests allowed in flight to a host. See {@link AdaptiveLimiter}.
+     */
+    protected static final int INITIAL_CONCURRENCY = 4;
+
     /**
      * The {@code User-Agent} header to use for HTTP requests.
      */
@@ -35,6 +40,16 @@ public class Conf {
      */
     protected int maxResultLimit = 500;
 
+    /**
+     * The maximum number of titles which may be passed to a single query. Raised to 500 for users with the {@code apihighlimits} right.
+     */
+    protected int maxGroupQuery = 50;
+
+    /**
+     * Flag indicating whether the logged in user has the {@code apihighlimits} right.
+     */
+    protected boolean highLimits = false;
+
     /**
      * User name (without namespace prefix), only set if user is logged in.
      */
@@ -45,6 +60,16 @@ public class Conf {
      */
     protected boolean prefixLogs = true;
 
+    /**
+     * Flag indicating whether queries should request the {@code formatversion=2} JSON format, which returns pages as arrays and flags as booleans.
+     */
+    protected boolean formatVersion2 = false;
+
+    /**
+     * The maximum number of requests allowed in flight to a host at once. The actual limit adapts to the load of the server.
+     */
+    protected int maxConcurrency = 16;
+
     /**
      * CSRF token. Used for actions that change Wiki content.
      */
@@ -57,6 +82,17 @@ public class Conf {
         retarget(HttpUrl.parse("https://en.wikipedia.org/w/api.php"));
     }
 
+    /**
+     * Sets the list result and group query limits according to whether the logged in user has the {@code apihighlimits} right.
+     *
+     * @param highLimits True if the logged in user has the {@code apihighlimits} right.
+     */
+    protected void setHighLimits(boolean highLimits) {
+        this.highLimits = highLimits;
+        maxResultLimit = highLimits ? 5000 : 500;
+        maxGroupQuery = highLimits ? 500 : 50;
+    }
+
     /**
      * Points this Conf to another endpoint.
      *
@@ -87,6 +123,14 @@ public class Conf {
         return maxResultLimit;
     }
 
+    public int getMaxGroupQuery() {
+        return maxGroupQuery;
+    }
+
+    public boolean hasHighLimits() {
+        return highLimits;
+    }
+
     public String getUname() {
         return uname;
     }
@@ -95,6 +139,14 @@ public class Conf {
         return prefixLogs;
     }
 
+    public boolean isFormatVersion2() {
+        return formatVersion2;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
     public String getToken() {
         return token;
     }
@@ -0,0 +1,278 @@
+package org.fastily.jwiki.core;
+
+import com.google.gson.JsonObject;
+import org.fastily.jwiki.util.GroupQueue;
+import org.fastily.jwiki.util.MultiMap;
+import org.fastily.jwiki.util.Tuple;
+import org.fastily.jwiki.util.Workers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Runs the same query against many wikis at once, such as the wikis returned by {@link Wiki#globalUsage(String)}. Each wiki is accessed via
+ * {@link Wiki#getWiki(String)}, so every request shares the logged in session and the {@code OkHttpClient} of the parent Wiki. Results are streamed
+ * back, keyed by domain, in the order that each wiki finishes. Close the returned Stream (e.g. with try-with-resources) to stop any queries still
+ * running if it is not fully consumed.
+ *
+ * @author Fastily
+ * @see MQuery
+ */
+public final class CrossWikiQuery {
+    /**
+     * The default maximum number of requests in flight at once, across all wikis.
+     */
+    public static final int DEFAULT_THREADS = 16;
+
+    /**
+     * The default maximum number of requests in flight at once to any one wiki.
+     */
+    public static final int DEFAULT_PER_HOST = 2;
+
+    /**
+     * Constructors disallowed
+     */
+    private CrossWikiQuery() {
+
+    }
+
+    /**
+     * Groups the results of a global usage query by wiki.
+     *
+     * @param globalUsage The results of {@link Wiki#globalUsage(String)} or {@link MQuery#globalUsage(Wiki, Collection)}, in the form (title, domain)
+     * @return The titles used on each domain.
+     */
+    public static Map<String, List<String>> byDomain(Collection<Tuple<String, String>> globalUsage) {
+        Map<String, List<String>> m = new LinkedHashMap<>();
+        for (Tuple<String, String> t : globalUsage)
+            m.computeIfAbsent(t.y, k -> new ArrayList<>()).add(t.x);
+
+        return m;
+    }
+
+    /**
+     * Runs {@code query} once against each of {@code domains}, with up to {@link #DEFAULT_THREADS} wikis queried at once.
+     *
+     * @param <T> The type of result returned by {@code query}
+     * @param wiki The logged in Wiki to derive the other wikis from.
+     * @param domains The domains to query (e.g. {@code fr.wikipedia.org}).
+     * @param query The query to run against each wiki.
+     * @return A Stream of (domain, result) tuples, in the order in which each wiki finishes. If {@code query} fails for a domain, its result is null.
+     * @see #run(Wiki, Collection, Function, int)
+     */
+    public static <T> Stream<Tuple<String, T>> run(Wiki wiki, Collection<String> domains, Function<Wiki, T> query) {
+        return run(wiki, domains, query, DEFAULT_THREADS);
+    }
+
+    /**
+     * Runs {@code query} once against each of {@code domains}.
+     *
+     * @param <T> The type of result returned by {@code query}
+     * @param wiki The logged in Wiki to derive the other wikis from.
+     * @param domains The domains to query (e.g. {@code fr.wikipedia.org}).
+     * @param query The query to run against each wiki.
+     * @param threads The maximum number of wikis to query at once.
+     * @return A Stream of (domain, result) tuples, in the order in which each wiki finishes. If {@code query} fails for a domain, its result is null.
+     */
+    public static <T> Stream<Tuple<String, T>> run(Wiki wiki, Collection<String> domains, Function<Wiki, T> query, int threads) {
+        Tasks tasks = new Tasks(threads);
+        BlockingQueue<Tuple<String, T>> done = new LinkedBlockingQueue<>();
+
+        for (String domain : domains)
+            tasks.pool.execute(RequestScheduler.inherit(() -> {
+                done.add(new Tuple<>(domain, runOn(wiki, domain, query, tasks.newSlot())));
+            }));
+
+        tasks.pool.shutdown();
+        return drain(done, domains.size()).onClose(tasks::close);
+    }
+
+    /**
+     * Performs a {@code prop} query for a set of titles on each of a set of wikis, with the default concurrency limits. For example, to get the
+     * categories of every page using a file:
+     *
+     * <pre>
+     * CrossWikiQuery.getProp(wiki, CrossWikiQuery.byDomain(wiki.globalUsage("File:Example.jpg")), WQuery.PAGECATEGORIES)
+     * </pre>
+     *
+     * @param wiki The logged in Wiki to derive the other wikis from.
+     * @param titles The titles to query for, keyed by domain.
+     * @param qut The query template to use.
+     * @return A Stream of (domain, properties) tuples, in the order in which each wiki finishes. The properties of each domain are keyed by title.
+     * @see #getProp(Wiki, Map, QTemplate, int, int)
+     */
+    public static Stream<Tuple<String, MultiMap<String, JsonObject>>> getProp(Wiki wiki, Map<String, ? extends Collection<String>> titles, QTemplate qut) {
+        return getProp(wiki, titles, qut, DEFAULT_THREADS, DEFAULT_PER_HOST);
+    }
+
+    /**
+     * Performs a {@code prop} query for a set of titles on each of a set of wikis. The titles of each wiki are split into groups of that wiki's
+     * {@link Conf#getMaxGroupQuery()}, and up to {@code perHost} groups of a wiki are queried at once.
+     *
+     * @param wiki The logged in Wiki to derive the other wikis from.
+     * @param titles The titles to query for, keyed by domain.
+     * @param qut The query template to use.
+     * @param threads The maximum number of requests in flight at once, across all wikis.
+     * @param perHost The maximum number of requests in flight at once to any one wiki.
+     * @return A Stream of (domain, properties) tuples, in the order in which each wiki finishes. The properties of each domain are keyed by title. If
+     *         a group of titles could not be queried, its titles are omitted.
+     */
+    public static Stream<Tuple<String, MultiMap<String, JsonObject>>> getProp(Wiki wiki, Map<String, ? extends Collection<String>> titles, QTemplate qut,
+            int threads, int perHost) {
+        Tasks tasks = new Tasks(threads);
+        BlockingQueue<Tuple<String, MultiMap<String, JsonObject>>> done = new LinkedBlockingQueue<>();
+
+        List<CompletableFuture<?>> all = new ArrayList<>();
+        titles.forEach((domain, tl) -> {
+            // The group size depends on the rights of the user on each wiki, which are only known once that wiki is bootstrapped, so do it in the pool.
+            Supplier<Integer> groupSize = RequestScheduler.inherit(() -> runOn(wiki, domain, w -> w.getConfig().getMaxGroupQuery(),
+                    tasks.newSlot()));
+            all.add(CompletableFuture.supplyAsync(groupSize, tasks.pool).thenCompose(size -> {
+                // Deal each wiki's groups of titles into at most perHost lanes, which are run sequentially. This caps per-host concurrency without
+                // blocking pool threads.
+                List<List<List<String>>> lanes = new ArrayList<>();
+                GroupQueue<String> gq = new GroupQueue<>(tl, size != null ? size : MQuery.MAX_GROUP_QUERY);
+                for (int i = 0; gq.has(); i++) {
+                    if (lanes.size() < perHost)
+                        lanes.add(new ArrayList<>());
+
+                    lanes.get(i % perHost).add(gq.poll());
+                }
+
+                List<CompletableFuture<MultiMap<String, JsonObject>>> fl = new ArrayList<>();
+                for (List<List<String>> lane : lanes)
+                    fl.add(CompletableFuture.supplyAsync(RequestScheduler.inherit(() -> {
+                        ApiClient.CallSlot slot = tasks.newSlot();
+                        MultiMap<String, JsonObject> m = new MultiMap<>();
+                        for (List<String> group : lane) {
+                            MultiMap<String, JsonObject> r = runOn(wiki, domain, w -> MQuery.getContProp(w, group, qut, null, qut.id), slot);
+                            if (r != null)
+                                m.putAll(r);
+                        }
+                        return m;
+                    }), tasks.pool));
+
+                return CompletableFuture.allOf(fl.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+                    MultiMap<String, JsonObject> m = new MultiMap<>();
+                    fl.forEach(f -> m.putAll(f.join()));
+                    done.add(new Tuple<>(domain, m));
+                });
+            }));
+        });
+
+        // lanes are only submitted once their wiki's group size is known, so the pool cannot be shut down before then
+        CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0])).whenComplete((v, e) -> tasks.pool.shutdown());
+        return drain(done, titles.size()).onClose(tasks::close);
+    }
+
+    /**
+     * Runs {@code query} against the Wiki for {@code domain}, logging any failure. The requests made by {@code query} are placed in {@code slot}.
+     *
+     * @param <T> The type of result returned by {@code query}
+     * @param wiki The logged in Wiki to derive the other wiki from.
+     * @param domain The domain to query.
+     * @param query The query to run
+     * @param slot The CallSlot of the task running {@code query}.
+     * @return The result of {@code query}, or null if it failed or {@code slot} was cancelled.
+     */
+    private static <T> T runOn(Wiki wiki, String domain, Function<Wiki, T> query, ApiClient.CallSlot slot) {
+        if (slot.isCancelled())
+            return null;
+
+        ApiClient.CallSlot prev = ApiClient.currentSlot.get();
+        ApiClient.currentSlot.set(slot);
+        try {
+            Wiki w = wiki.getWiki(domain);
+            if (w != null)
+                return query.apply(w);
+
+            WikiLogger.error(wiki, "Cannot query {}, this Wiki is not logged in", domain);
+        } catch (Throwable e) {
+            if (!slot.isCancelled())
+                WikiLogger.error(wiki, "Error while querying " + domain, e);
+        } finally {
+            ApiClient.currentSlot.set(prev);
+        }
+
+        return null;
+    }
+
+    /**
+     * Creates a Stream which takes {@code size} results from {@code done}, blocking until each is available.
+     *
+     * @param <T> The type of result in {@code done}
+     * @param done The queue that results are added to as they finish.
+     * @param size The number of results to take.
+     * @return A Stream of the results in {@code done}
+     */
+    private static <T> Stream<T> drain(BlockingQueue<T> done, int size) {
+        return Stream.generate(() -> {
+            try {
+                return done.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for cross-wiki results", e);
+            }
+        }).limit(size);
+    }
+
+    /**
+     * The thread pool of a cross-wiki query, and the CallSlot of each of its tasks, so that they can be stopped when the Stream of results is closed.
+     */
+    private static final class Tasks {
+        /**
+         * The thread pool running the tasks.
+         */
+        private final ExecutorService pool;
+
+        /**
+         * The parent of every CallSlot in {@link #slots}, cancelled on close so that tasks started afterwards stop immediately.
+         */
+        private final ApiClient.CallSlot root = new ApiClient.CallSlot();
+
+        /**
+         * The CallSlot of each task started so far.
+         */
+        private final Collection<ApiClient.CallSlot> slots = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Constructor, creates a new Tasks
+         *
+         * @param threads The number of threads in the pool.
+         */
+        private Tasks(int threads) {
+            pool = Workers.newPool(threads, "crosswiki");
+        }
+
+        /**
+         * Creates a CallSlot for a task, which is cancelled on close.
+         *
+         * @return The new CallSlot
+         */
+        private ApiClient.CallSlot newSlot() {
+            ApiClient.CallSlot slot = new ApiClient.CallSlot(root);
+            slots.add(slot);
+            return slot;
+        }
+
+        /**
+         * Cancels the requests in flight of every task and interrupts the pool.
+         */
+        private void close() {
+            root.cancel();
+            slots.forEach(ApiClient.CallSlot::cancel);
+            pool.shutdownNow();
+        }
+    }
+}
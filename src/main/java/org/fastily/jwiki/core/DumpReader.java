@@ -0,0 +1,525 @@
+package org.fastily.jwiki.core;
+
+import org.fastily.jwiki.dwrap.DumpRevision;
+import org.fastily.jwiki.util.Workers;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the revisions in a MediaWiki XML dump, as produced by {@code Special:Export} or {@code dumps.wikimedia.org}, without using the API. Dumps are
+ * read as a stream, in constant memory, so they may be far larger than the heap. Gzip compressed dumps are decompressed automatically. Other formats,
+ * such as bzip2 or 7z, must be decompressed by the caller, e.g. by wrapping the file's InputStream in a decompressing InputStream. For example, to count
+ * the articles in a dump:
+ *
+ * <pre>
+ * try (DumpReader r = DumpReader.open(Path.of("enwiki-latest-pages-articles.xml.gz"))) {
+ *     long n = r.stream().filter(rev -&gt; rev.ns == 0 &amp;&amp; rev.redirect == null).count();
+ * }
+ * </pre>
+ * <p>
+ * To use every core, see {@link #readParallel(InputStream, int, Consumer)}.
+ *
+ * @author Fastily
+ */
+public class DumpReader implements Iterator<DumpRevision>, Closeable {
+    private static final XMLInputFactory XML_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        // Protect against external XML entities
+        XML_FACTORY.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+        XML_FACTORY.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+        XML_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
+    /**
+     * The approximate size, in bytes, of the blocks of a dump which are parsed in parallel by {@link #readParallel(InputStream, int, Consumer)}.
+     */
+    private static final int BLOCK_SIZE = 8 << 20;
+
+    /**
+     * The size, in bytes, of the buffers used when reading dumps.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The tags which {@link #readParallel(InputStream, int, Consumer)} splits dumps at.
+     */
+    private static final byte[] PAGE_START = "<page>".getBytes(StandardCharsets.US_ASCII), PAGE_END = "</page>".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The root element which {@link #readParallel(InputStream, int, Consumer)} wraps each block in.
+     */
+    private static final byte[] ROOT_START = "<mediawiki>".getBytes(StandardCharsets.US_ASCII), ROOT_END = "</mediawiki>".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The stream being read.
+     */
+    private final InputStream in;
+
+    /**
+     * The XMLStreamReader reading {@link #in}.
+     */
+    private final XMLStreamReader r;
+
+    /**
+     * The title and redirect target of the page currently being read.
+     */
+    private String title, redirect;
+
+    /**
+     * The namespace of the page currently being read.
+     */
+    private int ns;
+
+    /**
+     * The id of the page currently being read.
+     */
+    private long pageid;
+
+    /**
+     * The next revision to return, or null if it has not been read yet.
+     */
+    private DumpRevision next;
+
+    /**
+     * Flag indicating if the end of the dump was reached.
+     */
+    private boolean done = false;
+
+    /**
+     * Constructor, creates a new DumpReader. Gzip compressed input is decompressed automatically.
+     *
+     * @param in The dump to read. Closed when this DumpReader is closed.
+     * @throws IOException If {@code in} could not be read, or is compressed in a format other than gzip.
+     */
+    public DumpReader(InputStream in) throws IOException {
+        this.in = decompress(in);
+        try {
+            r = XML_FACTORY.createXMLStreamReader(this.in, "UTF-8");
+        } catch (XMLStreamException e) {
+            this.in.close();
+            throw new IOException("Could not read dump", e);
+        }
+    }
+
+    /**
+     * Opens a dump file. Gzip compressed files are decompressed automatically.
+     *
+     * @param p The path to the dump file.
+     * @return A new DumpReader for {@code p}.
+     * @throws IOException If {@code p} could not be read, or is compressed in a format other than gzip.
+     */
+    public static DumpReader open(Path p) throws IOException {
+        return new DumpReader(Files.newInputStream(p));
+    }
+
+    /**
+     * Wraps a stream in a GZIPInputStream if it is gzip compressed, and rejects other compressed formats, which would otherwise fail with a confusing XML
+     * error.
+     *
+     * @param in The stream to check.
+     * @return A buffered stream of the decompressed contents of {@code in}.
+     * @throws IOException If {@code in} could not be read, or is compressed in a format other than gzip.
+     */
+    private static InputStream decompress(InputStream in) throws IOException {
+        BufferedInputStream b = new BufferedInputStream(in, BUFFER_SIZE);
+        b.mark(3);
+        byte[] magic = b.readNBytes(3);
+        b.reset();
+
+        if (magic.length >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b)
+            return new BufferedInputStream(new GZIPInputStream(b, BUFFER_SIZE), BUFFER_SIZE);
+        else if (magic.length == 3 && (new String(magic, StandardCharsets.ISO_8859_1).equals("BZh") || magic[0] == '7' && magic[1] == 'z')) {
+            b.close();
+            throw new IOException("Only gzip compressed dumps are decompressed automatically; wrap the stream in a decompressing InputStream first");
+        }
+
+        return b;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !done) {
+            try {
+                next = advance();
+            } catch (XMLStreamException | RuntimeException e) {
+                throw new IllegalStateException("Malformed dump", e);
+            }
+            done = next == null;
+        }
+
+        return next != null;
+    }
+
+    @Override
+    public DumpRevision next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        DumpRevision rev = next;
+        next = null;
+        return rev;
+    }
+
+    /**
+     * Creates a sequential Stream of the remaining revisions of this DumpReader. Closing the Stream closes this DumpReader.
+     *
+     * @return A Stream of the remaining revisions.
+     */
+    public Stream<DumpRevision> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(() -> {
+            try {
+                close();
+            } catch (IOException e) {
+                WikiLogger.warn(null, "Could not close dump", e);
+            }
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            r.close();
+        } catch (XMLStreamException e) {
+            // nothing to release
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads up to and including the next {@code revision} element.
+     *
+     * @return The next revision, or null if the end of the dump was reached.
+     * @throws XMLStreamException On parse error.
+     */
+    private DumpRevision advance() throws XMLStreamException {
+        while (r.hasNext()) {
+            if (r.next() != XMLStreamConstants.START_ELEMENT)
+                continue;
+
+            switch (r.getLocalName()) {
+                case "page":
+                    title = redirect = null;
+                    ns = 0;
+                    pageid = 0;
+                    break;
+                case "title":
+                    title = r.getElementText();
+                    break;
+                case "ns":
+                    ns = Integer.parseInt(r.getElementText().strip());
+                    break;
+                case "id":
+                    pageid = Long.parseLong(r.getElementText().strip());
+                    break;
+                case "redirect":
+                    redirect = r.getAttributeValue(null, "title");
+                    break;
+                case "revision":
+                    return readRevision();
+                case "siteinfo":
+                case "upload":
+                    skip();
+                    break;
+                default:
+                    // do nothing - descend into mediawiki and page, skip other leaves
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads a {@code revision} element. PRECONDITION: the current event is the {@code revision} StartElement.
+     *
+     * @return The revision.
+     * @throws XMLStreamException On parse error.
+     */
+    private DumpRevision readRevision() throws XMLStreamException {
+        DumpRevision rev = new DumpRevision();
+        rev.title = title;
+        rev.ns = ns;
+        rev.pageid = pageid;
+        rev.redirect = redirect;
+
+        while (r.hasNext()) {
+            int e = r.next();
+            if (e == XMLStreamConstants.END_ELEMENT && r.getLocalName().equals("revision"))
+                break;
+            else if (e != XMLStreamConstants.START_ELEMENT)
+                continue;
+
+            switch (r.getLocalName()) {
+                case "id":
+                    rev.revid = Long.parseLong(r.getElementText().strip());
+                    break;
+                case "parentid":
+                    rev.parentid = Long.parseLong(r.getElementText().strip());
+                    break;
+                case "timestamp":
+                    rev.timestamp = Instant.parse(r.getElementText().strip());
+                    break;
+                case "contributor":
+                    rev.user = readContributor();
+                    break;
+                case "minor":
+                    rev.minor = true;
+                    break;
+                case "comment":
+                    rev.summary = isDeleted() ? null : r.getElementText();
+                    break;
+                case "text":
+                    rev.text = isDeleted() ? null : r.getElementText();
+                    break;
+                case "sha1":
+                    String sha1 = r.getElementText().strip();
+                    rev.sha1 = sha1.isEmpty() ? null : sha1;
+                    break;
+                default:
+                    skip();
+            }
+        }
+
+        return rev;
+    }
+
+    /**
+     * Reads a {@code contributor} element. PRECONDITION: the current event is the {@code contributor} StartElement.
+     *
+     * @return The username or IP address of the contributor, or null if it was hidden.
+     * @throws XMLStreamException On parse error.
+     */
+    private String readContributor() throws XMLStreamException {
+        String user = null;
+        while (r.hasNext()) {
+            int e = r.next();
+            if (e == XMLStreamConstants.END_ELEMENT && r.getLocalName().equals("contributor"))
+                break;
+            else if (e != XMLStreamConstants.START_ELEMENT)
+                continue;
+
+            String name = r.getLocalName();
+            if (name.equals("username") || name.equals("ip"))
+                user = r.getElementText();
+            else
+                skip();
+        }
+
+        return user;
+    }
+
+    /**
+     * Test if the current StartElement was hidden by revision deletion.
+     *
+     * @return True if the current StartElement has a {@code deleted} attribute.
+     */
+    private boolean isDeleted() {
+        return r.getAttributeValue(null, "deleted") != null;
+    }
+
+    /**
+     * Skips the current element and its children. PRECONDITION: the current event is a StartElement.
+     *
+     * @throws XMLStreamException On parse error.
+     */
+    private void skip() throws XMLStreamException {
+        for (int depth = 1; depth > 0 && r.hasNext(); ) {
+            int e = r.next();
+            if (e == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            else if (e == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
+    }
+
+    /**
+     * Reads a dump file on every core. See {@link #readParallel(InputStream, int, Consumer)}.
+     *
+     * @param p The path to the dump file.
+     * @param action The action to perform on each revision. Called concurrently from multiple threads.
+     * @throws IOException If {@code p} could not be read, is compressed in a format other than gzip, or is malformed.
+     */
+    public static void readParallel(Path p, Consumer<? super DumpRevision> action) throws IOException {
+        try (InputStream in = Files.newInputStream(p)) {
+            readParallel(in, Runtime.getRuntime().availableProcessors(), action);
+        }
+    }
+
+    /**
+     * Reads a dump with multiple threads. The decompressed dump is split into blocks of whole pages, which are parsed concurrently. Decompression itself
+     * is sequential, so this helps most with uncompressed or gzip compressed dumps, where parsing dominates. Memory use is bounded by a few blocks per
+     * thread, plus the size of the largest page. Revisions of the same page are passed to {@code action} in order and by the same thread, but pages may
+     * be processed in any order.
+     *
+     * @param in The dump to read. Gzip compressed input is decompressed automatically.
+     * @param threads The number of threads to parse with.
+     * @param action The action to perform on each revision. Called concurrently from multiple threads.
+     * @throws IOException If {@code in} could not be read, is compressed in a format other than gzip, or is malformed.
+     */
+    public static void readParallel(InputStream in, int threads, Consumer<? super DumpRevision> action) throws IOException {
+        InputStream src = decompress(in);
+        ExecutorService pool = Workers.newPool(threads, "dump");
+        Semaphore window = new Semaphore(threads * 2);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+
+        try {
+            byte[] buf = new byte[BLOCK_SIZE + BUFFER_SIZE];
+            int len = 0, scanned = 0;
+            boolean started = false;
+
+            for (int n; error.get() == null && (n = src.read(buf, len, Math.min(buf.length - len, BUFFER_SIZE))) != -1; ) {
+                len += n;
+
+                // skip the header, e.g. siteinfo, which is not part of any page
+                if (!started) {
+                    int i = indexOf(buf, len, PAGE_START);
+                    if (i < 0) { // keep only what may be the start of a PAGE_START split across reads
+                        int keep = Math.min(len, PAGE_START.length - 1);
+                        System.arraycopy(buf, len - keep, buf, 0, keep);
+                        len = keep;
+                        continue;
+                    }
+
+                    System.arraycopy(buf, i, buf, 0, len -= i);
+                    started = true;
+                }
+
+                if (len >= BLOCK_SIZE) {
+                    int end = lastIndexOf(buf, scanned, len, PAGE_END);
+                    if (end < 0) { // a page larger than a block, only search what was read since
+                        scanned = Math.max(0, len - PAGE_END.length + 1);
+                        if (len == buf.length)
+                            buf = Arrays.copyOf(buf, buf.length * 2);
+                        continue;
+                    }
+
+                    end += PAGE_END.length;
+                    submit(pool, window, error, Arrays.copyOf(buf, end), action);
+                    System.arraycopy(buf, end, buf, 0, len -= end);
+                    scanned = 0;
+                }
+            }
+
+            int end = lastIndexOf(buf, 0, len, PAGE_END);
+            if (started && end >= 0)
+                submit(pool, window, error, Arrays.copyOf(buf, end + PAGE_END.length), action);
+
+            pool.shutdown();
+            if (!pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS))
+                throw new InterruptedIOException("Timed out waiting for dump to be read");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading dump");
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Throwable e = error.get();
+        if (e instanceof IOException)
+            throw (IOException) e;
+        else if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        else if (e != null)
+            throw new IOException("Could not read dump", e);
+    }
+
+    /**
+     * Parses a block of whole pages on a pool thread, waiting first if too many blocks are already queued.
+     *
+     * @param pool The pool to parse on.
+     * @param window Limits the number of blocks queued or being parsed.
+     * @param error Set to the first error encountered by any block.
+     * @param block The pages to parse.
+     * @param action The action to perform on each revision.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    private static void submit(ExecutorService pool, Semaphore window, AtomicReference<Throwable> error, byte[] block,
+            Consumer<? super DumpRevision> action) throws InterruptedException {
+        window.acquire();
+        pool.execute(() -> {
+            // wrap in a root element, so that the block is a well formed document
+            InputStream s = new SequenceInputStream(Collections.enumeration(List.of(new ByteArrayInputStream(ROOT_START), new ByteArrayInputStream(block),
+                    new ByteArrayInputStream(ROOT_END))));
+            try (DumpReader r = new DumpReader(s)) {
+                while (error.get() == null && r.hasNext())
+                    action.accept(r.next());
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            } finally {
+                window.release();
+            }
+        });
+    }
+
+    /**
+     * Finds the first occurrence of a byte sequence in a buffer.
+     *
+     * @param buf The buffer to search
+     * @param len The number of bytes of {@code buf} to search.
+     * @param target The byte sequence to find.
+     * @return The index of {@code target} in {@code buf}, or -1 if it was not found.
+     */
+    private static int indexOf(byte[] buf, int len, byte[] target) {
+        outer:
+        for (int i = 0; i <= len - target.length; i++) {
+            for (int j = 0; j < target.length; j++)
+                if (buf[i + j] != target[j])
+                    continue outer;
+            return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Finds the last occurrence of a byte sequence in a buffer.
+     *
+     * @param buf The buffer to search
+     * @param from The lowest index to search from.
+     * @param len The number of bytes of {@code buf} to search.
+     * @param target The byte sequence to find.
+     * @return The index of {@code target} in {@code buf}, or -1 if it was not found.
+     */
+    private static int lastIndexOf(byte[] buf, int from, int len, byte[] target) {
+        outer:
+        for (int i = len - target.length; i >= from; i--) {
+            for (int j = 0; j < target.length; j++)
+                if (buf[i + j] != target[j])
+                    continue outer;
+            return i;
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,169 @@
+package org.fastily.jwiki.core;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.fastily.jwiki.dwrap.ImageInfo;
+import org.fastily.jwiki.util.GSONP;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Perform generator queries, which fetch the properties of every page of a {@code list} query (e.g. the text of each page in a category) in one pass,
+ * without first collecting the listed titles. The generator is any {@code list} QTemplate, such as {@link WQuery#CATEGORYMEMBERS},
+ * {@link WQuery#ALLPAGES}, {@link WQuery#SEARCH}, or {@link WQuery#EMBEDDEDIN}. Generator parameters are passed without their {@code g} prefix, e.g.
+ *
+ * <pre>
+ * GQuery.getPageText(wiki, WQuery.CATEGORYMEMBERS, Map.of("cmtitle", "Category:Example"))
+ * </pre>
+ *
+ * @author Fastily
+ * @see MQuery
+ * @see QTemplate#asGenerator()
+ */
+public final class GQuery {
+    /**
+     * Constructors disallowed
+     */
+    private GQuery() {
+
+    }
+
+    /**
+     * Creates a WQuery which lists pages with {@code generator} and fetches their properties with {@code props}.
+     *
+     * @param wiki The Wiki to query
+     * @param generator The {@code list} QTemplate to use as the generator.
+     * @param params Parameters for the generator, without their {@code g} prefix (e.g. {@code cmtitle}). Optional, set null to disable.
+     * @param props The {@code prop} QTemplates to fetch for each listed page.
+     * @return A new WQuery
+     */
+    public static WQuery create(Wiki wiki, QTemplate generator, Map<String, String> params, QTemplate... props) {
+        QTemplate[] qut = new QTemplate[props.length + 1];
+        qut[0] = generator.asGenerator();
+        System.arraycopy(props, 0, qut, 1, props.length);
+
+        WQuery wq = new WQuery(wiki, qut);
+        if (params != null)
+            params.forEach((k, v) -> wq.set("g" + k, v));
+
+        return wq;
+    }
+
+    /**
+     * Runs a generator query and passes each page to {@code action}. When a {@code prop} module continues, MediaWiki returns the same pages again with the
+     * rest of their properties, so partial pages are merged until the batch is complete. Each page is passed to {@code action} exactly once.
+     *
+     * @param wiki The Wiki to query
+     * @param generator The {@code list} QTemplate to use as the generator.
+     * @param params Parameters for the generator, without their {@code g} prefix (e.g. {@code cmtitle}). Optional, set null to disable.
+     * @param action The action to perform on each page's JsonObject, which includes its {@code title} and the properties fetched by {@code props}.
+     * @param props The {@code prop} QTemplates to fetch for each listed page.
+     * @throws IllegalStateException If a query failed, even after retrying. Pages of the batch being fetched are not passed to {@code action}.
+     */
+    public static void forEachPage(Wiki wiki, QTemplate generator, Map<String, String> params, Consumer<JsonObject> action, QTemplate... props) {
+        WQuery wq = create(wiki, generator, params, props);
+        Map<String, JsonObject> batch = new LinkedHashMap<>();
+
+        while (wq.has()) {
+            QReply r = wq.next();
+            if (r == QReply.NULL_REPLY) {
+                if (wq.hasFailed())
+                    throw new IllegalStateException("Query failed, even after retrying");
+                break;
+            }
+
+            for (JsonObject jo : r.pages())
+                batch.merge(GSONP.getStr(jo, "title"), jo, GQuery::mergePage);
+
+            if (r.getResponse().has("batchcomplete") || !wq.has()) {
+                batch.values().forEach(action);
+                batch.clear();
+            }
+        }
+
+        batch.values().forEach(action);
+    }
+
+    /**
+     * Gets the text of each page listed by a generator.
+     *
+     * @param wiki The Wiki to query
+     * @param generator The {@code list} QTemplate to use as the generator.
+     * @param params Parameters for the generator, without their {@code g} prefix (e.g. {@code cmtitle}). Optional, set null to disable.
+     * @return A Map of page text keyed by title.
+     */
+    public static Map<String, String> getPageText(Wiki wiki, QTemplate generator, Map<String, String> params) {
+        Map<String, String> l = new HashMap<>();
+        forEachPage(wiki, generator, params, jo -> {
+            List<JsonObject> jl = GSONP.getJAofJO(jo, "revisions");
+            l.put(GSONP.getStr(jo, "title"), jl.isEmpty() ? "" : MQuery.getContent(jl.get(0)));
+        }, WQuery.PAGETEXT);
+
+        return l;
+    }
+
+    /**
+     * Gets the categories of each page listed by a generator.
+     *
+     * @param wiki The Wiki to query
+     * @param generator The {@code list} QTemplate to use as the generator.
+     * @param params Parameters for the generator, without their {@code g} prefix (e.g. {@code cmtitle}). Optional, set null to disable.
+     * @return A Map of categories keyed by title.
+     */
+    public static Map<String, List<String>> getCategoriesOnPage(Wiki wiki, QTemplate generator, Map<String, String> params) {
+        Map<String, List<String>> l = new HashMap<>();
+        forEachPage(wiki, generator, params, jo -> l.put(GSONP.getStr(jo, "title"),
+                GSONP.getJAofJO(jo, "categories").stream().map(e -> GSONP.getStr(e, "title")).collect(Collectors.toList())), WQuery.PAGECATEGORIES);
+
+        return l;
+    }
+
+    /**
+     * Gets ImageInfo objects for each revision of each file listed by a generator.
+     *
+     * @param wiki The Wiki to query
+     * @param generator The {@code list} QTemplate to use as the generator.
+     * @param params Parameters for the generator, without their {@code g} prefix (e.g. {@code cmtitle}). Optional, set null to disable.
+     * @return A Map of ImageInfo keyed by title.
+     */
+    public static Map<String, List<ImageInfo>> getImageInfo(Wiki wiki, QTemplate generator, Map<String, String> params) {
+        Map<String, List<ImageInfo>> l = new HashMap<>();
+        forEachPage(wiki, generator, params, jo -> {
+            List<ImageInfo> il = new ArrayList<>();
+            for (JsonObject e : GSONP.getJAofJO(jo, "imageinfo"))
+                il.add(GSONP.gson.fromJson(e, ImageInfo.class));
+
+            // MediaWiki imageinfo is not a well-behaved module
+            Collections.sort(il);
+            l.put(GSONP.getStr(jo, "title"), il);
+        }, WQuery.IMAGEINFO);
+
+        return l;
+    }
+
+    /**
+     * Merges a partial page returned by a continued query into the properties already fetched for it.
+     *
+     * @param curr The properties fetched so far
+     * @param next The properties in the latest reply
+     * @return {@code curr}, with the properties of {@code next} appended.
+     */
+    private static JsonObject mergePage(JsonObject curr, JsonObject next) {
+        for (Map.Entry<String, JsonElement> e : next.entrySet()) {
+            JsonElement c = curr.get(e.getKey());
+            if (c == null)
+                curr.add(e.getKey(), e.getValue());
+            else if (c.isJsonArray() && e.getValue().isJsonArray())
+                c.getAsJsonArray().addAll(e.getValue().getAsJsonArray());
+        }
+
+        return curr;
+    }
+}
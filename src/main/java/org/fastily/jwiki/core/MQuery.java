@@ -29,9 +29,10 @@ import java.util.stream.Collectors;
  */
 public final class MQuery {
     /**
-     * The group {@code prop} query (multiple titles query) maximum
+     * The group {@code prop} query (multiple titles query) maximum for users without the {@code apihighlimits} right. See
+     * {@link Conf#getMaxGroupQuery()}.
      */
-    private static final int MAX_GROUP_QUERY = 50;
+    static final int MAX_GROUP_QUERY = 50;
 
     /**
      * Constructors disallowed
@@ -49,13 +50,13 @@ public final class MQuery {
      * @param elemArrKey The key for each JsonArray for each title the resulting set
      * @return A Map where the key is the title of the page, and the value is the List of properties fetched.
      */
-    private static MultiMap<String, JsonObject> getContProp(Wiki wiki, Collection<String> titles, QTemplate qut, Map<String, String> pl, String elemArrKey) {
+    static MultiMap<String, JsonObject> getContProp(Wiki wiki, Collection<String> titles, QTemplate qut, Map<String, String> pl, String elemArrKey) {
         MultiMap<String, JsonObject> l = new MultiMap<>();
 
         if (FL.containsNull(titles))
             throw new IllegalArgumentException("null is not an acceptable title to query with");
 
-        GroupQueue<String> gq = new GroupQueue<>(titles, MAX_GROUP_QUERY);
+        GroupQueue<String> gq = new GroupQueue<>(titles, wiki.getConfig().maxGroupQuery);
 
         while (gq.has()) {
             WQuery wq = new WQuery(wiki, qut).set("titles", gq.poll());
@@ -74,7 +75,56 @@ public final class MQuery {
     }
 
     /**
-     * Performs a non-continuing {@code prop} query. Grabs a title and an element from each returned page.
+     * Fetches several page properties ({@code prop}) for each title at once. All of {@code props} are sent in a single query per group of titles, and each
+     * module's results are accumulated across continuations until every module is exhausted. Use this instead of calling several of the methods in this class
+     * on the same titles.
+     *
+     * @param wiki The Wiki to use
+     * @param titles The titles to query for.
+     * @param props The {@code prop} query templates to fetch, e.g. {@link WQuery#PAGECATEGORIES} and {@link WQuery#LINKSONPAGE}. The id of each
+     *              template must point to the JsonArray (or JsonObject) of its results in each page.
+     * @return A Map where the key is the title of the page, and the value is the properties fetched for it, keyed by template id.
+     * @throws IllegalStateException If a query failed, even after retrying.
+     */
+    public static Map<String, MultiMap<String, JsonObject>> getProps(Wiki wiki, Collection<String> titles, QTemplate... props) {
+        Map<String, MultiMap<String, JsonObject>> l = new HashMap<>();
+
+        if (FL.containsNull(titles))
+            throw new IllegalArgumentException("null is not an acceptable title to query with");
+        for (QTemplate qt : props)
+            if (qt.id == null)
+                throw new IllegalArgumentException("Query templates without an id cannot be combined");
+
+        GroupQueue<String> gq = new GroupQueue<>(titles, wiki.getConfig().maxGroupQuery);
+        while (gq.has()) {
+            WQuery wq = new WQuery(wiki, props).set("titles", gq.poll());
+
+            while (wq.has()) {
+                QReply r = wq.next();
+                if (r == QReply.NULL_REPLY && wq.hasFailed())
+                    throw new IllegalStateException("Query failed, even after retrying");
+
+                for (QTemplate qt : props)
+                    r.propComp("title", qt.id).forEach((k, v) -> {
+                        MultiMap<String, JsonObject> m = l.computeIfAbsent(k, x -> new MultiMap<>());
+                        m.touch(qt.id);
+
+                        if (v == null)
+                            return;
+                        else if (v.isJsonArray())
+                            m.putAll(qt.id, GSONP.getJAofJO(v.getAsJsonArray()));
+                        else if (v.isJsonObject())
+                            m.putValue(qt.id, v.getAsJsonObject());
+                    });
+            }
+        }
+        return l;
+    }
+
+    /**
+     * Performs a {@code prop} query which returns at most one element per page. Grabs a title and an element from each returned page. Continuations are
+     * followed, because MediaWiki stops returning elements once a reply is too large (e.g. the content of many revisions), and returns the rest in the next
+     * reply.
      *
      * @param wiki The Wiki to query.
      * @param titles The titles to use
@@ -89,13 +139,18 @@ public final class MQuery {
         if (FL.containsNull(titles))
             throw new IllegalArgumentException("null is not an acceptable title to query with");
 
-        GroupQueue<String> gq = new GroupQueue<>(titles, MAX_GROUP_QUERY);
+        GroupQueue<String> gq = new GroupQueue<>(titles, wiki.getConfig().maxGroupQuery);
         while (gq.has()) {
             WQuery wq = new WQuery(wiki, qut).set("titles", gq.poll());
             if (pl != null)
                 pl.forEach(wq::set);
 
-            m.putAll(wq.next().propComp("title", eKey));
+            // pages cut off from a reply are listed without an element, which a later reply fills in
+            while (wq.has())
+                wq.next().propComp("title", eKey).forEach((k, v) -> {
+                    if (v != null || !m.containsKey(k))
+                        m.put(k, v);
+                });
         }
         return m;
     }
@@ -117,7 +172,7 @@ public final class MQuery {
         if (FL.containsNull(titles))
             throw new IllegalArgumentException("null is not an acceptable title to query with");
 
-        GroupQueue<String> gq = new GroupQueue<>(titles, MAX_GROUP_QUERY);
+        GroupQueue<String> gq = new GroupQueue<>(titles, wiki.getConfig().maxGroupQuery);
         while (gq.has()) {
             WQuery wq = new WQuery(wiki, qut).set(tQKey, gq.poll());
             if (pl != null)
@@ -129,6 +184,16 @@ public final class MQuery {
         return l;
     }
 
+    /**
+     * Gets the text of a revision returned by a {@code prop=revisions} query.
+     *
+     * @param rev The revision JsonObject
+     * @return The text of the revision, which is keyed by {@code *} with {@code formatversion=1} and {@code content} with {@code formatversion=2}.
+     */
+    static String getContent(JsonObject rev) {
+        return GSONP.getStr(rev, rev.has("content") ? "content" : "*");
+    }
+
     /**
      * Retrieve one String value from each JsonObject List for each pair in a MapList.
      *
@@ -244,7 +309,7 @@ public final class MQuery {
                 l.put(k, "");
             else {
                 List<JsonObject> jl = GSONP.getJAofJO(v.getAsJsonArray());
-                l.put(k, jl.isEmpty() ? "" : GSONP.getStr(jl.get(0), "*"));
+                l.put(k, jl.isEmpty() ? "" : getContent(jl.get(0)));
             }
         });
 
@@ -262,7 +327,7 @@ public final class MQuery {
     public static Map<String, List<String>> getLinksOnPage(Wiki wiki, Collection<String> titles, NS... ns) {
         Map<String, String> pl = new HashMap<>();
         if (ns != null && ns.length > 0)
-            pl.put("plnamespace", wiki.nsl.createFilter(ns));
+            pl.put("plnamespace", wiki.nsl().createFilter(ns));
 
         return parsePropToSingle(getContProp(wiki, titles, WQuery.LINKSONPAGE, pl, "links"));
     }
@@ -291,7 +356,7 @@ public final class MQuery {
     public static Map<String, List<String>> transcludesIn(Wiki wiki, Collection<String> titles, NS... ns) {
         Map<String, String> pl = new HashMap<>();
         if (ns.length > 0)
-            pl.put("tinamespace", wiki.nsl.createFilter(ns));
+            pl.put("tinamespace", wiki.nsl().createFilter(ns));
 
         return parsePropToSingle(getContProp(wiki, titles, WQuery.TRANSCLUDEDIN, pl, "transcludedin"));
     }
@@ -315,7 +380,7 @@ public final class MQuery {
      * @return A Map of results keyed by title.
      */
     public static Map<String, List<String>> getExternalLinks(Wiki wiki, Collection<String> titles) {
-        return parsePropToSingle(getContProp(wiki, titles, WQuery.EXTLINKS, null, "extlinks"), "*");
+        return parsePropToSingle(getContProp(wiki, titles, WQuery.EXTLINKS, null, "extlinks"), wiki.conf.formatVersion2 ? "url" : "*");
     }
 
     // FIXME: getNoContProp -> doubled output on non-normal titles
@@ -141,6 +141,11 @@ public final class NS {
          */
         protected final List<String> nsL = new ArrayList<>();
 
+        /**
+         * The raw {@code namespaces} and {@code namespacealiases} data this NSManager was created from.
+         */
+        protected final JsonObject source = new JsonObject();
+
         /**
          * Regex used to strip the namespace from a title.
          */
@@ -157,8 +162,12 @@ public final class NS {
          * @param r A Reply object with a <code>namespaces</code> JSONObject.
          */
         protected NSManager(JsonObject r) {
+            source.add("namespaces", r.get("namespaces"));
+            source.add("namespacealiases", r.get("namespacealiases"));
+
+            // the names are keyed by "*" with formatversion=1, and by "name" and "alias" with formatversion=2
             for (JsonObject x : GSONP.getJOofJO(r.getAsJsonObject("namespaces"))) {
-                String name = x.get("*").getAsString();
+                String name = x.get(x.has("name") ? "name" : "*").getAsString();
                 if (name.isEmpty())
                     name = "Main";
 
@@ -170,7 +179,7 @@ public final class NS {
             }
 
             for (JsonObject x : GSONP.getJAofJO(r.getAsJsonArray("namespacealiases"))) {
-                String name = x.get("*").getAsString();
+                String name = x.get(x.has("alias") ? "alias" : "*").getAsString();
                 nsM.put(name, x.get("id").getAsInt());
                 nsL.add(name);
             }
@@ -0,0 +1,404 @@
+package org.fastily.jwiki.core;
+
+import org.fastily.jwiki.dwrap.Contrib;
+import org.fastily.jwiki.dwrap.LogEntry;
+import org.fastily.jwiki.dwrap.RCEntry;
+import org.fastily.jwiki.util.GSONP;
+import org.fastily.jwiki.util.Workers;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Perform partitioned queries, which split one long {@code list} query into independent ranges of titles or time that are fetched concurrently. Use these instead of the
+ * equivalent methods in Wiki.java when enumerating a large part of a big wiki, where following a single continuation chain would take hours.
+ * <p>
+ * Partitions are fetched in the background, a few replies ahead of the caller. Close the returned Streams (e.g. with try-with-resources) to stop fetching
+ * early. If a partition fails, even after retrying, the Stream throws an {@code IllegalStateException} rather than ending early.
+ *
+ * @author Fastily
+ * @see Wiki
+ */
+public final class PQuery {
+    /**
+     * The maximum number of partitions which are fetched at once.
+     */
+    public static final int MAX_THREADS = 8;
+
+    /**
+     * The maximum number of replies which each partition fetches ahead of the caller.
+     */
+    public static final int BUFFERED_REPLIES = 4;
+
+    /**
+     * Orders titles the way MediaWiki sorts them, i.e. by the bytes of their UTF-8 database key.
+     */
+    private static final Comparator<String> TITLE_ORDER = (a, b) -> Arrays.compareUnsigned(dbKey(a), dbKey(b));
+
+    /**
+     * Constructors disallowed
+     */
+    private PQuery() {
+
+    }
+
+    /**
+     * Lists all pages in a namespace, fetching {@code partitions} ranges of titles at once. The range boundaries are chosen from a sample of random
+     * titles, so each range holds about the same number of pages.
+     *
+     * @param wiki The Wiki to query
+     * @param ns The namespace to list pages from.
+     * @param partitions The number of ranges to split the namespace into.
+     * @param ordered Set true to return titles in the order MediaWiki sorts them. Otherwise, titles are returned as soon as they are fetched.
+     * @return A Stream of titles.
+     */
+    public static Stream<String> allPages(Wiki wiki, NS ns, int partitions, boolean ordered) {
+        WikiLogger.info(wiki, "Doing partitioned all pages fetch for namespace {}", ns.v);
+        return byTitleRange(wiki, WQuery.ALLPAGES, "ap", ns, partitions, ordered);
+    }
+
+    /**
+     * Lists all files, fetching {@code partitions} ranges of file names at once. The range boundaries are chosen from a sample of random files, so each
+     * range holds about the same number of files.
+     *
+     * @param wiki The Wiki to query
+     * @param partitions The number of ranges to split the file names into.
+     * @param ordered Set true to return titles in the order MediaWiki sorts them. Otherwise, titles are returned as soon as they are fetched.
+     * @return A Stream of titles, including the {@code File:} prefix.
+     */
+    public static Stream<String> allImages(Wiki wiki, int partitions, boolean ordered) {
+        WikiLogger.info(wiki, "Doing partitioned all images fetch");
+        return byTitleRange(wiki, WQuery.ALLIMAGES, "ai", NS.FILE, partitions, ordered);
+    }
+
+    /**
+     * Lists recent changes between two instants, fetching {@code partitions} windows of time at once.
+     *
+     * @param wiki The Wiki to query
+     * @param start The instant to start enumerating from. Must occur before {@code end}.
+     * @param end The instant to stop enumerating at.
+     * @param partitions The number of windows to split the time span into.
+     * @return A Stream of recent changes, newest first.
+     */
+    public static Stream<RCEntry> recentChanges(Wiki wiki, Instant start, Instant end, int partitions) {
+        WikiLogger.info(wiki, "Querying recent changes in {} windows", partitions);
+        return byTimeWindow(wiki, WQuery.RECENTCHANGES, "rc", Map.of(), start, end, partitions, RCEntry.class);
+    }
+
+    /**
+     * Lists log entries between two instants, fetching {@code partitions} windows of time at once.
+     *
+     * @param wiki The Wiki to query
+     * @param type The type of log to get (e.g. delete, upload, patrol). Optional, set null to get entries of every type.
+     * @param start The instant to start enumerating from. Must occur before {@code end}.
+     * @param end The instant to stop enumerating at.
+     * @param partitions The number of windows to split the time span into.
+     * @return A Stream of log entries, newest first.
+     */
+    public static Stream<LogEntry> logs(Wiki wiki, String type, Instant start, Instant end, int partitions) {
+        WikiLogger.info(wiki, "Fetching log entries of type {} in {} windows", type, partitions);
+        return byTimeWindow(wiki, WQuery.LOGEVENTS, "le", type == null ? Map.of() : Map.of("letype", type), start, end, partitions, LogEntry.class);
+    }
+
+    /**
+     * Lists the contributions of a user between two instants, fetching {@code partitions} windows of time at once.
+     *
+     * @param wiki The Wiki to query
+     * @param user The user to get contributions for, without the {@code User:} prefix.
+     * @param start The instant to start enumerating from. Must occur before {@code end}.
+     * @param end The instant to stop enumerating at.
+     * @param partitions The number of windows to split the time span into.
+     * @return A Stream of contributions, newest first.
+     */
+    public static Stream<Contrib> contribs(Wiki wiki, String user, Instant start, Instant end, int partitions) {
+        WikiLogger.info(wiki, "Fetching contribs of {} in {} windows", user, partitions);
+        return byTimeWindow(wiki, WQuery.USERCONTRIBS, "uc", Map.of("ucuser", user), start, end, partitions, Contrib.class);
+    }
+
+    /**
+     * Runs a {@code list} query which supports {@code *start} and {@code *end} parameters over several windows of time at once. Both parameters are
+     * inclusive and timestamps have a resolution of one second, so each window ends one second before the next one starts. Windows are returned newest
+     * first, matching MediaWiki's default enumeration order.
+     *
+     * @param <T> The type of item to create from each entry
+     * @param wiki The Wiki to query
+     * @param qut The QTemplate to use
+     * @param prefix The parameter prefix of the {@code list} module, e.g. {@code rc}.
+     * @param params Additional parameters to apply to each window's WQuery.
+     * @param start The instant to start enumerating from.
+     * @param end The instant to stop enumerating at.
+     * @param partitions The number of windows to split the time span into.
+     * @param c The class to deserialize each entry into.
+     * @return A Stream of entries, newest first.
+     */
+    private static <T> Stream<T> byTimeWindow(Wiki wiki, QTemplate qut, String prefix, Map<String, String> params, Instant start, Instant end,
+            int partitions, Class<T> c) {
+        if (end.isBefore(start))
+            throw new IllegalArgumentException("start is before end, cannot proceed");
+
+        Instant s = start.truncatedTo(ChronoUnit.SECONDS);
+        long span = end.truncatedTo(ChronoUnit.SECONDS).getEpochSecond() - s.getEpochSecond() + 1;
+        int n = (int) Math.max(1, Math.min(partitions, span));
+
+        List<Part<T>> parts = new ArrayList<>();
+        for (int k = n - 1; k >= 0; k--) {
+            // MediaWiki has start <-> end backwards
+            WQuery wq = new WQuery(wiki, qut).set(prefix + "end", s.plusSeconds(k * span / n).toString())
+                    .set(prefix + "start", s.plusSeconds((k + 1) * span / n - 1).toString());
+            params.forEach(wq::set);
+
+            parts.add(new Part<>(wq, r -> r.listComp(qut.id).stream().map(jo -> GSONP.gson.fromJson(jo, c)).collect(Collectors.toList())));
+        }
+
+        return run(wiki, parts, true);
+    }
+
+    /**
+     * Runs a {@code list} query which supports {@code *from} and {@code *to} parameters over several title ranges at once. Both parameters are
+     * inclusive, so each range drops its upper boundary, which is the first title of the next range.
+     *
+     * @param wiki The Wiki to query
+     * @param qut The QTemplate to use
+     * @param prefix The parameter prefix of the {@code list} module, e.g. {@code ap}.
+     * @param ns The namespace to list pages from.
+     * @param partitions The number of ranges to split the titles into.
+     * @param ordered Set true to return titles in the order MediaWiki sorts them.
+     * @return A Stream of titles.
+     */
+    private static Stream<String> byTitleRange(Wiki wiki, QTemplate qut, String prefix, NS ns, int partitions, boolean ordered) {
+        List<String> bounds = sampleBounds(wiki, ns, partitions);
+
+        List<Part<String>> parts = new ArrayList<>();
+        for (int i = 0; i <= bounds.size(); i++) {
+            WQuery wq = new WQuery(wiki, qut);
+            if (qut == WQuery.ALLPAGES)
+                wq.set("apnamespace", "" + ns.v);
+            if (i > 0)
+                wq.set(prefix + "from", bounds.get(i - 1));
+
+            String upper = i < bounds.size() ? bounds.get(i) : null;
+            if (upper != null)
+                wq.set(prefix + "to", upper);
+
+            parts.add(new Part<>(wq, r -> r.listComp(qut.id).stream().map(jo -> GSONP.getStr(jo, "title"))
+                    .filter(t -> upper == null || !wiki.nss(t).equals(upper)).collect(Collectors.toList())));
+        }
+
+        return run(wiki, parts, ordered);
+    }
+
+    /**
+     * Chooses the boundaries of {@code partitions} title ranges from a sample of random titles.
+     *
+     * @param wiki The Wiki to query
+     * @param ns The namespace to sample titles from.
+     * @param partitions The number of ranges to create.
+     * @return The sorted, distinct titles (without namespace prefix) which start each range but the first. May be shorter than {@code partitions - 1} if
+     *         the namespace is small.
+     */
+    private static List<String> sampleBounds(Wiki wiki, NS ns, int partitions) {
+        if (partitions < 2)
+            return new ArrayList<>();
+
+        List<String> sample = wiki.nss(wiki.getRandomPages(Math.min(partitions * 20, wiki.getConfig().maxResultLimit), ns));
+        sample.sort(TITLE_ORDER);
+
+        List<String> l = new ArrayList<>();
+        for (int i = 1; i < partitions && !sample.isEmpty(); i++) {
+            String s = sample.get(i * sample.size() / partitions);
+            if (l.isEmpty() || TITLE_ORDER.compare(l.get(l.size() - 1), s) < 0)
+                l.add(s);
+        }
+
+        return l;
+    }
+
+    /**
+     * Gets the bytes of the UTF-8 database key of a title, i.e. with spaces replaced by underscores.
+     *
+     * @param title The title, without namespace prefix.
+     * @return The bytes of the database key of {@code title}.
+     */
+    private static byte[] dbKey(String title) {
+        return title.replace(' ', '_').getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Fetches each partition on a separate thread, following its continuation chain to the end. Each partition buffers at most
+     * {@link #BUFFERED_REPLIES} replies which have not been consumed yet, and waits for the caller to catch up after that.
+     *
+     * @param <T> The type of item returned by each partition
+     * @param wiki The Wiki being queried, used for logging.
+     * @param parts The partitions to fetch.
+     * @param ordered Set true to return the items of each partition in turn, in the order of {@code parts}. Otherwise, items are returned as soon as they
+     *                are fetched.
+     * @return A Stream of the items of every partition. Closing it stops all partitions.
+     */
+    static <T> Stream<T> run(Wiki wiki, List<Part<T>> parts, boolean ordered) {
+        // a unique marker for the end of a partition
+        List<T> end = new ArrayList<>(0);
+
+        // the first error which stopped a partition, reported to the caller after that partition's end marker
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        int threads = Math.max(1, Math.min(parts.size(), MAX_THREADS));
+        List<BlockingQueue<List<T>>> ql = new ArrayList<>();
+        BlockingQueue<List<T>> shared = new ArrayBlockingQueue<>(BUFFERED_REPLIES * threads);
+        for (int i = 0; i < parts.size(); i++)
+            ql.add(ordered ? new ArrayBlockingQueue<>(BUFFERED_REPLIES) : shared);
+
+        ExecutorService pool = Workers.newPool(threads, "partition");
+        for (int i = 0; i < parts.size(); i++) {
+            Part<T> p = parts.get(i);
+            BlockingQueue<List<T>> q = ql.get(i);
+
+            pool.execute(RequestScheduler.inherit(() -> {
+                try {
+                    while (p.wq.has()) {
+                        QReply r = p.wq.next();
+                        if (r == QReply.NULL_REPLY) {
+                            if (p.wq.hasFailed())
+                                failure.compareAndSet(null, new IllegalStateException("Query failed, even after retrying"));
+                            break;
+                        }
+
+                        List<T> l = p.extract.apply(r);
+                        if (!l.isEmpty())
+                            q.put(l);
+                    }
+                } catch (InterruptedException e) {
+                    return; // the Stream was closed
+                } catch (Throwable e) {
+                    WikiLogger.error(wiki, "Error while fetching partition", e);
+                    failure.compareAndSet(null, e);
+                }
+
+                try {
+                    q.put(end);
+                } catch (InterruptedException e) {
+                    // the Stream was closed
+                }
+            }));
+        }
+        pool.shutdown();
+
+        Runnable close = () -> {
+            parts.forEach(p -> p.wq.cancel());
+            pool.shutdownNow();
+        };
+
+        Iterator<List<T>> it = new Iterator<>() {
+            /**
+             * The index of the queue being drained, and the number of partitions which have ended.
+             */
+            private int curr = 0, ended = 0;
+
+            /**
+             * The next chunk of items, or null if it has not been taken yet.
+             */
+            private List<T> next;
+
+            /**
+             * The error which stopped this iterator, if any.
+             */
+            private IllegalStateException error;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && ended < parts.size()) {
+                    if (error != null)
+                        throw error;
+
+                    List<T> l = take(ql.get(curr));
+                    if (l == end) {
+                        if (failure.get() != null) {
+                            close.run();
+                            throw error = new IllegalStateException("A partition of the query could not be fetched", failure.get());
+                        }
+
+                        ended++;
+                        if (ordered)
+                            curr++;
+                    } else
+                        next = l;
+                }
+
+                return next != null;
+            }
+
+            @Override
+            public List<T> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                List<T> l = next;
+                next = null;
+                return l;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED), false).flatMap(List::stream).onClose(close);
+    }
+
+    /**
+     * Takes the next chunk of items from a partition's queue, blocking until it is available.
+     *
+     * @param <T> The type of item in each chunk
+     * @param q The queue to take from
+     * @return The next chunk of items.
+     */
+    private static <T> List<T> take(BlockingQueue<List<T>> q) {
+        try {
+            return q.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for partitioned query results", e);
+        }
+    }
+
+    /**
+     * A partition of a query: a WQuery covering one range, and a function which extracts items from each of its replies.
+     *
+     * @param <T> The type of item returned by this partition
+     */
+    static final class Part<T> {
+        /**
+         * The WQuery covering this partition's range.
+         */
+        private final WQuery wq;
+
+        /**
+         * Extracts the items from each reply.
+         */
+        private final Function<QReply, List<T>> extract;
+
+        /**
+         * Constructor, creates a new Part.
+         *
+         * @param wq The WQuery covering this partition's range.
+         * @param extract Extracts the items from each reply.
+         */
+        Part(WQuery wq, Function<QReply, List<T>> extract) {
+            this.wq = wq;
+            this.extract = extract;
+        }
+    }
+}
@@ -0,0 +1,695 @@
+package org.fastily.jwiki.core;
+
+import org.fastily.jwiki.core.WParser.WTemplate;
+import org.fastily.jwiki.core.WParser.WikiText;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Splits wikitext into templates, template arguments, comments, headings and extension tags, like MediaWiki's preprocessor does when building the
+ * {@code parsetree} returned by {@code action=parse}. This lets {@link WParser#parseLocal(String)} build WikiText objects without querying the server.
+ * This follows {@code Preprocessor_Hash} in MediaWiki core, for pages being viewed (rather than transcluded), including its handling of unbalanced
+ * braces, pipes in links, and equals signs at the start of a line.
+ *
+ * @author Fastily
+ */
+class Preprocessor {
+    /**
+     * Tags which are output as ignored text, while their contents are parsed.
+     */
+    private static final Set<String> IGNORED_TAGS = Set.of("noinclude", "/noinclude", "onlyinclude", "/onlyinclude");
+
+    /**
+     * Tags which are output as ignored text along with their contents.
+     */
+    private static final Set<String> IGNORED_ELEMENTS = Set.of("includeonly");
+
+    /**
+     * Tags which may be left unclosed, in which case they run to the end of the text.
+     */
+    private static final Set<String> ALLOW_MISSING_END_TAG = Set.of("includeonly", "noinclude", "onlyinclude");
+
+    /**
+     * Matches the name of a tag or the start of a comment, immediately after a {@code <}. Cached per set of extension tags.
+     */
+    private static final Map<Set<String>, Pattern> elementPatterns = new ConcurrentHashMap<>();
+
+    /**
+     * The wikitext being parsed.
+     */
+    private final String text;
+
+    /**
+     * Matches the name of a tag or the start of a comment, immediately after a {@code <}.
+     */
+    private final Pattern elements;
+
+    /**
+     * The pieces of wikitext which are opened but not yet closed, innermost first.
+     */
+    private final Deque<Piece> stack = new ArrayDeque<>();
+
+    /**
+     * The top-level nodes.
+     */
+    private final List<Object> root = new ArrayList<>();
+
+    /**
+     * Constructor, creates a new Preprocessor.
+     *
+     * @param text The wikitext to parse
+     * @param tags The names of the extension tags whose contents are not parsed, in lowercase.
+     */
+    Preprocessor(String text, Set<String> tags) {
+        this.text = text;
+        elements = elementPatterns.computeIfAbsent(tags, k -> Pattern.compile(String.format("(%s)(?:\\s|/>|>)|(!--)",
+                Stream.of(k, IGNORED_ELEMENTS, IGNORED_TAGS).flatMap(Set::stream).map(Pattern::quote).collect(Collectors.joining("|"))),
+                Pattern.CASE_INSENSITIVE));
+    }
+
+    /**
+     * Parses the wikitext of this Preprocessor.
+     *
+     * @return A WikiText representation of the wikitext.
+     */
+    WikiText parse() {
+        int len = text.length(), i = 0;
+        boolean fakeLineStart = true, noMoreGT = false;
+        Set<String> noMoreClosingTag = new HashSet<>();
+        Map<String, Pattern> closeTags = new HashMap<>();
+
+        while (true) {
+            Piece top = stack.peek();
+            List<Object> accum = accum();
+            boolean findPipe = top != null && top.open != '\n' && top.open != '[',
+                    findEquals = findPipe && top.parts.size() > 1 && top.currentPart().eqpos < 0, inHeading = top != null && top.open == '\n';
+            char closing = top == null ? 0 : top.close();
+
+            String found;
+            char c = 0;
+            if (fakeLineStart)
+                found = "line-start";
+            else {
+                int start = i;
+                while (i < len && !isSearched(text.charAt(i), closing, findPipe, findEquals))
+                    i++;
+                if (i > start)
+                    addLiteral(accum, text.substring(start, i));
+
+                if (i >= len) {
+                    if (closing != '\n')
+                        break;
+                    found = "line-end"; // finish off the heading
+                } else {
+                    c = text.charAt(i);
+                    if (c == '|')
+                        found = "pipe";
+                    else if (c == '=')
+                        found = "equals";
+                    else if (c == '<')
+                        found = "angle";
+                    else if (c == '\n')
+                        found = inHeading ? "line-end" : "line-start";
+                    else if (c == closing)
+                        found = "close";
+                    else if (c == '{' || c == '[')
+                        found = "open";
+                    else {
+                        addLiteral(accum, String.valueOf(c));
+                        i++;
+                        continue;
+                    }
+                }
+            }
+
+            switch (found) {
+                case "angle": {
+                    Matcher m = elements.matcher(text).region(i + 1, len);
+                    if (!m.lookingAt()) {
+                        addLiteral(accum, "<");
+                        i++;
+                        break;
+                    }
+
+                    if (m.group(2) != null) {
+                        fakeLineStart = comment(accum, i);
+                        i = ((Node) accum.get(accum.size() - 1)).end;
+                        break;
+                    }
+
+                    String name = m.group(1), lowerName = name.toLowerCase();
+                    int attrStart = i + name.length() + 1, tagEnd = noMoreGT ? -1 : text.indexOf('>', attrStart);
+                    if (tagEnd < 0) {
+                        noMoreGT = true;
+                        addLiteral(accum, "<");
+                        i++;
+                        break;
+                    }
+
+                    if (IGNORED_TAGS.contains(lowerName)) {
+                        accum.add(new Node(Node.RAW, text.substring(i, tagEnd + 1), tagEnd + 1));
+                        i = tagEnd + 1;
+                        break;
+                    }
+
+                    int tagStart = i;
+                    if (text.charAt(tagEnd - 1) == '/')
+                        i = tagEnd + 1;
+                    else {
+                        Matcher close = noMoreClosingTag.contains(name) ? null : closeTags.computeIfAbsent(name,
+                                k -> Pattern.compile("</" + Pattern.quote(k) + "\\s*>", Pattern.CASE_INSENSITIVE)).matcher(text);
+                        if (close != null && close.find(tagEnd + 1))
+                            i = close.end();
+                        else if (ALLOW_MISSING_END_TAG.contains(name))
+                            i = len;
+                        else {
+                            addLiteral(accum, text.substring(tagStart, tagEnd + 1));
+                            i = tagEnd + 1;
+                            noMoreClosingTag.add(name);
+                            break;
+                        }
+                    }
+
+                    // extension tags and ignored elements are both plain text in a WikiText
+                    accum.add(new Node(Node.RAW, text.substring(tagStart, i), i));
+                    break;
+                }
+                case "line-start": {
+                    if (fakeLineStart)
+                        fakeLineStart = false;
+                    else {
+                        addLiteral(accum, "\n");
+                        i++;
+                    }
+
+                    int count = span(i, '=', 6);
+                    if (count > 0 && !(count == 1 && findEquals)) { // a single '=' in a template part is more likely a name/value separator
+                        Piece p = new Piece('\n', count, i, false);
+                        addLiteral(p.currentPart().out, "=".repeat(count));
+                        stack.push(p);
+                        i += count;
+                    }
+                    break;
+                }
+                case "line-end": {
+                    Part part = top.currentPart();
+                    int searchStart = i - spanBack(i, " \t");
+                    if (part.commentEnd != Part.UNSET && searchStart - 1 == part.commentEnd) {
+                        searchStart = part.visualEnd;
+                        searchStart -= spanBack(searchStart, " \t");
+                    }
+
+                    int count = top.count, equalsLength = spanBack(searchStart, "=");
+                    if (equalsLength > 0) {
+                        if (searchStart - equalsLength == top.startPos) // a line of only equals signs
+                            count = equalsLength < 3 ? 0 : Math.min(6, (equalsLength - 1) / 2);
+                        else
+                            count = Math.min(equalsLength, count);
+                    } else
+                        count = 0;
+
+                    stack.pop();
+                    List<Object> parent = accum();
+                    if (count > 0) {
+                        Node h = new Node(Node.HEADING, null, i);
+                        h.children = part.out;
+                        parent.add(h);
+                    } else
+                        addAll(parent, part.out);
+
+                    // do not advance, the line break may start another heading
+                    break;
+                }
+                case "open": {
+                    int count = span(i, c, Integer.MAX_VALUE);
+                    if (count >= 2)
+                        stack.push(new Piece(c, count, i, i > 0 && text.charAt(i - 1) == '\n'));
+                    else
+                        addLiteral(accum, String.valueOf(c).repeat(count));
+                    i += count;
+                    break;
+                }
+                case "close": {
+                    int maxCount = top.count, count = span(i, c, maxCount), max = top.open == '{' ? 3 : 2;
+                    int matchingCount = count > max ? max : top.open == '{' ? (count >= 2 ? count : 0) : (count == 2 ? 2 : 0);
+                    if (matchingCount <= 0) {
+                        addLiteral(accum, text.substring(i, i + count));
+                        i += count;
+                        break;
+                    }
+
+                    List<Object> element = new ArrayList<>();
+                    if (top.open == '[') {
+                        element.addAll(top.breakSyntax(matchingCount));
+                        addLiteral(element, text.substring(i, i + matchingCount));
+                    } else {
+                        int start = top.startPos + top.count - matchingCount, end = i + matchingCount;
+                        if (matchingCount == 3)
+                            element.add(new Node(Node.RAW, text.substring(start, end), end));
+                        else {
+                            Node t = new Node(Node.TEMPLATE, null, end);
+                            t.children = top.parts.get(0).out;
+                            t.parts = top.parts.subList(1, top.parts.size());
+                            element.add(t);
+                        }
+                    }
+
+                    i += matchingCount;
+                    stack.pop();
+
+                    // re-add the piece if it still has enough unmatched opening braces
+                    if (matchingCount < top.count) {
+                        Piece p = new Piece(top.open, top.count - matchingCount, top.startPos, top.lineStart);
+                        if (p.count >= 2)
+                            stack.push(p);
+                        else
+                            addLiteral(accum(), String.valueOf(p.open).repeat(p.count));
+                    }
+
+                    addAll(accum(), element);
+                    break;
+                }
+                case "pipe":
+                    top.parts.add(new Part());
+                    i++;
+                    break;
+                case "equals":
+                    accum.add(new Node(Node.RAW, "=", i + 1));
+                    top.currentPart().eqpos = accum.size() - 1;
+                    i++;
+                    break;
+                default:
+                    throw new IllegalStateException(found);
+            }
+        }
+
+        // output any unclosed pieces as plain text
+        for (Iterator<Piece> it = stack.descendingIterator(); it.hasNext(); )
+            addAll(root, it.next().breakSyntax(-1));
+
+        WikiText wt = new WikiText();
+        toWikiText(root, wt);
+        return wt;
+    }
+
+    /**
+     * Reads a comment, along with the rest of its line if it is on a line of its own. PRECONDITION: {@code i} is the position of the comment's
+     * {@code <}. POSTCONDITION: the last node of {@code accum} is the comment.
+     *
+     * @param accum The nodes to add the comment to.
+     * @param i The position of the comment.
+     * @return True if the line of the comment was consumed, so that the next character is at the start of a line.
+     */
+    private boolean comment(List<Object> accum, int i) {
+        int len = text.length(), endPos = text.indexOf("-->", i + 4);
+        if (endPos < 0) { // unclosed, runs to the end
+            accum.add(new Node(Node.COMMENT, text.substring(i), len));
+            return false;
+        }
+
+        // Comments alone on a line (ignoring spaces) take the line with them, so they don't leave blank lines.
+        int wsStart = i - spanBack(i, " \t"), wsEnd = endPos + 2 + span(endPos + 3, " \t");
+
+        List<int[]> comments = new ArrayList<>();
+        comments.add(new int[] { wsStart, wsEnd });
+        while (text.startsWith("<!--", wsEnd + 1)) {
+            int c = text.indexOf("-->", wsEnd + 4);
+            if (c < 0)
+                break;
+
+            c += 2 + span(c + 3, " \t");
+            comments.add(new int[] { wsEnd + 1, c });
+            wsEnd = c;
+        }
+
+        int startPos;
+        boolean eatLine = wsStart > 0 && text.charAt(wsStart - 1) == '\n' && wsEnd + 1 < len && text.charAt(wsEnd + 1) == '\n';
+        if (eatLine) {
+            int wsLength = i - wsStart;
+            Object last = accum.isEmpty() ? null : accum.get(accum.size() - 1);
+            if (wsLength > 0 && last instanceof StringBuilder) {
+                StringBuilder b = (StringBuilder) last;
+                if (b.length() >= wsLength && b.substring(b.length() - wsLength).chars().allMatch(ch -> ch == ' ' || ch == '\t'))
+                    b.setLength(b.length() - wsLength);
+            }
+
+            for (int j = 0; j < comments.size() - 1; j++)
+                accum.add(new Node(Node.COMMENT, text.substring(comments.get(j)[0], comments.get(j)[1] + 1), comments.get(j)[1] + 1));
+
+            int[] lastComment = comments.get(comments.size() - 1);
+            startPos = lastComment[0];
+            endPos = lastComment[1] + 1;
+        } else {
+            startPos = i;
+            endPos += 2;
+        }
+
+        Piece top = stack.peek();
+        if (top != null) {
+            Part part = top.currentPart();
+            if (part.commentEnd == Part.UNSET || part.commentEnd != wsStart - 1)
+                part.visualEnd = wsStart;
+            part.commentEnd = endPos;
+        }
+
+        accum.add(new Node(Node.COMMENT, text.substring(startPos, endPos + 1), endPos + 1));
+        return eatLine;
+    }
+
+    /**
+     * Gets the list which nodes are currently added to.
+     *
+     * @return The current part of the innermost open piece, or the top-level nodes.
+     */
+    private List<Object> accum() {
+        Piece top = stack.peek();
+        return top == null ? root : top.currentPart().out;
+    }
+
+    /**
+     * Test if a character may start or end a piece of wikitext.
+     *
+     * @param c The character to test
+     * @param closing The closing character of the innermost open piece, or 0.
+     * @param findPipe Set true if pipes separate parts of the innermost open piece.
+     * @param findEquals Set true if an equals sign would separate the name and value of the current part.
+     * @return True if {@code c} should be examined.
+     */
+    private static boolean isSearched(char c, char closing, boolean findPipe, boolean findEquals) {
+        return c == '[' || c == '{' || c == '<' || c == '\n' || closing != 0 && c == closing || findPipe && c == '|' || findEquals && c == '=';
+    }
+
+    /**
+     * Counts the occurrences of a character starting at a position.
+     *
+     * @param from The position to start at.
+     * @param c The character to count
+     * @param max The maximum number of characters to count.
+     * @return The number of consecutive {@code c} at {@code from}.
+     */
+    private int span(int from, char c, int max) {
+        int n = 0;
+        while (n < max && from + n < text.length() && text.charAt(from + n) == c)
+            n++;
+        return n;
+    }
+
+    /**
+     * Counts the characters from a set starting at a position.
+     *
+     * @param from The position to start at.
+     * @param chars The characters to count
+     * @return The number of consecutive characters in {@code chars} at {@code from}.
+     */
+    private int span(int from, String chars) {
+        int n = 0;
+        while (from + n < text.length() && chars.indexOf(text.charAt(from + n)) >= 0)
+            n++;
+        return n;
+    }
+
+    /**
+     * Counts the characters from a set immediately before a position.
+     *
+     * @param before The position to count backwards from, exclusive.
+     * @param chars The characters to count
+     * @return The number of consecutive characters in {@code chars} before {@code before}.
+     */
+    private int spanBack(int before, String chars) {
+        int n = 0;
+        while (before - n > 0 && chars.indexOf(text.charAt(before - n - 1)) >= 0)
+            n++;
+        return n;
+    }
+
+    /**
+     * Adds text to a list of nodes, merging it with the last node if that is also text.
+     *
+     * @param accum The nodes to add to
+     * @param s The text to add
+     */
+    private static void addLiteral(List<Object> accum, String s) {
+        if (!accum.isEmpty() && accum.get(accum.size() - 1) instanceof StringBuilder)
+            ((StringBuilder) accum.get(accum.size() - 1)).append(s);
+        else
+            accum.add(new StringBuilder(s));
+    }
+
+    /**
+     * Adds nodes to a list of nodes, merging adjacent text.
+     *
+     * @param accum The nodes to add to
+     * @param nodes The nodes to add
+     */
+    private static void addAll(List<Object> accum, List<Object> nodes) {
+        for (Object o : nodes)
+            if (o instanceof StringBuilder)
+                addLiteral(accum, o.toString());
+            else
+                accum.add(o);
+    }
+
+    /**
+     * Appends nodes to a WikiText, as {@link WParser#parseTree(String)} would for the equivalent parse tree.
+     *
+     * @param nodes The nodes to append
+     * @param wt The WikiText to append to
+     */
+    private static void toWikiText(List<Object> nodes, WikiText wt) {
+        for (Object o : nodes) {
+            if (o instanceof StringBuilder) {
+                if (((StringBuilder) o).length() > 0)
+                    wt.append(o.toString());
+                continue;
+            }
+
+            Node n = (Node) o;
+            if (n.type == Node.TEMPLATE)
+                wt.append(toTemplate(n, wt));
+            else if (n.type == Node.HEADING)
+                toWikiText(n.children, wt);
+            else
+                wt.append(n.text);
+        }
+    }
+
+    /**
+     * Creates a WTemplate from a template node.
+     *
+     * @param n The template node
+     * @param parent The WikiText the WTemplate is to belong to
+     * @return The WTemplate
+     */
+    private static WTemplate toTemplate(Node n, WikiText parent) {
+        WTemplate t = new WTemplate(parent);
+        t.title = directText(n.children).strip();
+
+        int index = 1;
+        for (Part p : n.parts) {
+            String name;
+            List<Object> value;
+            if (p.eqpos >= 0) {
+                name = directText(p.out.subList(0, p.eqpos)).strip();
+                value = p.out.subList(p.eqpos + 1, p.out.size());
+            } else {
+                name = String.valueOf(index++);
+                value = p.out;
+            }
+
+            WikiText wt = new WikiText();
+            toWikiText(value, wt);
+            t.put(name, wt);
+        }
+
+        return t;
+    }
+
+    /**
+     * Gets the text which is not part of any comment, tag or nested template, as is done for the titles and parameter names of templates.
+     *
+     * @param nodes The nodes to get text from
+     * @return The concatenated text of {@code nodes}.
+     */
+    private static String directText(List<Object> nodes) {
+        StringBuilder b = new StringBuilder();
+        for (Object o : nodes)
+            if (o instanceof StringBuilder)
+                b.append((StringBuilder) o);
+
+        return b.toString();
+    }
+
+    /**
+     * A piece of wikitext opened by braces, brackets or a heading, which may be closed later.
+     */
+    private static class Piece {
+        /**
+         * The opening character: <code>{</code>, {@code [}, or a newline for headings.
+         */
+        final char open;
+
+        /**
+         * The number of opening characters which are not yet matched. For headings, the number of equals signs.
+         */
+        final int count;
+
+        /**
+         * The position of the first opening character.
+         */
+        final int startPos;
+
+        /**
+         * Flag indicating if this piece starts a line.
+         */
+        final boolean lineStart;
+
+        /**
+         * The parts of this piece, separated by pipes.
+         */
+        final List<Part> parts = new ArrayList<>();
+
+        /**
+         * Constructor, creates a new Piece.
+         *
+         * @param open The opening character
+         * @param count The number of opening characters.
+         * @param startPos The position of the first opening character.
+         * @param lineStart Flag indicating if this piece starts a line.
+         */
+        Piece(char open, int count, int startPos, boolean lineStart) {
+            this.open = open;
+            this.count = count;
+            this.startPos = startPos;
+            this.lineStart = lineStart;
+            parts.add(new Part());
+        }
+
+        /**
+         * Gets the closing character of this piece.
+         *
+         * @return The closing character.
+         */
+        char close() {
+            return open == '{' ? '}' : open == '[' ? ']' : '\n';
+        }
+
+        /**
+         * Gets the part currently being read.
+         *
+         * @return The last part.
+         */
+        Part currentPart() {
+            return parts.get(parts.size() - 1);
+        }
+
+        /**
+         * Converts this piece back into plain text, for when it is not closed.
+         *
+         * @param openingCount The number of opening characters to output, or -1 for all of them.
+         * @return The nodes of this piece, as plain text where possible.
+         */
+        List<Object> breakSyntax(int openingCount) {
+            List<Object> l = new ArrayList<>();
+            if (open == '\n') {
+                addAll(l, parts.get(0).out);
+                return l;
+            }
+
+            addLiteral(l, String.valueOf(open).repeat(openingCount < 0 ? count : openingCount));
+            for (int i = 0; i < parts.size(); i++) {
+                if (i > 0)
+                    addLiteral(l, "|");
+                addAll(l, parts.get(i).out);
+            }
+
+            return l;
+        }
+    }
+
+    /**
+     * A part of a piece of wikitext, e.g. the title or a parameter of a template.
+     */
+    private static class Part {
+        /**
+         * Marks positions which are not set.
+         */
+        static final int UNSET = Integer.MIN_VALUE;
+
+        /**
+         * The nodes of this part.
+         */
+        final List<Object> out = new ArrayList<>();
+
+        /**
+         * The index in {@link #out} of the equals sign separating the name and value, or -1.
+         */
+        int eqpos = -1;
+
+        /**
+         * The position of the end of the last comment in this part, and the position where the text before it ends.
+         */
+        int commentEnd = UNSET, visualEnd = UNSET;
+    }
+
+    /**
+     * A node which is not plain text.
+     */
+    private static class Node {
+        /**
+         * Node types. Raw nodes are extension tags, ignored text, template arguments and stray equals signs, which are plain text in a WikiText but are
+         * left out of template titles and parameter names.
+         */
+        static final int RAW = 0, COMMENT = 1, HEADING = 2, TEMPLATE = 3;
+
+        /**
+         * The type of this node.
+         */
+        final int type;
+
+        /**
+         * The wikitext of this node, for raw nodes and comments.
+         */
+        final String text;
+
+        /**
+         * The position after the end of this node.
+         */
+        final int end;
+
+        /**
+         * The nodes contained by this node: the contents of a heading, or the title of a template.
+         */
+        List<Object> children;
+
+        /**
+         * The parameters of a template.
+         */
+        List<Part> parts;
+
+        /**
+         * Constructor, creates a new Node.
+         *
+         * @param type The type of this node.
+         * @param text The wikitext of this node, or null.
+         * @param end The position after the end of this node.
+         */
+        Node(int type, String text, int end) {
+            this.type = type;
+            this.text = text;
+            this.end = end;
+        }
+    }
+}
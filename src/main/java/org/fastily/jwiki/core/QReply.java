@@ -87,17 +87,23 @@ public class QReply extends AReply {
     public Map<String, JsonElement> propComp(String kk, String vk) {
         Map<String, JsonElement> m = new HashMap<>();
 
-        JsonObject x = GSONP.getNestedJO(this.response, defaultPropPTJ);
-        if (x == null)
-            return m;
-
-        for (JsonObject jo : GSONP.getJOofJO(x)) {
+        for (JsonObject jo : pages()) {
             m.put(GSONP.getStr(jo, kk), jo.has(vk) ? jo.get(vk).deepCopy() : null);
         }
 
         return normalize(m);
     }
 
+    /**
+     * Gets each page in a {@code prop} query Response. Pages are returned as a JsonObject keyed by page id with {@code formatversion=1}, and as a JsonArray
+     * with {@code formatversion=2}.
+     *
+     * @return The pages in this Response, or an empty List if there are none.
+     */
+    public List<JsonObject> pages() {
+        return GSONP.nestedHas(this.response, defaultPropPTJ) ? GSONP.getAllJO(this.response.getAsJsonObject("query").get("pages")) : new ArrayList<>();
+    }
+
     /**
      * Performs simple {@code meta} query Response comprehension.
      *
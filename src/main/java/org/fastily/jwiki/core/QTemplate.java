@@ -1,5 +1,6 @@
 package org.fastily.jwiki.core;
 
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -23,6 +24,12 @@ public class QTemplate {
      */
     protected final String id;
 
+    /**
+     * Optional {@code *prop} parameter which selects the fields returned for each item (e.g. {@code rcprop}). Will be null if not applicable in this
+     * definition.
+     */
+    protected final String propKey;
+
     /**
      * Constructor, creates a new QueryUnitTemplate
      *
@@ -41,14 +48,52 @@ public class QTemplate {
      * @param id The id to use to lookup a query result for queries created with this Object.
      */
     public QTemplate(Map<String, String> defaultFields, String limString, String id) {
+        this(defaultFields, limString, id, null);
+    }
+
+    /**
+     * Constructor, creates a new QueryUnitTemplate with a limit String and a field selection parameter.
+     *
+     * @param defaultFields The default parameters for the query described by this QueryUnitTemplate.
+     * @param limString The limit String parameter. Optional, set null to disable.
+     * @param id The id to use to lookup a query result for queries created with this Object.
+     * @param propKey The {@code *prop} parameter which selects the fields returned for each item. Optional, set null to disable. See
+     *                {@link WQuery#project(QTemplate, String...)}.
+     */
+    public QTemplate(Map<String, String> defaultFields, String limString, String id, String propKey) {
         this.defaultFields = defaultFields;
         this.id = id;
+        this.propKey = propKey;
 
         this.limString = limString;
         if (limString != null)
             defaultFields.put(limString, "max");
     }
 
+    /**
+     * Creates a generator version of this {@code list} QTemplate, which can be combined with {@code prop} QTemplates to query the properties of every listed
+     * page in one pass. The {@code list} module becomes the {@code generator}, and every other parameter is prefixed with {@code g}, e.g.
+     * {@code cmtitle} becomes {@code gcmtitle}.
+     *
+     * @return A new QTemplate which uses this {@code list} module as a generator.
+     * @throws IllegalStateException If this QTemplate is not a {@code list} query.
+     * @see GQuery
+     */
+    public QTemplate asGenerator() {
+        String list = defaultFields.get("list");
+        if (list == null || list.contains("|"))
+            throw new IllegalStateException(String.format("Only single list query templates can be used as generators -> %s", defaultFields));
+
+        Map<String, String> m = new HashMap<>();
+        m.put("generator", list);
+        defaultFields.forEach((k, v) -> {
+            if (!k.equals("list"))
+                m.put("g" + k, v);
+        });
+
+        return new QTemplate(m, limString == null ? null : "g" + limString, id, propKey == null ? null : "g" + propKey);
+    }
+
     public WQuery createQuery(Wiki wiki) {
         return new WQuery(wiki, this);
     }
@@ -0,0 +1,365 @@
+package org.fastily.jwiki.core;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.fastily.jwiki.util.FL;
+import org.fastily.jwiki.util.GSONP;
+import org.fastily.jwiki.util.GroupQueue;
+import org.fastily.jwiki.util.Tuple;
+import org.fastily.jwiki.util.Workers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Publishes the results of one or more WQuery objects as a {@link Flow.Publisher}, for use with reactive pipelines. Queries are made only while the
+ * subscriber has outstanding demand: the next query is sent once every item of the previous reply has been requested and delivered. Cancelling the
+ * subscription aborts the request in flight. For example, to stream recent changes into a subscriber:
+ *
+ * <pre>
+ * QueryPublisher.list(new WQuery(wiki, WQuery.RECENTCHANGES), WQuery.RECENTCHANGES, RCEntry.class).subscribe(subscriber);
+ * </pre>
+ * <p>
+ * A QueryPublisher may only be subscribed to once, because the queries it runs are consumed as they go. Signals are delivered serially from a worker
+ * thread.
+ *
+ * @param <T> The type of item published
+ * @author Fastily
+ */
+public final class QueryPublisher<T> implements Flow.Publisher<T> {
+    /**
+     * The queries to run, in order.
+     */
+    private final Iterator<WQuery> queries;
+
+    /**
+     * Extracts the items to publish from each reply.
+     */
+    private final Function<QReply, ? extends Collection<T>> extract;
+
+    /**
+     * The Executor to fetch and deliver items on. Null to use a dedicated thread for the subscription.
+     */
+    private final Executor executor;
+
+    /**
+     * Flag indicating if this QueryPublisher was subscribed to.
+     */
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * Constructor, creates a new QueryPublisher.
+     *
+     * @param queries The queries to run, in order. Each is created lazily when the previous one is exhausted.
+     * @param extract Extracts the items to publish from each reply.
+     * @param executor The Executor to fetch and deliver items on. Optional, set null to use a dedicated thread.
+     */
+    public QueryPublisher(Iterator<WQuery> queries, Function<QReply, ? extends Collection<T>> extract, Executor executor) {
+        this.queries = queries;
+        this.extract = extract;
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a QueryPublisher for the results of a WQuery.
+     *
+     * @param <T> The type of item published
+     * @param wq The WQuery to run.
+     * @param extract Extracts the items to publish from each reply.
+     * @return A new QueryPublisher
+     */
+    public static <T> QueryPublisher<T> of(WQuery wq, Function<QReply, ? extends Collection<T>> extract) {
+        return new QueryPublisher<>(List.of(wq).iterator(), extract, null);
+    }
+
+    /**
+     * Creates a QueryPublisher for a {@code list} query, which deserializes each entry into a {@code dwrap} type, e.g. {@link WQuery#RECENTCHANGES} into
+     * {@link org.fastily.jwiki.dwrap.RCEntry} or {@link WQuery#LOGEVENTS} into {@link org.fastily.jwiki.dwrap.LogEntry}.
+     *
+     * @param <T> The type of item published
+     * @param wq The WQuery to run.
+     * @param qut The {@code list} QTemplate which {@code wq} was created with.
+     * @param c The class to deserialize each entry into.
+     * @return A new QueryPublisher
+     */
+    public static <T> QueryPublisher<T> list(WQuery wq, QTemplate qut, Class<T> c) {
+        return of(wq, r -> r.listComp(qut.id).stream().map(jo -> GSONP.gson.fromJson(jo, c)).collect(Collectors.toList()));
+    }
+
+    /**
+     * Creates a QueryPublisher for a {@code prop} query on a set of titles, like the methods of {@link MQuery}. Titles are queried in groups of
+     * {@link Conf#getMaxGroupQuery()}, and each entry is deserialized into a {@code dwrap} type, e.g. {@link WQuery#REVISIONS} into
+     * {@link org.fastily.jwiki.dwrap.Revision} or {@link WQuery#IMAGEINFO} into {@link org.fastily.jwiki.dwrap.ImageInfo}.
+     *
+     * @param <T> The type of each entry
+     * @param wiki The Wiki to query
+     * @param titles The titles to query for.
+     * @param qut The {@code prop} QTemplate to use.
+     * @param c The class to deserialize each entry into.
+     * @return A new QueryPublisher of (title, entry) tuples.
+     */
+    public static <T> QueryPublisher<Tuple<String, T>> prop(Wiki wiki, Collection<String> titles, QTemplate qut, Class<T> c) {
+        if (FL.containsNull(titles))
+            throw new IllegalArgumentException("null is not an acceptable title to query with");
+
+        GroupQueue<String> gq = new GroupQueue<>(titles, wiki.getConfig().maxGroupQuery);
+        Iterator<WQuery> queries = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return gq.has();
+            }
+
+            @Override
+            public WQuery next() {
+                return new WQuery(wiki, qut).set("titles", gq.poll());
+            }
+        };
+
+        return new QueryPublisher<>(queries, r -> {
+            List<Tuple<String, T>> l = new ArrayList<>();
+            for (JsonObject page : r.pages()) {
+                JsonElement e = page.get(qut.id);
+                if (e != null && e.isJsonArray())
+                    for (JsonObject jo : GSONP.getJAofJO(e.getAsJsonArray()))
+                        l.add(new Tuple<>(GSONP.getStr(page, "title"), GSONP.gson.fromJson(jo, c)));
+            }
+            return l;
+        }, null);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+
+                }
+
+                @Override
+                public void cancel() {
+
+                }
+            });
+            subscriber.onError(new IllegalStateException("A QueryPublisher may only be subscribed to once"));
+            return;
+        }
+
+        Subscription s = new Subscription(subscriber);
+        subscriber.onSubscribe(s);
+    }
+
+    /**
+     * A subscription to a QueryPublisher. Signals are delivered by a drain loop, which runs on at most one thread at a time.
+     */
+    private final class Subscription implements Flow.Subscription {
+        /**
+         * The subscriber
+         */
+        private final Flow.Subscriber<? super T> subscriber;
+
+        /**
+         * The number of items requested but not yet delivered.
+         */
+        private final AtomicLong demand = new AtomicLong();
+
+        /**
+         * The number of times the drain loop was scheduled while it was running, or 0 if it is not running.
+         */
+        private final AtomicInteger wip = new AtomicInteger();
+
+        /**
+         * Items fetched but not yet delivered. Only accessed by the drain loop.
+         */
+        private final Deque<T> buffer = new ArrayDeque<>();
+
+        /**
+         * The query currently being run, or null.
+         */
+        private volatile WQuery current;
+
+        /**
+         * Flag indicating if this subscription was cancelled or terminated.
+         */
+        private volatile boolean done = false;
+
+        /**
+         * An error to signal from the drain loop, e.g. for a non-positive request, or null.
+         */
+        private volatile Throwable error;
+
+        /**
+         * The Executor to run the drain loop on.
+         */
+        private final Executor exec;
+
+        /**
+         * Constructor, creates a new Subscription.
+         *
+         * @param subscriber The subscriber
+         */
+        private Subscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+            this.exec = executor != null ? executor : Workers.newPool(1, "publisher");
+        }
+
+        @Override
+        public void request(long n) {
+            if (done)
+                return;
+
+            if (n <= 0) {
+                if (error == null)
+                    error = new IllegalArgumentException("Requested a non-positive number of items: " + n);
+            } else
+                demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            if (done)
+                return;
+
+            done = true;
+            WQuery wq = current;
+            if (wq != null)
+                wq.cancel();
+
+            execute(); // let the drain loop release resources
+        }
+
+        /**
+         * Runs the drain loop, unless it is running already or this subscription was cancelled or terminated.
+         */
+        private void schedule() {
+            if (!done)
+                execute();
+        }
+
+        /**
+         * Runs the drain loop, unless it is running already. After cancellation, a drain loop which has just shut down the Executor may reject this, in
+         * which case there is nothing left to do.
+         */
+        private void execute() {
+            if (wip.getAndIncrement() == 0)
+                try {
+                    exec.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    if (!done)
+                        throw e;
+                }
+        }
+
+        /**
+         * Delivers buffered items while there is demand, fetching the next reply whenever the buffer is empty.
+         */
+        private void drain() {
+            int missed = 1;
+            do {
+                try {
+                    Throwable e = error;
+                    if (e != null)
+                        terminate(e);
+
+                    while (!done && demand.get() > 0) {
+                        if (buffer.isEmpty() && !fill())
+                            break;
+
+                        if (!buffer.isEmpty()) {
+                            subscriber.onNext(buffer.poll());
+                            demand.decrementAndGet();
+                        }
+                    }
+
+                    // complete without waiting for demand once everything was delivered
+                    if (!done && buffer.isEmpty() && exhausted())
+                        terminate(null);
+                } catch (Throwable e) {
+                    terminate(e);
+                }
+
+                if (done)
+                    shutdown();
+            } while ((missed = wip.addAndGet(-missed)) != 0);
+        }
+
+        /**
+         * Fetches the next reply of the current query, moving on to the next query if the current one is exhausted.
+         *
+         * @return True if items may have been added to the buffer, or false if every query is exhausted.
+         */
+        private boolean fill() {
+            WQuery wq = current;
+            while (wq == null || !wq.has()) {
+                if (wq != null && wq.hasFailed())
+                    throw new IllegalStateException("Query failed after all retries");
+                if (!queries.hasNext())
+                    return false;
+
+                current = wq = queries.next();
+            }
+
+            QReply r = wq.next();
+            if (done)
+                return false;
+            if (r == QReply.NULL_REPLY && wq.hasFailed())
+                throw new IllegalStateException("Query failed after all retries");
+
+            if (r != QReply.NULL_REPLY)
+                buffer.addAll(extract.apply(r));
+
+            return true;
+        }
+
+        /**
+         * Test if every query has been run to completion.
+         *
+         * @return True if there is nothing left to fetch.
+         */
+        private boolean exhausted() {
+            WQuery wq = current;
+            return (wq == null || !wq.has()) && !queries.hasNext() && (wq == null || !wq.hasFailed());
+        }
+
+        /**
+         * Sends a terminal signal to the subscriber, unless one was already sent or the subscription was cancelled.
+         *
+         * @param e The error to signal, or null to signal completion.
+         */
+        private void terminate(Throwable e) {
+            if (done)
+                return;
+
+            done = true;
+            buffer.clear();
+            if (e == null)
+                subscriber.onComplete();
+            else
+                subscriber.onError(e);
+        }
+
+        /**
+         * Shuts down the dedicated thread of this subscription, if any.
+         */
+        private void shutdown() {
+            buffer.clear();
+            if (executor == null)
+                ((ExecutorService) exec).shutdown();
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package org.fastily.jwiki.core;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Decides which waiting request is sent next. Requests are served by priority class, then round-robin between Wiki objects so one busy Wiki cannot starve
+ * the others, and each request must also fit within the {@link AdaptiveLimiter} of its host. A Wiki shares its scheduler with the Wiki objects created by
+ * {@link Wiki#getWiki(String)}; unrelated Wiki objects can share one with {@link Wiki.Builder#withScheduler(RequestScheduler)}.
+ * <p>
+ * The priority of requests is set per thread, e.g.
+ *
+ * <pre>
+ * RequestScheduler.withPriority(Priority.BULK, () -&gt; MQuery.getPageText(wiki, titles));
+ * </pre>
+ *
+ * @author Fastily
+ */
+public class RequestScheduler {
+    /**
+     * The priority classes of requests. Waiting requests of a higher priority are always sent before those of a lower priority.
+     */
+    public enum Priority {
+        /**
+         * Latency-sensitive requests, e.g. made on behalf of a waiting user. These are never held back by the queue bound.
+         */
+        INTERACTIVE,
+
+        /**
+         * The default priority.
+         */
+        NORMAL,
+
+        /**
+         * Background requests, e.g. large crawls.
+         */
+        BULK
+    }
+
+    /**
+     * The priority of requests made by the current thread.
+     */
+    private static final ThreadLocal<Priority> current = ThreadLocal.withInitial(() -> Priority.NORMAL);
+
+    /**
+     * The maximum number of requests in flight at once, across all hosts.
+     */
+    private final int maxInFlight;
+
+    /**
+     * The maximum number of waiting requests. Threads making {@link Priority#NORMAL} or {@link Priority#BULK} requests block once this many are waiting.
+     */
+    private final int maxQueued;
+
+    /**
+     * The waiting requests of each priority class, grouped by Wiki in round-robin order.
+     */
+    private final Map<Priority, LinkedHashMap<Wiki, Deque<Ticket>>> queues = new EnumMap<>(Priority.class);
+
+    /**
+     * The number of requests in flight and waiting.
+     */
+    private int inFlight = 0, queued = 0;
+
+    /**
+     * Guards the state of this scheduler. A ReentrantLock rather than {@code synchronized}, so that waiting virtual threads do not pin their carrier thread.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled whenever requests are granted or the queue shrinks.
+     */
+    private final Condition changed = lock.newCondition();
+
+    /**
+     * Constructor, creates a new RequestScheduler with room for 64 requests in flight and 1024 waiting requests.
+     */
+    public RequestScheduler() {
+        this(64, 1024);
+    }
+
+    /**
+     * Constructor, creates a new RequestScheduler.
+     *
+     * @param maxInFlight The maximum number of requests in flight at once, across all hosts.
+     * @param maxQueued The maximum number of waiting requests before new requests block.
+     */
+    public RequestScheduler(int maxInFlight, int maxQueued) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxQueued = Math.max(1, maxQueued);
+
+        for (Priority p : Priority.values())
+            queues.put(p, new LinkedHashMap<>());
+    }
+
+    /**
+     * Gets the priority of requests made by the current thread.
+     *
+     * @return The priority of the current thread.
+     */
+    public static Priority currentPriority() {
+        return current.get();
+    }
+
+    /**
+     * Runs {@code action} with the specified request priority on the current thread.
+     *
+     * @param <T> The type of result returned by {@code action}
+     * @param priority The priority of requests made by {@code action}
+     * @param action The action to run
+     * @return The result of {@code action}
+     */
+    public static <T> T withPriority(Priority priority, Supplier<T> action) {
+        Priority prev = current.get();
+        current.set(priority);
+        try {
+            return action.get();
+        } finally {
+            current.set(prev);
+        }
+    }
+
+    /**
+     * Wraps {@code action} so that it runs with the request priority of the current thread, even if run by another thread (e.g. a thread pool).
+     *
+     * @param action The action to wrap
+     * @return The wrapped action
+     */
+    public static Runnable inherit(Runnable action) {
+        Priority p = current.get();
+        return () -> withPriority(p, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * Wraps {@code action} so that it runs with the request priority of the current thread, even if run by another thread (e.g. a thread pool).
+     *
+     * @param <T> The type of result returned by {@code action}
+     * @param action The action to wrap
+     * @return The wrapped action
+     */
+    public static <T> Supplier<T> inherit(Supplier<T> action) {
+        Priority p = current.get();
+        return () -> withPriority(p, action);
+    }
+
+    /**
+     * Waits until a request to {@code wiki}'s host may be sent, then reserves a slot for it in this scheduler and in {@code limiter}. Every call must be
+     * followed by a call to {@link #release(AdaptiveLimiter, boolean)}.
+     *
+     * @param wiki The Wiki making the request
+     * @param limiter The limiter of {@code wiki}'s host.
+     * @throws InterruptedIOException If interrupted while waiting.
+     */
+    public void acquire(Wiki wiki, AdaptiveLimiter limiter) throws InterruptedIOException {
+        Priority p = current.get();
+        Ticket t = new Ticket(limiter);
+
+        lock.lock();
+        try {
+            while (p != Priority.INTERACTIVE && queued >= maxQueued)
+                changed.await();
+
+            queues.get(p).computeIfAbsent(wiki, k -> new ArrayDeque<>()).add(t);
+            queued++;
+            dispatch();
+
+            while (!t.granted)
+                changed.await();
+        } catch (InterruptedException e) {
+            if (t.granted)
+                release(limiter);
+            else if (remove(p, wiki, t))
+                queued--;
+
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send a request");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a slot reserved with {@link #acquire(Wiki, AdaptiveLimiter)}, and reports the outcome of the request to {@code limiter}.
+     *
+     * @param limiter The limiter of the host the request was sent to.
+     * @param overloaded True if the request timed out, or failed with a server error, {@code maxlag}, or {@code ratelimited}.
+     */
+    public void release(AdaptiveLimiter limiter, boolean overloaded) {
+        limiter.release(overloaded);
+        released();
+    }
+
+    /**
+     * Releases a slot reserved with {@link #acquire(Wiki, AdaptiveLimiter)} without adjusting the limit of {@code limiter}, for requests whose outcome
+     * says nothing about the load of the server.
+     *
+     * @param limiter The limiter of the host the request was to be sent to.
+     */
+    public void release(AdaptiveLimiter limiter) {
+        limiter.release();
+        released();
+    }
+
+    /**
+     * Hands the slot of a finished request to the next waiting request, if any.
+     */
+    private void released() {
+        lock.lock();
+        try {
+            inFlight--;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of requests in flight, across all hosts.
+     *
+     * @return The number of requests in flight.
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of waiting requests.
+     *
+     * @return The number of waiting requests.
+     */
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Grants slots to waiting requests, highest priority first and round-robin between Wiki objects, for as long as there is room in this scheduler and
+     * in each request's host limiter. PRECONDITION: the caller holds {@link #lock}.
+     */
+    private void dispatch() {
+        boolean progress = true;
+        while (progress && inFlight < maxInFlight) {
+            progress = false;
+
+            for (LinkedHashMap<Wiki, Deque<Ticket>> m : queues.values()) {
+                Iterator<Map.Entry<Wiki, Deque<Ticket>>> it = m.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Wiki, Deque<Ticket>> e = it.next();
+                    Ticket t = e.getValue().peek();
+                    if (t == null || !t.limiter.tryAcquire())
+                        continue;
+
+                    e.getValue().poll();
+                    t.granted = true;
+                    inFlight++;
+                    queued--;
+
+                    // move this Wiki to the back of the line
+                    it.remove();
+                    if (!e.getValue().isEmpty())
+                        m.put(e.getKey(), e.getValue());
+
+                    progress = true;
+                    break;
+                }
+
+                if (progress)
+                    break;
+            }
+        }
+
+        changed.signalAll();
+    }
+
+    /**
+     * Removes a waiting request. PRECONDITION: the caller holds {@link #lock}.
+     *
+     * @param p The priority of the request
+     * @param wiki The Wiki which made the request
+     * @param t The request to remove
+     * @return True if the request was waiting.
+     */
+    private boolean remove(Priority p, Wiki wiki, Ticket t) {
+        Deque<Ticket> q = queues.get(p).get(wiki);
+        if (q == null || !q.remove(t))
+            return false;
+
+        if (q.isEmpty())
+            queues.get(p).remove(wiki);
+
+        return true;
+    }
+
+    /**
+     * A waiting request.
+     */
+    private static class Ticket {
+        /**
+         * The limiter of the host the request will be sent to.
+         */
+        private final AdaptiveLimiter limiter;
+
+        /**
+         * Flag indicating if the request may be sent.
+         */
+        private boolean granted = false;
+
+        /**
+         * Constructor, creates a new Ticket.
+         *
+         * @param limiter The limiter of the host the request will be sent to.
+         */
+        private Ticket(AdaptiveLimiter limiter) {
+            this.limiter = limiter;
+        }
+    }
+}
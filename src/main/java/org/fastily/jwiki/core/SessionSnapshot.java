@@ -0,0 +1,186 @@
+package org.fastily.jwiki.core;
+
+import com.google.gson.JsonObject;
+import org.fastily.jwiki.util.GSONP;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The bootstrap state of a Wiki (namespaces, login status, tokens, and cookies), in a form which can be written to and read from a local file. This allows
+ * short-lived programs to skip the bootstrap queries and logins performed by {@link Wiki.Builder#build()}.
+ *
+ * @author Fastily
+ */
+final class SessionSnapshot {
+    /**
+     * The format version of snapshot files. Files with a different version are ignored.
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * The format version of this snapshot.
+     */
+    private int version;
+
+    /**
+     * The API endpoint of the Wiki this snapshot was taken from.
+     */
+    private String baseURL;
+
+    /**
+     * The time this snapshot was taken at, in milliseconds since the epoch.
+     */
+    private long savedAt;
+
+    /**
+     * The logged in user, or null if the Wiki was anonymous.
+     */
+    private String uname;
+
+    /**
+     * The CSRF token.
+     */
+    private String token;
+
+    /**
+     * Flag indicating whether the logged in user is a bot.
+     */
+    private boolean isBot;
+
+    /**
+     * Flag indicating whether the logged in user has the {@code apihighlimits} right.
+     */
+    private boolean highLimits;
+
+    /**
+     * The raw {@code namespaces} and {@code namespacealiases} data backing the Wiki's namespace manager.
+     */
+    private JsonObject namespaces;
+
+    /**
+     * The contents of the cookie jar. Legend - [ domain : [ key : value ] ].
+     */
+    private Map<String, Map<String, String>> cookies;
+
+    /**
+     * Constructor, used by Gson.
+     */
+    private SessionSnapshot() {
+
+    }
+
+    /**
+     * Writes the bootstrap state of {@code wiki} to {@code p}. The file is made readable by the owner only where supported, since it contains session
+     * cookies, and is replaced atomically.
+     *
+     * @param wiki The Wiki to take a snapshot of
+     * @param p The file to write to
+     * @throws IOException If the file could not be written.
+     */
+    static void save(Wiki wiki, Path p) throws IOException {
+        SessionSnapshot s = new SessionSnapshot();
+        s.version = VERSION;
+        s.baseURL = wiki.conf.baseURL.toString();
+        s.savedAt = System.currentTimeMillis();
+        s.uname = wiki.conf.uname;
+        s.token = wiki.conf.token;
+        s.isBot = wiki.conf.isBot;
+        s.highLimits = wiki.conf.highLimits;
+        s.namespaces = wiki.nsl().source;
+
+        s.cookies = new HashMap<>();
+        wiki.apiclient.getCookieJar().getCj().forEach((k, v) -> s.cookies.put(k, new HashMap<>(v)));
+
+        // written to an owner-only temporary file first, so the cookies are never readable by others and a crash never leaves a partial file
+        Path dir = p.toAbsolutePath().getParent();
+        Path tmp = dir.getFileSystem().supportedFileAttributeViews().contains("posix")
+                ? Files.createTempFile(dir, p.getFileName().toString(), ".tmp", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+                : Files.createTempFile(dir, p.getFileName().toString(), ".tmp");
+        try {
+            Files.writeString(tmp, GSONP.gson.toJson(s));
+            Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Reads a snapshot from {@code p}.
+     *
+     * @param wiki The Wiki the snapshot will be applied to. Used to check that the snapshot was taken from the same API endpoint.
+     * @param p The file to read
+     * @return The snapshot, or null if {@code p} does not exist or does not contain a usable snapshot of {@code wiki}.
+     */
+    static SessionSnapshot load(Wiki wiki, Path p) {
+        if (!Files.isRegularFile(p))
+            return null;
+
+        try {
+            SessionSnapshot s = GSONP.gson.fromJson(Files.readString(p), SessionSnapshot.class);
+            if (s != null && s.version == VERSION && wiki.conf.baseURL.toString().equals(s.baseURL) && s.namespaces != null)
+                return s;
+
+            WikiLogger.info(wiki, "Ignoring session snapshot {}, it does not belong to this Wiki", p);
+        } catch (Exception e) {
+            WikiLogger.error(wiki, "Error while reading session snapshot", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Determines if this snapshot was taken by {@code user}.
+     *
+     * @param user The username used to log in, or null for anonymous Wiki objects. BotPassword suffixes (i.e. {@code @BotName}) are ignored.
+     * @return True if this snapshot belongs to {@code user}.
+     */
+    boolean isFor(String user) {
+        if (user == null || uname == null)
+            return user == null && uname == null;
+
+        int i = user.indexOf('@');
+        return uname.equals(i > 0 ? user.substring(0, i) : user);
+    }
+
+    /**
+     * Determines if this snapshot is older than {@code maxAge}.
+     *
+     * @param maxAge The maximum age of a snapshot which is not stale.
+     * @return True if this snapshot is stale.
+     */
+    boolean isStale(Duration maxAge) {
+        return System.currentTimeMillis() - savedAt > maxAge.toMillis();
+    }
+
+    /**
+     * Restores the cookies of this snapshot into {@code wiki}'s cookie jar.
+     *
+     * @param wiki The Wiki to apply cookies to.
+     */
+    void applyCookies(Wiki wiki) {
+        if (cookies != null)
+            cookies.forEach((k, v) -> wiki.apiclient.getCookieJar().getCj().computeIfAbsent(k, x -> new ConcurrentHashMap<>()).putAll(v));
+    }
+
+    /**
+     * Restores the namespaces, login status, and tokens of this snapshot into {@code wiki}.
+     *
+     * @param wiki The Wiki to apply this snapshot to.
+     */
+    void applyState(Wiki wiki) {
+        wiki.nsl = new NS.NSManager(namespaces);
+
+        wiki.conf.uname = uname;
+        wiki.conf.token = token;
+        wiki.conf.isBot = isBot;
+        wiki.conf.setHighLimits(highLimits);
+    }
+}
@@ -7,6 +7,7 @@ import okhttp3.Response;
 import okio.BufferedSource;
 import okio.Okio;
 import org.fastily.jwiki.dwrap.TokenizedResponse;
+import org.fastily.jwiki.metrics.JfrEvents;
 import org.fastily.jwiki.util.FL;
 import org.fastily.jwiki.util.GSONP;
 
@@ -117,7 +118,20 @@ public class WAction {
                     upperLimit <<= 1;
                 int wait = ThreadLocalRandom.current().nextInt(upperLimit); // exclusive bounds means this is a proper truncated binary exponential backoff impl
                 WikiLogger.warn(wiki, "Ratelimited by server when performing {} '{}', sleeping {} seconds.", isPOST ? "POST" : "GET", action, wait);
-                Thread.sleep(wait * 1000L);
+                if (wiki.stats != null)
+                    wiki.stats.rateLimitBackoffs.increment();
+
+                JfrEvents.RateLimitWait event = new JfrEvents.RateLimitWait();
+                event.begin();
+                try {
+                    Thread.sleep(wait * 1000L);
+                } finally {
+                    if (event.shouldCommit()) {
+                        event.action = action;
+                        event.backoffLimit = upperLimit;
+                        event.commit();
+                    }
+                }
                 return doAction(wiki, action, applyToken, fl, isPOST, upperLimit);
             } else {
                 return reply;
@@ -146,7 +160,7 @@ public class WAction {
         WikiLogger.info(wiki, "Adding text to {}", title);
 
         Map<String, String> pl = FL.pMap("title", title, append ? "appendtext" : "prependtext", text, "summary", summary);
-        if (wiki.conf.isBot)
+        if (wiki.getConfig().isBot())
             pl.put("bot", "");
 
         return postAction(wiki, "edit", true, pl);
@@ -165,7 +179,7 @@ public class WAction {
         WikiLogger.info(wiki, "Editing {}", title);
 
         Map<String, String> pl = FL.pMap("title", title, "text", text, "summary", summary);
-        if (wiki.conf.isBot)
+        if (wiki.getConfig().isBot())
             pl.put("bot", "");
 
         AReply reply = null;
@@ -293,12 +307,16 @@ public class WAction {
             while ((c = cm.nextChunk()) != null) {
                 WikiLogger.trace(wiki, "Uploading chunk [{} of {}] of '{}'", cm.chunkCnt, cm.totalChunks, file);
 
-                Map<String, String> pl = FL.pMap("format", "json", "filename", title, "token", wiki.conf.token, "ignorewarnings", "1", "stash", "1", "offset", "" + c.offset, "filesize",
+                Map<String, String> pl = FL.pMap("format", "json", "filename", title, "token", wiki.getConfig().getToken(), "ignorewarnings", "1", "stash", "1", "offset", "" + c.offset, "filesize",
                         "" + c.filesize);
                 if (filekey != null)
                     pl.put("filekey", filekey);
 
-                for (int i = 0; i < 5; i++) {
+                JfrEvents.UploadChunk event = new JfrEvents.UploadChunk();
+                event.begin();
+
+                int i = 0;
+                for (; i < 5; i++) {
                     try {
                         Response r = wiki.apiclient.multiPartFilePOST(FL.pMap("action", "upload"), pl, fn, c.bl);
                         if (!r.isSuccessful()) {
@@ -313,6 +331,16 @@ public class WAction {
                         WikiLogger.error(wiki, "Encountered an error, retrying - {}", i, e);
                     }
                 }
+
+                event.end();
+                if (event.shouldCommit()) {
+                    event.title = title;
+                    event.offset = c.offset;
+                    event.size = c.bl.length;
+                    event.attempts = Math.min(i + 1, 5);
+                    event.success = i < 5;
+                    event.commit();
+                }
             }
 
             for (int i = 0; i < 3; i++) {
@@ -1,8 +1,12 @@
 package org.fastily.jwiki.core;
 
 import com.google.gson.JsonParser;
+import org.fastily.jwiki.metrics.JfrEvents;
 import org.fastily.jwiki.util.FL;
 import org.fastily.jwiki.util.GSONP;
+import org.fastily.jwiki.util.GroupQueue;
+import org.fastily.jwiki.util.Tuple;
+import org.fastily.jwiki.util.Workers;
 
 import javax.xml.XMLConstants;
 import javax.xml.namespace.QName;
@@ -16,13 +20,27 @@ import javax.xml.stream.events.XMLEvent;
 import java.io.StringReader;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Parses wikitext into a DOM-style, manipulatable format that is easy to work with.
@@ -38,6 +56,23 @@ public class WParser {
         XML_FACTORY.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
     }
 
+    /**
+     * The extension tags of a typical Wikimedia wiki, whose contents are not parsed.
+     */
+    public static final Set<String> EXTENSION_TAGS = Set.of("categorytree", "ce", "charinsert", "chem", "gallery", "graph", "hiero", "imagemap",
+            "indicator", "inputbox", "mapframe", "maplink", "math", "nowiki", "poem", "pre", "ref", "references", "score", "section", "source",
+            "syntaxhighlight", "templatedata", "templatestyles", "timeline");
+
+    /**
+     * The number of pages whose text is fetched at once by {@link #parsePages(Wiki, Collection, int)}.
+     */
+    public static final int BATCH_SIZE = 50;
+
+    /**
+     * Matches runs of whitespace in template titles.
+     */
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
     /**
      * No constructors needed
      */
@@ -53,18 +88,17 @@ public class WParser {
     private static WikiText parse(Wiki wiki, Map<String, String> queryParams) {
         queryParams.put("prop", "parsetree");
         try {
-            XMLEventReader r = XML_FACTORY.createXMLEventReader(new StringReader(GSONP
-                    .getStr(GSONP.getNestedJO(JsonParser.parseString(wiki.basicPOST("parse", queryParams).getBody()).getAsJsonObject(),
-                            FL.toSAL("parse", "parsetree")), "*")));
+            String xml = GSONP.getStr(GSONP.getNestedJO(JsonParser.parseString(wiki.basicPOST("parse", queryParams).getBody()).getAsJsonObject(),
+                    FL.toSAL("parse", "parsetree")), "*");
 
-            WikiText root = new WikiText();
-            while (r.hasNext()) {
-                XMLEvent e = r.nextEvent();
+            JfrEvents.WikiTextParse event = new JfrEvents.WikiTextParse();
+            event.begin();
+            WikiText root = parseTree(xml);
 
-                if (e.isStartElement() && nameIs(e.asStartElement(), "template"))
-                    root.append(parseTemplate(r, root));
-                else if (e.isCharacters())
-                    root.append(cToStr(e));
+            event.end();
+            if (event.shouldCommit()) {
+                event.length = xml.length();
+                event.commit();
             }
             return root;
         } catch (XMLStreamException e) {
@@ -73,6 +107,64 @@ public class WParser {
         }
     }
 
+    /**
+     * Parses a parse tree, as returned by {@code action=parse&prop=parsetree} or {@code action=expandtemplates&prop=parsetree}, into a WikiText object.
+     * Extension tags (e.g. {@code <ref>}) and template arguments (e.g. <code>{{{1}}}</code>) are kept as plain text.
+     *
+     * @param xml The parse tree to parse
+     * @return A WikiText representation of {@code xml}
+     * @throws XMLStreamException On parse error.
+     */
+    public static WikiText parseTree(String xml) throws XMLStreamException {
+        XMLEventReader r = XML_FACTORY.createXMLEventReader(new StringReader(xml));
+
+        WikiText root = new WikiText();
+        while (r.hasNext()) {
+            XMLEvent e = r.nextEvent();
+
+            if (e.isStartElement() && nameIs(e.asStartElement(), "template"))
+                root.append(parseTemplate(r, root));
+            else if (e.isStartElement() && isRaw(e.asStartElement()))
+                root.append(toRaw(r, e.asStartElement()));
+            else if (e.isCharacters())
+                root.append(cToStr(e));
+        }
+
+        return root;
+    }
+
+    /**
+     * Parses wikitext into a WikiText object locally, without querying the server. Produces the same result as {@link #parseText(Wiki, String)},
+     * provided that {@link #EXTENSION_TAGS} covers the extension tags installed on the Wiki.
+     *
+     * @param text The wikitext to parse
+     * @return A WikiText representation of {@code text}
+     */
+    public static WikiText parseLocal(String text) {
+        return parseLocal(text, EXTENSION_TAGS);
+    }
+
+    /**
+     * Parses wikitext into a WikiText object locally, without querying the server.
+     *
+     * @param text The wikitext to parse
+     * @param tags The names of the extension tags whose contents are not parsed, in lowercase. The tags installed on a Wiki are listed by
+     * {@code action=query&meta=siteinfo&siprop=extensiontags}.
+     * @return A WikiText representation of {@code text}
+     */
+    public static WikiText parseLocal(String text, Set<String> tags) {
+        JfrEvents.WikiTextParse event = new JfrEvents.WikiTextParse();
+        event.begin();
+        WikiText root = new Preprocessor(text, tags).parse();
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.length = text.length();
+            event.commit();
+        }
+        return root;
+    }
+
     /**
      * Parses the text of a page into a WikiText object.
      *
@@ -95,6 +187,94 @@ public class WParser {
         return parse(wiki, FL.pMap("text", text, "contentmodel", "wikitext"));
     }
 
+    /**
+     * Parses the text of many pages locally, on every core. See {@link #parsePages(Wiki, Collection, int)}.
+     *
+     * @param wiki The Wiki to use
+     * @param titles The titles of the pages to parse.
+     * @return A Stream of (title, WikiText) tuples.
+     */
+    public static Stream<Tuple<String, WikiText>> parsePages(Wiki wiki, Collection<String> titles) {
+        return parsePages(wiki, titles, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Parses the text of many pages locally. The text of {@value #BATCH_SIZE} pages at a time is fetched with {@link MQuery#getPageText(Wiki, Collection)}
+     * and parsed with {@link #parseLocal(String)}, with up to {@code threads} batches in progress at once, so memory use does not grow with the number of
+     * titles. Results are returned in batch order, as soon as each batch is parsed, under the titles given. Missing pages are returned as an empty
+     * WikiText. Close the Stream to stop early. If a batch could not be fetched or parsed, the Stream throws an IllegalStateException once it reaches
+     * that batch.
+     *
+     * @param wiki The Wiki to use
+     * @param titles The titles of the pages to parse.
+     * @param threads The number of batches to fetch and parse at once.
+     * @return A Stream of (title, WikiText) tuples.
+     */
+    public static Stream<Tuple<String, WikiText>> parsePages(Wiki wiki, Collection<String> titles, int threads) {
+        WikiLogger.info(wiki, "Parsing {} pages in batches of {}", titles.size(), BATCH_SIZE);
+
+        GroupQueue<String> gq = new GroupQueue<>(titles, BATCH_SIZE);
+        ExecutorService pool = Workers.newPool(Math.max(1, threads), "parse");
+        Deque<Future<List<Tuple<String, WikiText>>>> window = new ArrayDeque<>();
+
+        Iterator<List<Tuple<String, WikiText>>> it = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                while (gq.has() && window.size() < Math.max(1, threads)) {
+                    List<String> batch = gq.poll();
+                    Supplier<List<Tuple<String, WikiText>>> task = RequestScheduler.inherit(() -> parseBatch(wiki, batch));
+                    window.add(pool.submit(task::get));
+                }
+
+                if (window.isEmpty())
+                    pool.shutdown();
+
+                return !window.isEmpty();
+            }
+
+            @Override
+            public List<Tuple<String, WikiText>> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                try {
+                    return window.poll().get();
+                } catch (ExecutionException e) {
+                    pool.shutdownNow();
+                    throw new IllegalStateException("A batch of pages could not be fetched or parsed", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    pool.shutdownNow();
+                    throw new IllegalStateException("Interrupted while parsing pages", e);
+                }
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED), false).flatMap(List::stream)
+                .onClose(pool::shutdownNow);
+    }
+
+    /**
+     * Fetches and parses the text of a batch of pages.
+     *
+     * @param wiki The Wiki to use
+     * @param batch The titles of the pages to parse.
+     * @return The parsed pages, in the order of {@code batch}. Titles normalized by the server are returned as they were given.
+     */
+    private static List<Tuple<String, WikiText>> parseBatch(Wiki wiki, List<String> batch) {
+        // normalized titles are also mapped under the titles in the batch, so only those are parsed
+        Map<String, String> m = MQuery.getPageText(wiki, batch);
+
+        List<Tuple<String, WikiText>> l = new ArrayList<>();
+        for (String title : batch) {
+            String text = m.get(title);
+            if (text != null)
+                l.add(new Tuple<>(title, parseLocal(text)));
+        }
+
+        return l;
+    }
+
     /**
      * Parses a template. This function is to be called upon encountering a {@code template} StartElement.
      *
@@ -150,6 +330,8 @@ public class WParser {
 
             if (e.isStartElement() && nameIs(e.asStartElement(), "template"))
                 root.append(parseTemplate(r, root));
+            else if (e.isStartElement() && isRaw(e.asStartElement()))
+                root.append(toRaw(r, e.asStartElement()));
             else if (e.isCharacters())
                 root.append(cToStr(e));
             else if (e.isEndElement() && nameIs(e.asEndElement(), "value"))
@@ -158,6 +340,59 @@ public class WParser {
         return root;
     }
 
+    /**
+     * Test if a StartElement is kept as plain text, rather than parsed into a WikiText. Extension tags are listed as their name, attributes, contents and
+     * close tag, so these are reassembled into the original wikitext.
+     *
+     * @param e The StartElement to check
+     * @return True if {@code e} is an extension tag or template argument.
+     */
+    private static boolean isRaw(StartElement e) {
+        return nameIs(e, "ext") || nameIs(e, "tplarg");
+    }
+
+    /**
+     * Reassembles the wikitext of an element of a parse tree. This function is to be called upon encountering a StartElement.
+     *
+     * @param r The XMLEventReader to use.
+     * @param se The StartElement which was just read from {@code r}.
+     * @return The wikitext of the element.
+     * @throws XMLStreamException On parse error.
+     */
+    private static String toRaw(XMLEventReader r, StartElement se) throws XMLStreamException {
+        String name = se.getName().getLocalPart();
+        if (name.equals("ext")) {
+            Map<String, String> parts = new HashMap<>();
+            while (r.hasNext()) {
+                XMLEvent e = r.nextEvent();
+                if (e.isStartElement())
+                    parts.put(e.asStartElement().getName().getLocalPart(), getNextElementText(r));
+                else if (e.isEndElement())
+                    break;
+            }
+
+            String inner = parts.get("inner");
+            return "<" + parts.getOrDefault("name", "") + parts.getOrDefault("attr", "")
+                    + (inner == null ? "/>" : ">" + inner + parts.getOrDefault("close", ""));
+        }
+
+        String braces = name.equals("template") ? "{{" : name.equals("tplarg") ? "{{{" : "";
+        StringBuilder b = new StringBuilder(braces);
+        while (r.hasNext()) {
+            XMLEvent e = r.nextEvent();
+            if (e.isStartElement()) {
+                if (!braces.isEmpty() && nameIs(e.asStartElement(), "part"))
+                    b.append('|');
+                b.append(toRaw(r, e.asStartElement()));
+            } else if (e.isCharacters())
+                b.append(cToStr(e));
+            else if (e.isEndElement())
+                break;
+        }
+
+        return b.append(braces.replace('{', '}')).toString();
+    }
+
     /**
      * Gets the next Characters event(s) contained by the next pair of XMLEvent objects. Useful because sometimes a pair
      * of XML elements may be followed by more than one Characters event.
@@ -215,6 +450,36 @@ public class WParser {
         return e.getName().getLocalPart().equals(n);
     }
 
+    /**
+     * Removes leading and trailing whitespace from the part of a StringBuilder starting at {@code start}, like {@link String#strip()}.
+     *
+     * @param b The StringBuilder to strip
+     * @param start The index to strip from.
+     */
+    private static void strip(StringBuilder b, int start) {
+        int end = b.length();
+        while (end > start && Character.isWhitespace(b.charAt(end - 1)))
+            end--;
+        b.setLength(end);
+
+        int i = start;
+        while (i < end && Character.isWhitespace(b.charAt(i)))
+            i++;
+        b.delete(start, i);
+    }
+
+    /**
+     * Normalizes a template title for lookup in a {@link WikiText}'s index of templates. Underscores become spaces, runs of whitespace are
+     * collapsed, and the first letter is capitalized. Namespace prefixes are left as is; see {@link WTemplate#normalizeTitle(Wiki)}.
+     *
+     * @param title The title to normalize
+     * @return The normalized title.
+     */
+    private static String indexKey(String title) {
+        String s = WHITESPACE.matcher(String.valueOf(title).replace('_', ' ').strip()).replaceAll(" ");
+        return s.isEmpty() ? s : Character.toUpperCase(s.charAt(0)) + s.substring(1);
+    }
+
     /**
      * Mutable representation of parsed wikitext. May contain Strings and templates.
      *
@@ -222,10 +487,22 @@ public class WParser {
      */
     public static class WikiText {
         /**
-         * Data structure backing wikitext storage.
+         * Data structure backing wikitext storage. Contains Strings, StringBuilders and WTemplates. Text appended once is kept as a String without
+         * copying it; adjacent text is merged into a single StringBuilder, so that appending many small Strings takes linear time.
          */
         protected Deque<Object> l = new ArrayDeque<>();
 
+        /**
+         * The WTemplate this WikiText is a parameter value of, if applicable.
+         */
+        protected WTemplate parent;
+
+        /**
+         * Index of every WTemplate in this WikiText, recursively, by normalized title. Kept up to date as this WikiText and the WTemplates in it
+         * are modified.
+         */
+        private final Map<String, Set<WTemplate>> index = new HashMap<>();
+
         /**
          * Creates a new WikiText object
          *
@@ -243,12 +520,20 @@ public class WParser {
          * @param o The Object to append. Acceptable values are of type String or WTemplate.
          */
         public void append(Object o) {
-            if (o instanceof String)
-                l.add((l.peekLast() instanceof String ? l.pollLast().toString() : "") + o);
-            else if (o instanceof WTemplate) {
+            if (o instanceof String) {
+                Object last = l.peekLast();
+                if (last instanceof StringBuilder)
+                    ((StringBuilder) last).append((String) o);
+                else if (last instanceof String)
+                    l.add(new StringBuilder((String) l.pollLast()).append((String) o));
+                else
+                    l.add(o);
+            } else if (o instanceof WTemplate) {
                 WTemplate t = (WTemplate) o;
                 t.parent = this;
+                t.key = indexKey(t.title);
                 l.add(o);
+                reindex(t.subtree(), true);
             } else
                 throw new IllegalArgumentException("What is '" + o + "' ?");
         }
@@ -289,6 +574,54 @@ public class WParser {
             });
         }
 
+        /**
+         * Recursively finds WTemplate objects with the specified title contained by this WikiText. Titles are compared after normalizing
+         * underscores, whitespace and the case of the first letter. This is a lookup in an index of this WikiText, and does not walk the tree.
+         * Titles should be changed with {@link WTemplate#setTitle(String)} or {@link WTemplate#normalizeTitle(Wiki)} once a WTemplate has been
+         * added to a WikiText, or the index will not reflect the change.
+         *
+         * @param title The title of the WTemplates to find
+         * @return A List of the matching WTemplates in this WikiText, in the order they were added.
+         */
+        public List<WTemplate> getTemplatesR(String title) {
+            String k = indexKey(title);
+            Set<WTemplate> s = index.get(k);
+            if (s == null)
+                return new ArrayList<>();
+
+            return s.stream().filter(t -> indexKey(t.title).equals(k)).collect(Collectors.toList());
+        }
+
+        /**
+         * Adds or removes WTemplates to or from the index of this WikiText and of every WikiText containing it.
+         *
+         * @param tl The WTemplates to add or remove
+         * @param add Set true to add {@code tl}, or false to remove it.
+         */
+        private void reindex(Collection<WTemplate> tl, boolean add) {
+            for (WikiText wt = this; wt != null; wt = wt.parent == null ? null : wt.parent.parent)
+                for (WTemplate t : tl)
+                    if (add)
+                        wt.index.computeIfAbsent(t.key, k -> new LinkedHashSet<>()).add(t);
+                    else {
+                        Set<WTemplate> s = wt.index.get(t.key);
+                        if (s != null && s.remove(t) && s.isEmpty())
+                            wt.index.remove(t.key);
+                    }
+        }
+
+        /**
+         * Gets every WTemplate in this WikiText, recursively, from its index.
+         *
+         * @return A List of all WTemplate objects in this WikiText.
+         */
+        private List<WTemplate> indexed() {
+            List<WTemplate> tl = new ArrayList<>();
+            index.values().forEach(tl::addAll);
+
+            return tl;
+        }
+
         /**
          * Render this WikiText object as a String. Trims whitespace by default.
          */
@@ -303,12 +636,38 @@ public class WParser {
          * @return A String representation of this WikiText.
          */
         public String toString(boolean doTrim) {
-            StringBuilder b = new StringBuilder();
+            StringBuilder b = new StringBuilder(length());
+            render(b);
+            if (doTrim)
+                strip(b, 0);
+
+            return b.toString();
+        }
+
+        /**
+         * Appends the wikitext of this WikiText to a StringBuilder.
+         *
+         * @param b The StringBuilder to append to
+         */
+        private void render(StringBuilder b) {
             for (Object o : l)
-                b.append(o);
+                if (o instanceof CharSequence)
+                    b.append((CharSequence) o);
+                else
+                    ((WTemplate) o).render(b, false);
+        }
 
-            String out = b.toString();
-            return doTrim ? out.strip() : out;
+        /**
+         * Calculates the length of the wikitext of this WikiText, without trimming, so that it may be rendered without resizing the buffer.
+         *
+         * @return The length of the wikitext of this WikiText.
+         */
+        private int length() {
+            int n = 0;
+            for (Object o : l)
+                n += o instanceof CharSequence ? ((CharSequence) o).length() : ((WTemplate) o).length();
+
+            return n;
         }
     }
 
@@ -328,6 +687,11 @@ public class WParser {
          */
         public String title = "";
 
+        /**
+         * The normalized title this WTemplate is indexed by in the WikiText containing it.
+         */
+        private String key;
+
         /**
          * The Map tracking this object's parameters.
          */
@@ -357,11 +721,28 @@ public class WParser {
          */
         public void normalizeTitle(Wiki wiki) // TODO: Account for non-template NS
         {
-            if (wiki.whichNS(title).equals(NS.TEMPLATE))
-                title = wiki.nss(title);
+            String t = title;
+            if (wiki.whichNS(t).equals(NS.TEMPLATE))
+                t = wiki.nss(t);
 
-            title = title.length() <= 1 ? title.toUpperCase() : "" + Character.toUpperCase(title.charAt(0)) + title.substring(1);
-            title = title.replace('_', ' ');
+            t = t.length() <= 1 ? t.toUpperCase() : "" + Character.toUpperCase(t.charAt(0)) + t.substring(1);
+            setTitle(t.replace('_', ' '));
+        }
+
+        /**
+         * Sets the title of this WTemplate, and updates the index of the WikiText containing it.
+         *
+         * @param title The new title
+         */
+        public void setTitle(String title) {
+            if (parent != null)
+                parent.reindex(List.of(this), false);
+
+            this.title = title;
+            key = indexKey(title);
+
+            if (parent != null)
+                parent.reindex(List.of(this), true);
         }
 
         /**
@@ -392,12 +773,22 @@ public class WParser {
          * @param v The value of the parameter; acceptable types are WikiText, String, and WTemplate.
          */
         public void put(String k, Object v) {
+            WikiText wt;
             if (v instanceof WikiText)
-                params.put(k, (WikiText) v);
+                wt = (WikiText) v;
             else if (v instanceof String || v instanceof WTemplate)
-                params.put(k, new WikiText(v));
+                wt = new WikiText(v);
             else
                 throw new IllegalArgumentException(String.format("'%s' is not an acceptable type", v));
+
+            WikiText old = params.put(k, wt);
+            if (old == wt)
+                return;
+
+            detach(old);
+            wt.parent = this;
+            if (parent != null)
+                parent.reindex(wt.indexed(), true);
         }
 
         /**
@@ -419,7 +810,7 @@ public class WParser {
          * @param k Removes the mapping for this key, if possible
          */
         public void remove(String k) {
-            params.remove(k);
+            detach(params.remove(k));
         }
 
         /**
@@ -430,17 +821,54 @@ public class WParser {
                 return;
 
             parent.l.remove(this);
+            parent.reindex(subtree(), false);
             parent = null;
         }
 
         /**
-         * Re-map the a key to a new name.
+         * Re-map the a key to a new name. Does nothing if there is no parameter named {@code oldK}.
          *
          * @param oldK The old name
          * @param newK The new name
          */
         public void remap(String oldK, String newK) {
-            params.put(newK, params.remove(oldK));
+            if (!params.containsKey(oldK))
+                return;
+
+            WikiText v = params.remove(oldK);
+            WikiText old = params.put(newK, v);
+            if (old != v)
+                detach(old);
+        }
+
+        /**
+         * Removes a former parameter value of this WTemplate, and the WTemplates in it, from the index of the WikiText containing this
+         * WTemplate.
+         *
+         * @param wt The former parameter value. Does nothing if null.
+         */
+        private void detach(WikiText wt) {
+            if (wt == null)
+                return;
+
+            wt.parent = null;
+            if (parent != null)
+                parent.reindex(wt.indexed(), false);
+        }
+
+        /**
+         * Gets this WTemplate and every WTemplate in its parameter values, with nested WTemplates first.
+         *
+         * @return A List of the WTemplates in this WTemplate's subtree.
+         */
+        private List<WTemplate> subtree() {
+            List<WTemplate> tl = new ArrayList<>();
+            for (WikiText wt : params.values())
+                if (wt != null)
+                    tl.addAll(wt.indexed());
+
+            tl.add(this);
+            return tl;
         }
 
         /**
@@ -459,16 +887,47 @@ public class WParser {
          * @return A String representation of this Template.
          */
         public String toString(boolean indent) {
-            String base = (indent ? "%n" : "") + "|%s=%s";
+            StringBuilder b = new StringBuilder(length() + (indent ? params.size() * System.lineSeparator().length() + 1 : 0));
+            render(b, indent);
 
-            StringBuilder x = new StringBuilder();
-            for (Map.Entry<String, WikiText> e : params.entrySet())
-                x.append(String.format(base, e.getKey(), e.getValue()));
+            return b.toString();
+        }
+
+        /**
+         * Appends the wikitext of this WTemplate to a StringBuilder. Parameter values are trimmed.
+         *
+         * @param b The StringBuilder to append to
+         * @param indent Set true to add a newline between each parameter.
+         */
+        private void render(StringBuilder b, boolean indent) {
+            b.append("{{").append(title);
+            for (Map.Entry<String, WikiText> e : params.entrySet()) {
+                if (indent)
+                    b.append(System.lineSeparator());
+
+                b.append('|').append(e.getKey()).append('=');
+                int start = b.length();
+                e.getValue().render(b);
+                strip(b, start);
+            }
 
             if (indent)
-                x.append('\n');
+                b.append('\n');
+
+            b.append("}}");
+        }
+
+        /**
+         * Calculates the length of the wikitext of this WTemplate, without indentation and before trimming parameter values.
+         *
+         * @return The maximum length of the wikitext of this WTemplate.
+         */
+        private int length() {
+            int n = String.valueOf(title).length() + 4;
+            for (Map.Entry<String, WikiText> e : params.entrySet())
+                n += e.getKey().length() + 2 + e.getValue().length();
 
-            return String.format("{{%s%s}}", title, x);
+            return n;
         }
 
         /**
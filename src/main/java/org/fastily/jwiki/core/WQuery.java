@@ -1,15 +1,26 @@
 package org.fastily.jwiki.core;
 
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
+import org.fastily.jwiki.dwrap.TokenizedResponse;
 import org.fastily.jwiki.util.FL;
 import org.fastily.jwiki.util.GSONP;
 
 import java.io.IOException;
 import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Wraps the various functions of API functions of {@code action=query}.
@@ -28,6 +39,11 @@ public class WQuery {
      */
     public static final QTemplate ALLPAGES = new QTemplate(FL.pMap("list", "allpages"), "aplimit", "allpages");
 
+    /**
+     * Default parameters for listing all files, by name.
+     */
+    public static final QTemplate ALLIMAGES = new QTemplate(FL.pMap("list", "allimages", "aiprop", ""), "ailimit", "allimages", "aiprop");
+
     /**
      * Default parameters for getting category size info
      */
@@ -51,6 +67,11 @@ public class WQuery {
     public static final QTemplate DUPLICATEFILES = new QTemplate(FL.pMap("prop", "duplicatefiles", "titles", null), "dflimit",
             "duplicatefiles");
 
+    /**
+     * Default parameters for listing pages which transclude a page.
+     */
+    public static final QTemplate EMBEDDEDIN = new QTemplate(FL.pMap("list", "embeddedin", "eititle", null), "eilimit", "embeddedin");
+
     /**
      * Default parameters for determining if a page exists.
      */
@@ -82,7 +103,7 @@ public class WQuery {
      */
     public static final QTemplate IMAGEINFO = new QTemplate(
             FL.pMap("prop", "imageinfo", "iiprop", "canonicaltitle|url|size|sha1|mime|user|timestamp|comment", "titles", null), "iilimit",
-            "imageinfo");
+            "imageinfo", "iiprop");
 
     /**
      * Default parameters for getting links to a page
@@ -98,7 +119,7 @@ public class WQuery {
     /**
      * Default parameters for listing logs.
      */
-    public static final QTemplate LOGEVENTS = new QTemplate(FL.pMap("list", "logevents"), "lelimit", "logevents");
+    public static final QTemplate LOGEVENTS = new QTemplate(FL.pMap("list", "logevents"), "lelimit", "logevents", "leprop");
 
     /**
      * Default parameters for getting page categories.
@@ -109,13 +130,14 @@ public class WQuery {
     /**
      * Default parameters for getting page text.
      */
-    public static final QTemplate PAGETEXT = new QTemplate(FL.pMap("prop", "revisions", "rvprop", "content", "titles", null), null);
+    public static final QTemplate PAGETEXT = new QTemplate(FL.pMap("prop", "revisions", "rvprop", "content", "titles", null),
+            "revisions");
 
     /**
      * Default parameters for listing protected titles.
      */
     public static final QTemplate PROTECTEDTITLES = new QTemplate(
-            FL.pMap("list", "protectedtitles", "ptprop", "timestamp|level|user|comment"), "ptlimit", "protectedtitles");
+            FL.pMap("list", "protectedtitles", "ptprop", "timestamp|level|user|comment"), "ptlimit", "protectedtitles", "ptprop");
 
     /**
      * Default parameters for listing the results of querying Special pages.
@@ -133,7 +155,7 @@ public class WQuery {
      */
     public static final QTemplate RECENTCHANGES = new QTemplate(
             FL.pMap("list", "recentchanges", "rcprop", "title|timestamp|user|comment", "rctype", "edit|new|log"), "rclimit",
-            "recentchanges");
+            "recentchanges", "rcprop");
 
     /**
      * Default parameters for resolving redirects
@@ -144,7 +166,8 @@ public class WQuery {
      * Default parameters for listing page revisions
      */
     public static final QTemplate REVISIONS = new QTemplate(
-            FL.pMap("prop", "revisions", "rvprop", "comment|content|ids|timestamp|user", "titles", null), "rvlimit", "revisions");
+            FL.pMap("prop", "revisions", "rvprop", "comment|content|ids|timestamp|user", "titles", null), "rvlimit", "revisions",
+            "rvprop");
 
     /**
      * Default parameters for listing searches
@@ -184,12 +207,12 @@ public class WQuery {
      * Default parameters for listing user contributions.
      */
     public static final QTemplate USERCONTRIBS = new QTemplate(FL.pMap("list", "usercontribs", "ucuser", null), "uclimit",
-            "usercontribs");
+            "usercontribs", "ucprop");
 
     /**
-     * Default parameters for getting a user's username and id.
+     * Default parameters for getting a user's username, id, groups, and rights.
      */
-    public static final QTemplate USERINFO = new QTemplate(FL.pMap("meta", "userinfo"), null);
+    public static final QTemplate USERINFO = new QTemplate(FL.pMap("meta", "userinfo", "uiprop", "groups|rights"), null);
 
     /**
      * Default parameters for listing users and their rights.
@@ -200,13 +223,23 @@ public class WQuery {
      * Default parameters for listing user uploads
      */
     public static final QTemplate USERUPLOADS = new QTemplate(FL.pMap("list", "allimages", "aisort", "timestamp", "aiuser", null),
-            "ailimit", "allimages");
+            "ailimit", "allimages", "aiprop");
 
     /**
      * Default parameters for listing pages with prefix.
      */
     public static final QTemplate PREFIXSEARCH = new QTemplate(FL.pMap("list", "prefixsearch"), "pslimit", "prefixsearch");
 
+    /**
+     * The default maximum number of times a failed query is retried.
+     */
+    public static final int DEFAULT_RETRIES = 3;
+
+    /**
+     * The longest time to wait before retrying a failed query.
+     */
+    private static final long MAX_RETRY_DELAY = 30000;
+
     /**
      * Type describing a Map with a String key and String value.
      */
@@ -222,6 +255,11 @@ public class WQuery {
      */
     private final List<String> limStrList = new ArrayList<>();
 
+    /**
+     * The field selection ({@code *prop}) parameters of the QTemplates in this WQuery.
+     */
+    private final List<String> propKeyList = new ArrayList<>();
+
     /**
      * The Wiki object to perform queries with
      */
@@ -237,6 +275,42 @@ public class WQuery {
      */
     private int queryLimit, totalLimit = -1, currCount = 0;
 
+    /**
+     * The maximum number of times a failed query is retried.
+     */
+    private int maxRetries = DEFAULT_RETRIES;
+
+    /**
+     * The base delay before retrying a failed query. The delay doubles with each attempt, and is randomized to spread out retries from many clients.
+     */
+    private Duration retryDelay = Duration.ofSeconds(1);
+
+    /**
+     * Flag indicating if this query was stopped because a query failed after all retries.
+     */
+    private boolean failed = false;
+
+    /**
+     * The keys of the continuation parameters received from the server.
+     */
+    private final Set<String> contKeys = new HashSet<>();
+
+    /**
+     * The file to save the continuation state to after each query. Null if disabled.
+     */
+    private Path checkpoint;
+
+    /**
+     * Flag indicating if a reply was returned by {@link #next()} whose continuation state has not been saved to {@link #checkpoint} yet.
+     */
+    private boolean uncommitted = false;
+
+    /**
+     * Holds the request in flight, so that it can be aborted by {@link #cancel()}. Also cancelled with the CallSlot of the thread which created this
+     * WQuery, if any (e.g. a task of {@link CrossWikiQuery}).
+     */
+    private final ApiClient.CallSlot slot = new ApiClient.CallSlot(ApiClient.currentSlot.get());
+
     /**
      * Constructor, creates a new WQuery
      *
@@ -245,13 +319,21 @@ public class WQuery {
      */
     public WQuery(Wiki wiki, QTemplate... qut) {
         this.wiki = wiki;
-        this.queryLimit = wiki.conf.maxResultLimit;
+        this.queryLimit = wiki.getConfig().maxResultLimit;
+        if (wiki.conf.formatVersion2)
+            pl.put("formatversion", "2");
 
         for (QTemplate qt : qut) {
-            pl.putAll(qt.defaultFields);
+            qt.defaultFields.forEach(this::merge);
             if (qt.limString != null)
                 limStrList.add(qt.limString);
+            if (qt.propKey != null)
+                propKeyList.add(qt.propKey);
         }
+
+        // generators supply the titles to any prop modules
+        if (pl.containsKey("generator"))
+            pl.remove("titles");
     }
 
     /**
@@ -273,43 +355,261 @@ public class WQuery {
      * @return True if this WQuery can still be used to make continuation queries.
      */
     public boolean has() {
-        return canCont;
+        return canCont && !slot.isCancelled();
+    }
+
+    /**
+     * Stops this WQuery and aborts its request in flight, if any. May be called from any thread; a concurrent call to {@link #next()} returns
+     * {@link QReply#NULL_REPLY}.
+     */
+    public void cancel() {
+        slot.cancel();
+    }
+
+    /**
+     * Test if this WQuery was stopped by {@link #cancel()}.
+     *
+     * @return True if this WQuery was cancelled.
+     */
+    public boolean isCancelled() {
+        return slot.isCancelled();
+    }
+
+    /**
+     * Test if this WQuery was stopped because a query failed, even after retrying. If a checkpoint file was set, the enumeration can be resumed from the
+     * last completed query by creating a new WQuery with the same checkpoint.
+     *
+     * @return True if this WQuery was stopped by a failed query.
+     */
+    public boolean hasFailed() {
+        return failed;
     }
 
     /**
-     * Attempts to perform the next query in this sequence.
+     * Attempts to perform the next query in this sequence. Queries are read-only, so they are retried if a network error or server error occurs. If the
+     * query still fails, this WQuery is stopped and {@link #hasFailed()} returns true.
      *
      * @return A JsonObject with the response from the server, or null if something went wrong.
      */
     public QReply next() {
+        // the caller asking for more means the previous reply was processed
+        commit();
+
         // sanity check
         if (pl.containsValue(null))
             throw new IllegalStateException(String.format("Fill in *all* the null fields -> %s", pl));
-        else if (!canCont)
+        else if (!has())
             return null;
 
-        try {
-            if (totalLimit > 0 && (currCount += queryLimit) > totalLimit) {
-                adjustLimit(queryLimit - (currCount - totalLimit));
-                canCont = false;
+        if (totalLimit > 0 && (currCount += queryLimit) > totalLimit) {
+            adjustLimit(queryLimit - (currCount - totalLimit));
+            canCont = false;
+        }
+
+        JsonObject result = fetch();
+        if (result == null) {
+            canCont = false;
+            failed = !slot.isCancelled();
+            return QReply.NULL_REPLY;
+        }
+
+        // only the latest continuation parameters may be sent, e.g. a stale rvcontinue would resume the next generator batch mid-way
+        for (String k : contKeys)
+            pl.remove(k);
+
+        if (result.has("continue")) {
+            Map<String, String> cont = GSONP.gson.fromJson(result.getAsJsonObject("continue"), STRING_MAP_TYPE);
+            contKeys.addAll(cont.keySet());
+            pl.putAll(cont);
+        } else
+            canCont = false;
+
+        uncommitted = checkpoint != null;
+
+        if (WikiLogger.isTraceEnabled())
+            WikiLogger.trace(wiki, GSONP.gsonPP.toJson(result));
+
+        return QReply.wrap(result);
+    }
+
+    /**
+     * Sends the current query to the server, retrying with a randomized exponential backoff if a network error, server error, or malformed response
+     * occurs.
+     *
+     * @return The response from the server, or null if the query failed after all retries.
+     */
+    private JsonObject fetch() {
+        for (int attempt = 0; ; attempt++) {
+            // restored afterwards, since queries may be nested (e.g. logging in again after the token expired)
+            ApiClient.CallSlot prev = ApiClient.currentSlot.get();
+            ApiClient.currentSlot.set(slot);
+            try {
+                if (slot.isCancelled())
+                    return null;
+
+                // Large title lists (e.g. with apihighlimits) may not fit in a URL, so POST them instead.
+                TokenizedResponse r = wiki.apiclient.fitsInURL(pl) ? wiki.apiclient.basicTokenizedGET(pl, "token")
+                        : wiki.apiclient.basicTokenizedPOST(Map.of(), pl, "token");
+
+                if (r.getResponse().code() < 500)
+                    return r.getJsonBody().getAsJsonObject();
+
+                WikiLogger.warn(wiki, "Server error {} when querying API, attempt {} of {}", r.getResponse().code(), attempt + 1, maxRetries + 1);
+            } catch (IOException | JsonParseException | IllegalStateException e) {
+                if (slot.isCancelled())
+                    return null;
+
+                WikiLogger.warn(wiki, String.format("Error when querying API, attempt %d of %d", attempt + 1, maxRetries + 1), e);
+            } finally {
+                ApiClient.currentSlot.set(prev);
             }
 
-            JsonObject result = wiki.apiclient.basicTokenizedGET(pl, "token").getJsonBody().getAsJsonObject();
-            if (result.has("continue"))
-                pl.putAll(GSONP.gson.fromJson(result.getAsJsonObject("continue"), STRING_MAP_TYPE));
-            else
-                canCont = false;
+            if (attempt >= maxRetries) {
+                WikiLogger.error(wiki, "Giving up on query after {} attempts -> {}", attempt + 1, pl);
+                return null;
+            }
 
-            if (WikiLogger.isTraceEnabled())
-                WikiLogger.trace(wiki, GSONP.gsonPP.toJson(result));
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(Math.min(retryDelay.toMillis() << attempt, MAX_RETRY_DELAY) + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Configures how failed queries are retried.
+     *
+     * @param maxRetries The maximum number of times to retry a failed query. Set 0 to disable retries.
+     * @param baseDelay The delay before the first retry. The delay doubles with each retry, up to 30 seconds, and is randomized.
+     * @return This WQuery, for chaining convenience.
+     */
+    public WQuery setRetries(int maxRetries, Duration baseDelay) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.retryDelay = baseDelay;
+        return this;
+    }
+
+    /**
+     * Saves the continuation state of this WQuery to {@code p} after every processed reply, so an interrupted enumeration can be resumed. If {@code p}
+     * already holds the state of the same query, it is restored first, and this WQuery continues where the previous one left off. Call this after setting
+     * all other parameters. Delete {@code p} to start over.
+     * <p>
+     * A reply counts as processed once {@link #next()} is called again, or {@link #commit()} is called. An enumeration which is interrupted while
+     * processing a reply resumes with that reply, so each reply is processed at least once.
+     *
+     * @param p The checkpoint file to use
+     * @return This WQuery, for chaining convenience.
+     */
+    public WQuery checkpoint(Path p) {
+        if (Files.isRegularFile(p))
+            restoreState(p);
+
+        checkpoint = p;
+        return this;
+    }
 
-            return QReply.wrap(result);
+    /**
+     * Marks the last reply returned by {@link #next()} as processed, saving the continuation state after it to the checkpoint file. Called by
+     * {@link #next()}; call this after processing the last reply of an enumeration. Does nothing if no checkpoint file was set.
+     *
+     * @return False if the checkpoint file could not be written.
+     * @see #checkpoint(Path)
+     */
+    public boolean commit() {
+        if (!uncommitted)
+            return true;
+
+        uncommitted = false;
+        return saveState(checkpoint);
+    }
+
+    /**
+     * Writes the parameters and continuation state of this WQuery to {@code p}. The file is replaced atomically, so it always holds a complete state.
+     *
+     * @param p The file to write to
+     * @return True if the file was written successfully.
+     */
+    public boolean saveState(Path p) {
+        State s = new State();
+        s.params = new HashMap<>(pl);
+        s.params.remove("token");
+        s.params.remove("assertuser");
+        s.cont = contKeys;
+        s.done = !canCont;
+        s.count = currCount;
+
+        try {
+            Path tmp = p.resolveSibling(p.getFileName() + ".tmp");
+            Files.writeString(tmp, GSONP.gson.toJson(s));
+            Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
         } catch (IOException e) {
-            WikiLogger.error(wiki, "Error when querying API", e);
-            return QReply.NULL_REPLY;
+            WikiLogger.error(wiki, "Error while saving query state", e);
+            return false;
         }
     }
 
+    /**
+     * Restores the continuation state of this WQuery from a file written by {@link #saveState(Path)}. The state is only restored if it was saved by a
+     * WQuery with the same parameters.
+     *
+     * @param p The file to read
+     * @return True if the state was restored.
+     */
+    public boolean restoreState(Path p) {
+        try {
+            State s = GSONP.gson.fromJson(Files.readString(p), State.class);
+            if (s == null || s.params == null)
+                return false;
+
+            Map<String, String> saved = new HashMap<>(s.params), curr = new HashMap<>(pl);
+            curr.remove("token");
+            curr.remove("assertuser");
+            for (String k : s.cont) {
+                saved.remove(k);
+                curr.remove(k);
+            }
+
+            if (!saved.equals(curr)) {
+                WikiLogger.info(wiki, "Ignoring query state {}, it was saved by a different query", p);
+                return false;
+            }
+
+            pl.putAll(s.params);
+            contKeys.addAll(s.cont);
+            canCont = !s.done;
+            currCount = s.count;
+            return true;
+        } catch (IOException | JsonParseException e) {
+            WikiLogger.error(wiki, "Error while reading query state", e);
+            return false;
+        }
+    }
+
+    /**
+     * Merges a default parameter of a QTemplate into this WQuery. Module selectors ({@code prop}, {@code list}, {@code meta}) and {@code *prop} parameters are
+     * pipe-fenced lists, so values from different QTemplates are combined instead of overwriting each other.
+     *
+     * @param key The parameter key to merge
+     * @param value The parameter value to merge
+     */
+    private void merge(String key, String value) {
+        String curr = pl.get(key);
+        if (curr == null || value == null || curr.equals(value) || !(key.endsWith("prop") || key.equals("list") || key.equals("meta"))) {
+            pl.put(key, value);
+            return;
+        }
+
+        Set<String> l = new LinkedHashSet<>();
+        for (String s : (curr + "|" + value).split("\\|"))
+            if (!s.isEmpty())
+                l.add(s);
+
+        pl.put(key, FL.pipeFence(l));
+    }
+
     /**
      * Sets a key-value pair. DO NOT URL-encode. These are the parameters that will be passed to the MediaWiki API.
      *
@@ -333,6 +633,36 @@ public class WQuery {
         return set(key, FL.pipeFence(values));
     }
 
+    /**
+     * Configure this WQuery to fetch only the specified fields of each item, replacing the default field selection of every QTemplate in this WQuery which
+     * supports one. Fields which are not fetched are left unset in any {@code dwrap} objects created from the results. Use
+     * {@link #project(QTemplate, String...)} if this WQuery was created with several such QTemplates.
+     *
+     * @param fields The fields to fetch, as accepted by the module's {@code *prop} parameter (e.g. {@code title}, {@code timestamp}).
+     * @return This WQuery, for chaining convenience.
+     */
+    public WQuery project(String... fields) {
+        for (String s : propKeyList)
+            pl.put(s, FL.pipeFence(List.of(fields)));
+
+        return this;
+    }
+
+    /**
+     * Configure this WQuery to fetch only the specified fields of each item returned by {@code qt}, replacing its default field selection.
+     *
+     * @param qt The QTemplate to select fields for. PRECONDITION: this WQuery was created with {@code qt}.
+     * @param fields The fields to fetch, as accepted by the module's {@code *prop} parameter (e.g. {@code ids}, {@code timestamp}).
+     * @return This WQuery, for chaining convenience.
+     * @throws IllegalArgumentException If {@code qt} does not support field selection.
+     */
+    public WQuery project(QTemplate qt, String... fields) {
+        if (qt.propKey == null)
+            throw new IllegalArgumentException(String.format("%s does not support field selection", qt.id));
+
+        return set(qt.propKey, List.of(fields));
+    }
+
     /**
      * Configure this WQuery to fetch a maximum of {@code limit} items per query. Does nothing if this query does not use
      * limit Strings.
@@ -356,4 +686,28 @@ public class WQuery {
         return this;
     }
 
+    /**
+     * The saved continuation state of a WQuery, in a form which can be written to and read from a local file.
+     */
+    private static class State {
+        /**
+         * The query parameters, including continuation parameters.
+         */
+        private Map<String, String> params;
+
+        /**
+         * The keys of the continuation parameters in {@code params}.
+         */
+        private Set<String> cont = new HashSet<>();
+
+        /**
+         * Flag indicating if the query was exhausted.
+         */
+        private boolean done;
+
+        /**
+         * The number of entries requested so far, if the query is limited.
+         */
+        private int count;
+    }
 }
@@ -1,6 +1,7 @@
 package org.fastily.jwiki.core;
 
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import okhttp3.HttpUrl;
 import org.fastily.jwiki.dwrap.Contrib;
@@ -11,6 +12,8 @@ import org.fastily.jwiki.dwrap.ProtectedTitleEntry;
 import org.fastily.jwiki.dwrap.RCEntry;
 import org.fastily.jwiki.dwrap.Revision;
 import org.fastily.jwiki.dwrap.TokenizedResponse;
+import org.fastily.jwiki.metrics.MetricsListener;
+import org.fastily.jwiki.metrics.MetricsRegistry;
 import org.fastily.jwiki.util.FL;
 import org.fastily.jwiki.util.GSONP;
 import org.fastily.jwiki.util.Tuple;
@@ -18,13 +21,15 @@ import org.fastily.jwiki.util.Tuple;
 import java.io.IOException;
 import java.net.Proxy;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.stream.Collectors;
 
@@ -60,6 +65,21 @@ public class Wiki {
          */
         private String password;
 
+        /**
+         * The session snapshot file to restore from and save to.
+         */
+        private Path sessionFile;
+
+        /**
+         * The maximum age of a session snapshot which can be restored without refreshing it.
+         */
+        private Duration maxSessionAge;
+
+        /**
+         * Flag indicating if the Wiki should be registered as an MXBean.
+         */
+        private boolean jmx = false;
+
         /**
          * Creates a new Wiki Builder.
          */
@@ -123,6 +143,66 @@ public class Wiki {
             return this;
         }
 
+        /**
+         * Configures the Wiki to be created to request the {@code formatversion=2} JSON format for queries. Its responses are smaller and cheaper to parse,
+         * but code which reads raw query replies (e.g. {@link QReply#propComp(String, String)}) must expect its shape. Defaults to false.
+         *
+         * @param formatVersion2 Whether to use {@code formatversion=2} for queries.
+         * @return This Builder
+         */
+        public Builder withFormatVersion2(boolean formatVersion2) {
+            wiki.conf.formatVersion2 = formatVersion2;
+            return this;
+        }
+
+        /**
+         * Configures the maximum number of requests the Wiki to be created may have in flight to a host at once. Within this maximum, the limit adapts to the
+         * timeouts and overload errors of the server; see {@link AdaptiveLimiter}. Defaults to 16.
+         *
+         * @param maxConcurrency The maximum number of requests in flight to a host.
+         * @return This Builder
+         */
+        public Builder withMaxConcurrency(int maxConcurrency) {
+            wiki.conf.maxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        /**
+         * Configures the Wiki to be created to share a RequestScheduler with other Wiki objects, so that requests from all of them are served fairly and by
+         * priority. By default, each Wiki created with a Builder gets its own RequestScheduler.
+         *
+         * @param scheduler The RequestScheduler to use
+         * @return This Builder
+         */
+        public Builder withScheduler(RequestScheduler scheduler) {
+            wiki.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * Configures the Wiki to be created to report the timings and sizes of every request to a MetricsListener, such as a {@link MetricsRegistry}.
+         * Disabled by default.
+         *
+         * @param metrics The MetricsListener to report to. Optional, set null to disable.
+         * @return This Builder
+         */
+        public Builder withMetrics(MetricsListener metrics) {
+            wiki.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Configures the Wiki to be created, and each Wiki created from it with {@link Wiki#getWiki(String)}, to register a {@link WikiStats} MXBean with
+         * the platform MBeanServer, so that it can be inspected and tuned at runtime with a JMX console. Disabled by default.
+         *
+         * @param jmx Set true to register the Wiki as an MXBean.
+         * @return This Builder
+         */
+        public Builder withJmx(boolean jmx) {
+            this.jmx = jmx;
+            return this;
+        }
+
         /**
          * Configures the Wiki to be created with the specified username and password combination. Login will be attempted when {@link #build()} is called.
          *
@@ -136,6 +216,34 @@ public class Wiki {
             return this;
         }
 
+        /**
+         * Configures the Wiki to be created to restore its namespaces, login status, tokens, and cookies from a session snapshot file, as written by
+         * {@link Wiki#saveSession(Path)}. The restored session is validated by the first API request, and the Wiki logs in again if the session has expired.
+         * Snapshots older than {@code maxAge} are refreshed with a bootstrap query when {@link #build()} is called. If {@code sessionFile} does not exist or
+         * belongs to a different user or API endpoint, the Wiki is created normally. Either way, the Wiki keeps {@code sessionFile} up to date whenever its
+         * login status is refreshed.
+         *
+         * @param sessionFile The session snapshot file to use
+         * @param maxAge The maximum age of a snapshot which can be restored without refreshing it.
+         * @return This Builder
+         */
+        public Builder withSessionFile(Path sessionFile, Duration maxAge) {
+            this.sessionFile = sessionFile;
+            this.maxSessionAge = maxAge;
+            return this;
+        }
+
+        /**
+         * Configures the Wiki to be created to restore its state from a session snapshot file. Snapshots older than one day are refreshed. See
+         * {@link #withSessionFile(Path, Duration)}.
+         *
+         * @param sessionFile The session snapshot file to use
+         * @return This Builder
+         */
+        public Builder withSessionFile(Path sessionFile) {
+            return withSessionFile(sessionFile, Duration.ofDays(1));
+        }
+
         /**
          * Performs the task of creating the Wiki object as configured. If {@link #withApiEndpoint(HttpUrl)} or {@link #withDomain(String)} were not called, then the resulting Wiki will default to the
          * <a href="https://en.wikipedia.org/w/api.php">Wikipedia API</a>.
@@ -144,20 +252,61 @@ public class Wiki {
          */
         public Wiki build() {
             wiki.apiclient = new ApiClient(wiki, proxy);
+            wiki.sessionFile = sessionFile;
 
-            if (username != null && password != null && !wiki.login(username, password))
-                throw new SecurityException(String.format("Failed to log-in as %s @ %s", username, wiki.conf.hostname));
+            if (jmx)
+                wiki.stats = new WikiStats(wiki);
+            wiki.listener = MetricsListener.both(wiki.metrics, wiki.stats);
 
-            wiki.refreshNS();
+            if (sessionFile != null && restoreSession())
+                return wiki;
+
+            if (username == null || password == null)
+                wiki.bootstrap();
+            else if (!wiki.login(username, password, wiki.bootstrapForLogin()))
+                throw new SecurityException(String.format("Failed to log-in as %s @ %s", username, wiki.conf.hostname));
 
             return wiki;
         }
+
+        /**
+         * Attempts to restore the Wiki from its session snapshot file. Fresh snapshots are applied without making any requests. Stale snapshots only
+         * contribute their cookies, which are reused if the session they belong to is still valid.
+         *
+         * @return True if the Wiki was restored and is ready to use.
+         */
+        private boolean restoreSession() {
+            SessionSnapshot s = SessionSnapshot.load(wiki, sessionFile);
+            if (s == null || !s.isFor(username))
+                return false;
+
+            wiki.username = username;
+            wiki.password = password;
+            s.applyCookies(wiki);
+
+            if (s.isStale(maxSessionAge)) {
+                WikiLogger.info(wiki, "Session snapshot {} is stale, refreshing", sessionFile);
+                wiki.bootstrap();
+
+                if (username != null && wiki.conf.uname == null && !wiki.login(username, password))
+                    throw new SecurityException(String.format("Failed to log-in as %s @ %s", username, wiki.conf.hostname));
+            } else {
+                WikiLogger.info(wiki, "Restored session from {}", sessionFile);
+                s.applyState(wiki);
+
+                wiki.unverifiedSession = wiki.conf.uname != null;
+                wiki.wl.put(wiki.conf.hostname, wiki);
+            }
+
+            return true;
+        }
     }
 
     /**
-     * Our list of currently logged in Wiki's associated with this object. Useful for global operations.
+     * Our list of currently logged in Wiki's associated with this object, keyed by hostname. Useful for global operations. This is shared with, and
+     * concurrently accessed by, every Wiki created with {@link #getWiki(String)}.
      */
-    private Map<String, Wiki> wl = new HashMap<>();
+    private Map<String, Wiki> wl = new ConcurrentHashMap<>();
 
     /**
      * Our namespace manager
@@ -174,9 +323,55 @@ public class Wiki {
      */
     protected ApiClient apiclient;
 
+    /**
+     * Decides the order in which requests are sent. This is shared with every Wiki created with {@link #getWiki(String)}.
+     */
+    protected RequestScheduler scheduler = new RequestScheduler();
+
+    /**
+     * Receives the measurements of every request made by this Wiki. Null if disabled. This is shared with every Wiki created with {@link #getWiki(String)}.
+     */
+    protected MetricsListener metrics;
+
+    /**
+     * The live statistics of this Wiki, registered as an MXBean. Null if disabled.
+     */
+    protected WikiStats stats;
+
+    /**
+     * Receives the measurements of every request made by this Wiki, i.e. {@link #metrics} and {@link #stats} combined. Null if both are disabled.
+     */
+    protected MetricsListener listener;
+
     protected String username;
     protected String password;
 
+    /**
+     * The session snapshot file which is updated whenever the login status is refreshed. Null if disabled.
+     */
+    private Path sessionFile;
+
+    /**
+     * Flag indicating whether this Wiki was restored from a session snapshot which has not been validated by an API request yet.
+     */
+    protected volatile boolean unverifiedSession = false;
+
+    /**
+     * Flag indicating whether the namespace list and login status of this Wiki have not been fetched yet. See {@link #getWiki(String)}.
+     */
+    private volatile boolean pendingBootstrap = false;
+
+    /**
+     * The thread which is currently fetching the namespace list and login status of this Wiki, or null.
+     */
+    private volatile Thread bootstrapThread;
+
+    /**
+     * Guards logging in and fetching the namespace list and login status. A ReentrantLock rather than {@code synchronized}, so that virtual threads which
+     * block on it (or on the requests made while holding it) do not pin their carrier thread.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
     /**
      * Constructor, creates a new Wiki
      */
@@ -192,12 +387,19 @@ public class Wiki {
      */
     private Wiki(HttpUrl apiEndpoint, Wiki parent) {
         conf.retarget(apiEndpoint);
+        conf.formatVersion2 = parent.conf.formatVersion2;
+        conf.maxConcurrency = parent.conf.maxConcurrency;
 
         wl = parent.wl;
+        scheduler = parent.scheduler;
+        metrics = parent.metrics;
         apiclient = new ApiClient(parent, this);
 
-        refreshLoginStatus();
-        refreshNS();
+        if (parent.stats != null)
+            stats = new WikiStats(this);
+        listener = MetricsListener.both(metrics, stats);
+
+        pendingBootstrap = true;
     }
 
     /* //////////////////////////////////////////////////////////////////////////////// */
@@ -211,14 +413,32 @@ public class Wiki {
      * @param password The password to use
      * @return True if the user is now logged in.
      */
-    public synchronized boolean login(String user, String password) {
-        // Store latest username and password combo in case we need to login again
-        this.username = user;
-        this.password = password;
+    public boolean login(String user, String password) {
+        lock.lock();
+        try {
+            return login(user, password, getTokens(WQuery.TOKENS_LOGIN, "logintoken"));
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        WikiLogger.info(this, "Try login for {}", user);
+    /**
+     * Performs a login with the specified username, password, and login token.
+     *
+     * @param user The username to use
+     * @param password The password to use
+     * @param lgtoken The login token to use
+     * @return True if the user is now logged in.
+     */
+    private boolean login(String user, String password, String lgtoken) {
+        lock.lock();
         try {
-            if (WAction.postAction(this, "login", false, FL.pMap("lgname", user, "lgpassword", password, "lgtoken", getTokens(WQuery.TOKENS_LOGIN, "logintoken"))).isSuccess()) {
+            // Store latest username and password combo in case we need to login again
+            this.username = user;
+            this.password = password;
+
+            WikiLogger.info(this, "Try login for {}", user);
+            if (WAction.postAction(this, "login", false, FL.pMap("lgname", user, "lgpassword", password, "lgtoken", lgtoken)).isSuccess()) {
                 refreshLoginStatus();
 
                 WikiLogger.info(this, "Logged in as {}", user);
@@ -226,12 +446,14 @@ public class Wiki {
             }
         } catch (Exception e) {
             WikiLogger.error(this, "Error while logging in", e);
+        } finally {
+            lock.unlock();
         }
 
         return false;
     }
 
-    synchronized boolean internalLogin() {
+    boolean internalLogin() {
         return login(this.username, this.password);
     }
 
@@ -239,12 +461,43 @@ public class Wiki {
      * Refresh the login status of a Wiki. This runs automatically on login or creation of a new CentralAuth'd Wiki.
      */
     public void refreshLoginStatus() {
-        conf.uname = GSONP.getStr(new WQuery(this, WQuery.USERINFO).next().metaComp("userinfo").getAsJsonObject(), "name");
-        conf.token = getTokens(WQuery.TOKENS_CSRF, "csrftoken");
+        updateLoginStatus(new WQuery(this, WQuery.USERINFO, WQuery.TOKENS_CSRF).next());
+    }
+
+    /**
+     * Applies the {@code userinfo} and {@code tokens} data of a query reply to this Wiki's configuration.
+     *
+     * @param r A reply to a query made with {@link WQuery#USERINFO} and {@link WQuery#TOKENS_CSRF}.
+     */
+    private void updateLoginStatus(QReply r) {
+        JsonObject ui = r.metaComp("userinfo").getAsJsonObject();
+
+        conf.uname = ui.has("anon") ? null : GSONP.getStr(ui, "name");
+        conf.token = GSONP.getStr(r.metaComp("tokens").getAsJsonObject(), "csrftoken");
+        conf.isBot = ui.has("groups") && GSONP.jaOfStrToAL(ui.getAsJsonArray("groups")).contains("bot");
+        conf.setHighLimits(ui.has("rights") && GSONP.jaOfStrToAL(ui.getAsJsonArray("rights")).contains("apihighlimits"));
         wl.put(conf.hostname, this);
 
-        List<String> rights = listUserRights(conf.uname);
-        conf.isBot = rights != null && rights.contains("bot");
+        unverifiedSession = false;
+        if (sessionFile != null)
+            saveSession(sessionFile);
+    }
+
+    /**
+     * Writes the namespaces, login status, tokens, and cookies of this Wiki to a local file. The file can be restored with
+     * {@link Builder#withSessionFile(Path)}. The file contains session cookies, so it should be kept private.
+     *
+     * @param p The file to write to
+     * @return True if the file was written successfully.
+     */
+    public boolean saveSession(Path p) {
+        try {
+            SessionSnapshot.save(this, p);
+            return true;
+        } catch (IOException e) {
+            WikiLogger.error(this, "Error while saving session snapshot", e);
+            return false;
+        }
     }
 
     /**
@@ -309,11 +562,63 @@ public class Wiki {
     }
 
     /**
-     * Refresh the Namespace list.
+     * Fetches the namespace list, login status, and CSRF token of this Wiki with a single {@code siteinfo|userinfo|tokens} query.
+     */
+    private void bootstrap() {
+        WikiLogger.info(this, "Fetching site and user info");
+        QReply r = new WQuery(this, WQuery.NAMESPACES, WQuery.USERINFO, WQuery.TOKENS_CSRF).next();
+
+        nsl = new NS.NSManager(r.getSuccessJson());
+        updateLoginStatus(r);
+    }
+
+    /**
+     * Fetches the namespace list and login status of a Wiki created with {@link #getWiki(String)}, if this has not been done yet. This is called before the
+     * namespace list, login status, or tokens are used. Other threads wait while one thread fetches the data.
+     */
+    protected void awaitBootstrap() {
+        if (!pendingBootstrap || bootstrapThread == Thread.currentThread())
+            return;
+
+        lock.lock();
+        try {
+            if (!pendingBootstrap)
+                return;
+
+            bootstrapThread = Thread.currentThread();
+            try {
+                bootstrap();
+                pendingBootstrap = false;
+            } finally {
+                bootstrapThread = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the namespace manager of this Wiki, fetching the namespace list first if necessary.
+     *
+     * @return The namespace manager of this Wiki.
      */
-    private void refreshNS() {
-        WikiLogger.info(this, "Fetching Namespace List");
-        nsl = new NS.NSManager(new WQuery(this, WQuery.NAMESPACES).next().getSuccessJson());
+    protected NS.NSManager nsl() {
+        awaitBootstrap();
+        return nsl;
+    }
+
+    /**
+     * Fetches the namespace list and a login token of this Wiki with a single {@code siteinfo|tokens} query. The login status is fetched once the login
+     * succeeds.
+     *
+     * @return The login token, or null on error.
+     */
+    private String bootstrapForLogin() {
+        WikiLogger.info(this, "Fetching site info and login token");
+        QReply r = new WQuery(this, WQuery.NAMESPACES, WQuery.TOKENS_LOGIN).next();
+
+        nsl = new NS.NSManager(r.getSuccessJson());
+        return GSONP.getStr(r.metaComp("tokens").getAsJsonObject(), "logintoken");
     }
 
     /**
@@ -324,7 +629,7 @@ public class Wiki {
      * @return The same title if it is in {@code ns}, or the converted title.
      */
     public String convertIfNotInNS(String title, NS ns) {
-        return whichNS(title).equals(ns) ? title : String.format("%s:%s", nsl.nsM.get(ns.v), nss(title));
+        return whichNS(title).equals(ns) ? title : String.format("%s:%s", nsl().nsM.get(ns.v), nss(title));
     }
 
     /**
@@ -351,23 +656,27 @@ public class Wiki {
         if (prefix.isEmpty() || prefix.equalsIgnoreCase("main"))
             return NS.MAIN;
 
-        return nsl.nsM.containsKey(prefix) ? new NS((int) nsl.nsM.get(prefix)) : null;
+        return nsl().nsM.containsKey(prefix) ? new NS((int) nsl().nsM.get(prefix)) : null;
     }
 
     /**
      * Gets a Wiki object for this domain. This method is cached. A new Wiki will be created as necessary. PRECONDITION: The
      * <a href="https://www.mediawiki.org/wiki/Extension:CentralAuth">CentralAuth</a> extension is installed on the target MediaWiki farm.
+     * <p>
+     * New Wiki objects are created without making any requests; their namespace list and login status are fetched when they are first used. This method may
+     * be called concurrently, and only callers asking for the same domain wait on each other.
      *
      * @param domain The domain to use
      * @return The Wiki, or null on error.
      */
-    public synchronized Wiki getWiki(String domain) {
+    public Wiki getWiki(String domain) {
+        awaitBootstrap();
         if (conf.uname == null)
             return null;
 
         WikiLogger.trace(this, "Get Wiki for {} @ {}", whoami(), domain);
         try {
-            return wl.containsKey(domain) ? wl.get(domain) : new Wiki(conf.baseURL.newBuilder().host(domain).build(), this);
+            return wl.computeIfAbsent(domain, d -> new Wiki(conf.baseURL.newBuilder().host(d).build(), this));
         } catch (Exception e) {
             WikiLogger.error(this, "Error when retrieving wiki", e);
             return null;
@@ -381,7 +690,7 @@ public class Wiki {
      * @return The title without a namespace
      */
     public String nss(String title) {
-        return title.replaceAll(nsl.nssRegex, "");
+        return title.replaceAll(nsl().nssRegex, "");
     }
 
     /**
@@ -402,7 +711,7 @@ public class Wiki {
      */
     public String talkPageOf(String title) {
         int i = whichNS(title).v;
-        return i < 0 || i % 2 == 1 ? null : nsl.nsM.get(i + 1) + ":" + nss(title);
+        return i < 0 || i % 2 == 1 ? null : nsl().nsM.get(i + 1) + ":" + nss(title);
     }
 
     /**
@@ -419,7 +728,7 @@ public class Wiki {
         else if (ns.equals(NS.TALK))
             return nss(title);
 
-        return nsl.nsM.get(ns.v - 1) + ":" + nss(title);
+        return nsl().nsM.get(ns.v - 1) + ":" + nss(title);
     }
 
     /**
@@ -429,8 +738,8 @@ public class Wiki {
      * @return The title's NS.
      */
     public NS whichNS(String title) {
-        Matcher m = nsl.p.matcher(title);
-        return !m.find() ? NS.MAIN : new NS((int) nsl.nsM.get(title.substring(m.start(), m.end() - 1)));
+        Matcher m = nsl().p.matcher(title);
+        return !m.find() ? NS.MAIN : new NS((int) nsl().nsM.get(title.substring(m.start(), m.end() - 1)));
     }
 
     /**
@@ -439,10 +748,12 @@ public class Wiki {
      * @return The user who is logged in, or null if not logged in.
      */
     public String whoami() {
+        awaitBootstrap();
         return conf.uname == null ? "<Anonymous>" : conf.uname;
     }
 
     public Conf getConfig() {
+        awaitBootstrap();
         return conf;
     }
 
@@ -450,11 +761,38 @@ public class Wiki {
         return this.apiclient;
     }
 
+    /**
+     * Gets the RequestScheduler which decides the order in which this Wiki's requests are sent.
+     *
+     * @return The RequestScheduler of this Wiki.
+     */
+    public RequestScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Gets the MetricsListener which receives the measurements of this Wiki's requests.
+     *
+     * @return The MetricsListener of this Wiki, or null if disabled.
+     */
+    public MetricsListener getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Gets the live statistics of this Wiki, which are also available over JMX.
+     *
+     * @return The WikiStats of this Wiki, or null if disabled. See {@link Builder#withJmx(boolean)}.
+     */
+    public WikiStats getStats() {
+        return stats;
+    }
+
     /**
      * Gets a String representation of this Wiki, in the format {@code [username @ domain]}
      */
     public String toString() {
-        return String.format("[%s @ %s]", whoami(), conf.hostname);
+        return String.format("[%s @ %s]", conf.uname == null ? "<Anonymous>" : conf.uname, conf.hostname);
     }
 
     /* //////////////////////////////////////////////////////////////////////////////// */
@@ -688,7 +1026,7 @@ public class Wiki {
 
         WQuery wq = new WQuery(this, WQuery.CATEGORYMEMBERS).set("cmtitle", convertIfNotInNS(title, NS.CATEGORY));
         if (ns.length > 0)
-            wq.set("cmnamespace", nsl.createFilter(ns));
+            wq.set("cmnamespace", nsl().createFilter(ns));
 
         List<String> l = new ArrayList<>();
         while (wq.has()) {
@@ -724,7 +1062,7 @@ public class Wiki {
 
         WQuery wq = new WQuery(this, cap, WQuery.USERCONTRIBS).set("ucuser", user);
         if (ns.length > 0)
-            wq.set("ucnamespace", nsl.createFilter(ns));
+            wq.set("ucnamespace", nsl().createFilter(ns));
         if (olderFirst)
             wq.set("ucdir", "newer");
         if (createdOnly)
@@ -889,7 +1227,7 @@ public class Wiki {
 
         WQuery wq = new WQuery(this, limit, WQuery.PROTECTEDTITLES);
         if (ns.length > 0)
-            wq.set("ptnamespace", nsl.createFilter(ns));
+            wq.set("ptnamespace", nsl().createFilter(ns));
         if (olderFirst)
             wq.set("ptdir", "newer"); // MediaWiki is weird.
 
@@ -918,7 +1256,7 @@ public class Wiki {
         WQuery wq = new WQuery(this, limit, WQuery.RANDOM);
 
         if (ns.length > 0)
-            wq.set("rnnamespace", nsl.createFilter(ns));
+            wq.set("rnnamespace", nsl().createFilter(ns));
 
         while (wq.has()) {
             l.addAll(wq.next().listComp("random").stream().map(e -> GSONP.getStr(e, "title")).collect(Collectors.toList()));
@@ -1153,7 +1491,7 @@ public class Wiki {
         WQuery wq = new WQuery(this, limit, WQuery.SEARCH).set("srsearch", query);
 
         if (ns.length > 0)
-            wq.set("srnamespace", nsl.createFilter(ns));
+            wq.set("srnamespace", nsl().createFilter(ns));
 
         List<String> l = new ArrayList<>();
         while (wq.has()) {
@@ -0,0 +1,232 @@
+package org.fastily.jwiki.core;
+
+import org.fastily.jwiki.metrics.ConnectionEvent;
+import org.fastily.jwiki.metrics.MetricsListener;
+import org.fastily.jwiki.metrics.RequestEvent;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live statistics of a Wiki, registered as an MXBean named {@code org.fastily.jwiki:type=Wiki,host=<hostname>,id=<id>} with the platform MBeanServer.
+ * Counters are updated as a MetricsListener and by the Wiki itself. Enable with {@link Wiki.Builder#withJmx(boolean)}; each Wiki created with
+ * {@link Wiki#getWiki(String)} then gets its own WikiStats.
+ * <p>
+ * The MBeanServer only holds the Wiki weakly, through its WikiStats, and the WikiStats is unregistered once the Wiki has been garbage collected. Call
+ * {@link #unregister()} to remove it sooner.
+ *
+ * @author Fastily
+ */
+public class WikiStats implements WikiStatsMXBean, MetricsListener {
+    /**
+     * Unregisters each WikiStats once its Wiki has been garbage collected.
+     */
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /**
+     * The Wiki these statistics are for. Weak, so that the platform MBeanServer does not keep the Wiki alive.
+     */
+    private final WeakReference<Wiki> wiki;
+
+    /**
+     * The name this WikiStats is registered under.
+     */
+    private final ObjectName name;
+
+    /**
+     * Unregisters this WikiStats, at most once.
+     */
+    private final Cleaner.Cleanable cleanable;
+
+    /**
+     * Request counters.
+     */
+    private final LongAdder requests = new LongAdder(), errors = new LongAdder(), bytesIn = new LongAdder(), bytesOut = new LongAdder();
+
+    /**
+     * Counters for relogins and rate limit backoffs.
+     */
+    protected final LongAdder relogins = new LongAdder(), rateLimitBackoffs = new LongAdder();
+
+    /**
+     * Connection counters.
+     */
+    private final LongAdder calls = new LongAdder(), reused = new LongAdder();
+
+    /**
+     * Constructor, creates a new WikiStats and registers it with the platform MBeanServer. Registration failures are logged and otherwise ignored.
+     *
+     * @param wiki The Wiki to collect statistics for.
+     */
+    protected WikiStats(Wiki wiki) {
+        this.wiki = new WeakReference<>(wiki);
+
+        ObjectName n = null;
+        try {
+            n = new ObjectName(String.format("org.fastily.jwiki:type=Wiki,host=%s,id=%x", ObjectName.quote(wiki.conf.hostname),
+                    System.identityHashCode(wiki)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, n);
+        } catch (JMException e) {
+            WikiLogger.warn(wiki, "Could not register MBean", e);
+        }
+
+        name = n;
+
+        // must not refer to this WikiStats, which refers to the Wiki
+        ObjectName registered = n;
+        cleanable = CLEANER.register(wiki, () -> unregister(registered));
+    }
+
+    /**
+     * Gets the Wiki these statistics are for.
+     *
+     * @return The Wiki these statistics are for.
+     * @throws IllegalStateException If the Wiki was garbage collected.
+     */
+    private Wiki wiki() {
+        Wiki w = wiki.get();
+        if (w == null)
+            throw new IllegalStateException("This Wiki was garbage collected");
+
+        return w;
+    }
+
+    /**
+     * Gets the name this WikiStats is registered under.
+     *
+     * @return The ObjectName of this WikiStats.
+     */
+    public ObjectName getObjectName() {
+        return name;
+    }
+
+    /**
+     * Unregisters this WikiStats from the platform MBeanServer. This is done automatically once the Wiki has been garbage collected.
+     */
+    public void unregister() {
+        cleanable.clean();
+    }
+
+    /**
+     * Unregisters an MBean from the platform MBeanServer, if it is registered.
+     *
+     * @param name The name of the MBean, or null to do nothing.
+     */
+    private static void unregister(ObjectName name) {
+        try {
+            if (name != null && ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            WikiLogger.warn(null, "Could not unregister MBean", e);
+        }
+    }
+
+    @Override
+    public void onRequest(RequestEvent e) {
+        requests.increment();
+        if (e.status >= 400)
+            errors.increment();
+
+        bytesOut.add(e.bytesOut);
+        if (e.bytesIn > 0)
+            bytesIn.add(e.bytesIn);
+    }
+
+    @Override
+    public void onConnection(ConnectionEvent e) {
+        calls.increment();
+        if (e.reused)
+            reused.increment();
+    }
+
+    @Override
+    public String getHostname() {
+        return wiki().conf.hostname;
+    }
+
+    @Override
+    public String getUsername() {
+        String uname = wiki().conf.uname;
+        return uname == null ? "<Anonymous>" : uname;
+    }
+
+    @Override
+    public int getInFlight() {
+        return wiki().apiclient.limiter.getInFlight();
+    }
+
+    @Override
+    public int getSchedulerInFlight() {
+        return wiki().scheduler.getInFlight();
+    }
+
+    @Override
+    public int getQueued() {
+        return wiki().scheduler.getQueued();
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        return wiki().apiclient.limiter.getLimit();
+    }
+
+    @Override
+    public int getMaxConcurrency() {
+        return wiki().apiclient.limiter.getMaxLimit();
+    }
+
+    @Override
+    public void setMaxConcurrency(int maxConcurrency) {
+        Wiki w = wiki();
+        WikiLogger.info(w, "Setting max concurrency to {}", maxConcurrency);
+
+        w.conf.maxConcurrency = maxConcurrency;
+        w.apiclient.limiter.setMaxLimit(maxConcurrency);
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getRelogins() {
+        return relogins.sum();
+    }
+
+    @Override
+    public long getRateLimitBackoffs() {
+        return rateLimitBackoffs.sum();
+    }
+
+    @Override
+    public double getConnectionReuseRatio() {
+        long n = calls.sum();
+        return n == 0 ? 0 : (double) reused.sum() / n;
+    }
+
+    @Override
+    public void resetCounters() {
+        for (LongAdder a : new LongAdder[] { requests, errors, bytesIn, bytesOut, relogins, rateLimitBackoffs, calls, reused })
+            a.reset();
+    }
+}
@@ -0,0 +1,120 @@
+package org.fastily.jwiki.core;
+
+/**
+ * The management interface of a Wiki, for inspecting and tuning a running client with a JMX console such as JConsole or VisualVM. Enable it with
+ * {@link Wiki.Builder#withJmx(boolean)}.
+ *
+ * @author Fastily
+ * @see WikiStats
+ */
+public interface WikiStatsMXBean {
+    /**
+     * Gets the hostname of the Wiki.
+     *
+     * @return The hostname of the Wiki.
+     */
+    String getHostname();
+
+    /**
+     * Gets the name of the user the Wiki is logged in as.
+     *
+     * @return The username, or {@code <Anonymous>}.
+     */
+    String getUsername();
+
+    /**
+     * Gets the number of requests in flight to the Wiki's host.
+     *
+     * @return The number of requests in flight.
+     */
+    int getInFlight();
+
+    /**
+     * Gets the number of requests in flight across every Wiki sharing the Wiki's RequestScheduler.
+     *
+     * @return The number of requests in flight, across all hosts.
+     */
+    int getSchedulerInFlight();
+
+    /**
+     * Gets the number of requests waiting to be sent, across every Wiki sharing the Wiki's RequestScheduler.
+     *
+     * @return The number of waiting requests.
+     */
+    int getQueued();
+
+    /**
+     * Gets the current adaptive concurrency limit of the Wiki's host.
+     *
+     * @return The number of requests currently allowed in flight.
+     */
+    int getConcurrencyLimit();
+
+    /**
+     * Gets the maximum concurrency limit of the Wiki's host.
+     *
+     * @return The maximum number of requests allowed in flight.
+     */
+    int getMaxConcurrency();
+
+    /**
+     * Sets the maximum concurrency limit of the Wiki's host. The current limit is lowered immediately if it exceeds the new maximum.
+     *
+     * @param maxConcurrency The maximum number of requests allowed in flight.
+     */
+    void setMaxConcurrency(int maxConcurrency);
+
+    /**
+     * Gets the number of requests made.
+     *
+     * @return The number of requests made.
+     */
+    long getRequests();
+
+    /**
+     * Gets the number of requests which returned an HTTP error status.
+     *
+     * @return The number of failed requests.
+     */
+    long getErrors();
+
+    /**
+     * Gets the total size of the responses received.
+     *
+     * @return The number of bytes received.
+     */
+    long getBytesIn();
+
+    /**
+     * Gets the approximate total size of the requests sent.
+     *
+     * @return The number of bytes sent.
+     */
+    long getBytesOut();
+
+    /**
+     * Gets the number of times the Wiki logged in again, or refreshed its login status, because its token or session had expired.
+     *
+     * @return The number of relogins.
+     */
+    long getRelogins();
+
+    /**
+     * Gets the number of times an action was delayed because the server reported that it was rate limited.
+     *
+     * @return The number of rate limit backoffs.
+     */
+    long getRateLimitBackoffs();
+
+    /**
+     * Gets the fraction of HTTP calls which reused a pooled connection, i.e. the hit ratio of the connection pool.
+     *
+     * @return The connection reuse ratio, between 0 and 1.
+     */
+    double getConnectionReuseRatio();
+
+    /**
+     * Resets all counters to 0.
+     */
+    void resetCounters();
+}
@@ -0,0 +1,66 @@
+package org.fastily.jwiki.dwrap;
+
+import java.util.Objects;
+
+/**
+ * Represents a single revision read from a MediaWiki XML dump, along with the page it belongs to.
+ *
+ * @author Fastily
+ * @see org.fastily.jwiki.core.DumpReader
+ */
+public class DumpRevision extends Revision {
+    /**
+     * The namespace number of the page this revision belongs to.
+     */
+    public int ns;
+
+    /**
+     * The unique id of the page this revision belongs to.
+     */
+    public long pageid;
+
+    /**
+     * The id of the previous revision of the page, or 0 if this is the first revision.
+     */
+    public long parentid;
+
+    /**
+     * Flag indicating if this revision was marked as a minor edit.
+     */
+    public boolean minor;
+
+    /**
+     * The SHA-1 hash of the text of this revision, in base 36, or null if not included in the dump.
+     */
+    public String sha1;
+
+    /**
+     * The target of the redirect, if the page this revision belongs to is a redirect. Null otherwise.
+     */
+    public String redirect;
+
+    /**
+     * Constructor, creates a DumpRevision with all null fields.
+     */
+    public DumpRevision() {
+
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        if (!super.equals(o))
+            return false;
+        DumpRevision that = (DumpRevision) o;
+        return this.ns == that.ns && this.pageid == that.pageid && this.parentid == that.parentid && this.minor == that.minor
+                && Objects.equals(this.sha1, that.sha1) && Objects.equals(this.redirect, that.redirect);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(super.hashCode(), this.ns, this.pageid, this.parentid, this.minor, this.sha1, this.redirect);
+    }
+}
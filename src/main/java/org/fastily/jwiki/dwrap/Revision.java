@@ -18,7 +18,7 @@ public class Revision extends DataEntry {
     /**
      * The text of this revision
      */
-    @SerializedName("*")
+    @SerializedName(value = "*", alternate = {"content"})
     public String text;
 
     /**
@@ -4,6 +4,8 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
 import okhttp3.OkHttpClient;
 import okhttp3.Response;
+import okio.Utf8;
+import org.fastily.jwiki.metrics.JfrEvents;
 
 import java.io.IOException;
 
@@ -20,6 +22,11 @@ public class TokenizedResponse {
     private final String body;
     private final JsonElement jsonBody;
 
+    /**
+     * The time taken to read and to parse the response body, in nanoseconds.
+     */
+    private final long readTime, parseTime;
+
     /**
      * Wrap a {@link Response} into a {@link TokenizedResponse} which caches the response body and parses it into JSON.
      *
@@ -29,12 +36,26 @@ public class TokenizedResponse {
     public TokenizedResponse(Response response) throws IOException {
         this.response = response;
         if (response.body() != null) {
+            long start = System.nanoTime();
             this.body = response.body().string();
+            long read = System.nanoTime();
+
+            JfrEvents.JsonParse event = new JfrEvents.JsonParse();
+            event.begin();
             this.jsonBody = JsonParser.parseString(this.body);
+            event.end();
+            if (event.shouldCommit()) {
+                event.length = this.body.length();
+                event.commit();
+            }
             response.close();
+
+            this.readTime = read - start;
+            this.parseTime = System.nanoTime() - read;
         } else {
             this.body = null;
             this.jsonBody = null;
+            this.readTime = this.parseTime = 0;
         }
     }
 
@@ -65,4 +86,31 @@ public class TokenizedResponse {
     public JsonElement getJsonBody() {
         return jsonBody;
     }
+
+    /**
+     * Returns the size of the response body, in bytes.
+     *
+     * @return the size of the response body in bytes, or 0 if there was no body.
+     */
+    public long getBodySize() {
+        return body == null ? 0 : Utf8.size(body);
+    }
+
+    /**
+     * Returns the time taken to read the response body from the network.
+     *
+     * @return the time taken to read the response body, in nanoseconds.
+     */
+    public long getReadTime() {
+        return readTime;
+    }
+
+    /**
+     * Returns the time taken to parse the response body into JSON.
+     *
+     * @return the time taken to parse the response body, in nanoseconds.
+     */
+    public long getParseTime() {
+        return parseTime;
+    }
 }
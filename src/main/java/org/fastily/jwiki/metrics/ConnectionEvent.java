@@ -0,0 +1,72 @@
+package org.fastily.jwiki.metrics;
+
+/**
+ * The connection-level timings of a single HTTP call, as observed by OkHttp. A call which reuses a pooled connection has no DNS, connect or TLS time. All
+ * times are in nanoseconds.
+ *
+ * @author Fastily
+ * @see ConnectionTimer
+ */
+public final class ConnectionEvent {
+    /**
+     * The hostname the call was made to.
+     */
+    public final String hostname;
+
+    /**
+     * The time spent resolving the hostname.
+     */
+    public final long dnsTime;
+
+    /**
+     * The time spent establishing the TCP connection, excluding the TLS handshake.
+     */
+    public final long connectTime;
+
+    /**
+     * The time spent on the TLS handshake.
+     */
+    public final long tlsTime;
+
+    /**
+     * The time from starting to send the request to receiving the first byte of the response headers.
+     */
+    public final long timeToFirstByte;
+
+    /**
+     * Flag indicating if the call used a connection from the connection pool.
+     */
+    public final boolean reused;
+
+    /**
+     * Flag indicating if the call failed with a network error.
+     */
+    public final boolean failed;
+
+    /**
+     * Constructor, creates a new ConnectionEvent.
+     *
+     * @param hostname The hostname the call was made to.
+     * @param dnsTime The time spent resolving the hostname.
+     * @param connectTime The time spent establishing the TCP connection, excluding the TLS handshake.
+     * @param tlsTime The time spent on the TLS handshake.
+     * @param timeToFirstByte The time from starting to send the request to receiving the first byte of the response headers.
+     * @param reused True if the call used a pooled connection.
+     * @param failed True if the call failed with a network error.
+     */
+    public ConnectionEvent(String hostname, long dnsTime, long connectTime, long tlsTime, long timeToFirstByte, boolean reused, boolean failed) {
+        this.hostname = hostname;
+        this.dnsTime = dnsTime;
+        this.connectTime = connectTime;
+        this.tlsTime = tlsTime;
+        this.timeToFirstByte = timeToFirstByte;
+        this.reused = reused;
+        this.failed = failed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%s: dns=%d, connect=%d, tls=%d, ttfb=%d, reused=%b, failed=%b]", hostname, dnsTime, connectTime, tlsTime, timeToFirstByte,
+                reused, failed);
+    }
+}
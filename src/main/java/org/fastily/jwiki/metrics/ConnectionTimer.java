@@ -0,0 +1,138 @@
+package org.fastily.jwiki.metrics;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import org.fastily.jwiki.core.WikiLogger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * An OkHttp EventListener which times the phases of a call (DNS, TCP connect, TLS handshake and time to first byte), notes whether the connection was
+ * reused from the pool, and reports a {@link ConnectionEvent} to a MetricsListener when the call ends. One ConnectionTimer is created per call, by
+ * {@link #factory(Function)}.
+ *
+ * @author Fastily
+ */
+public class ConnectionTimer extends EventListener {
+    /**
+     * The MetricsListener to report to.
+     */
+    private final MetricsListener metrics;
+
+    /**
+     * The start times of the current phases, in nanoseconds.
+     */
+    private long dnsStart, connectStart, tlsStart, requestStart;
+
+    /**
+     * The accumulated time of each phase, in nanoseconds. A call may make several connection attempts.
+     */
+    private long dnsTime, connectTime, tlsTime, timeToFirstByte;
+
+    /**
+     * Flag indicating if this call opened a new connection.
+     */
+    private boolean connected = false;
+
+    /**
+     * Constructor, creates a new ConnectionTimer.
+     *
+     * @param metrics The MetricsListener to report to.
+     */
+    private ConnectionTimer(MetricsListener metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Creates an EventListener.Factory which times each call and reports it to a MetricsListener. {@code metrics} is applied at the start of each call, and
+     * calls for which it returns null are not timed.
+     *
+     * @param metrics Finds the MetricsListener to report a call to, or null.
+     * @return A new EventListener.Factory
+     */
+    public static EventListener.Factory factory(Function<Call, MetricsListener> metrics) {
+        return call -> {
+            MetricsListener m = metrics.apply(call);
+            return m == null ? EventListener.NONE : new ConnectionTimer(m);
+        };
+    }
+
+    @Override
+    public void dnsStart(Call call, String domainName) {
+        dnsStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+        dnsTime += System.nanoTime() - dnsStart;
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+        connected = true;
+        connectStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+        tlsStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+        tlsTime += System.nanoTime() - tlsStart;
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+        connectTime += System.nanoTime() - connectStart;
+    }
+
+    @Override
+    public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol, IOException ioe) {
+        connectTime += System.nanoTime() - connectStart;
+    }
+
+    @Override
+    public void requestHeadersStart(Call call) {
+        requestStart = System.nanoTime();
+    }
+
+    @Override
+    public void responseHeadersStart(Call call) {
+        timeToFirstByte += System.nanoTime() - requestStart;
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        report(call, false);
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+        report(call, true);
+    }
+
+    /**
+     * Reports the timings of a finished call. Errors thrown by the MetricsListener are logged and ignored.
+     *
+     * @param call The call which finished
+     * @param failed True if the call failed with a network error.
+     */
+    private void report(Call call, boolean failed) {
+        try {
+            // connectStart..connectEnd encloses the TLS handshake
+            metrics.onConnection(new ConnectionEvent(call.request().url().host(), dnsTime, Math.max(0, connectTime - tlsTime), tlsTime, timeToFirstByte,
+                    !connected, failed));
+        } catch (RuntimeException e) {
+            WikiLogger.warn(null, "MetricsListener threw an exception", e);
+        }
+    }
+}
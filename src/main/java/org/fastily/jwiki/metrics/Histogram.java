@@ -0,0 +1,194 @@
+package org.fastily.jwiki.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative long values, such as latencies in nanoseconds. Like an HDR histogram, each power of two is split into
+ * {@link #SUB_BUCKETS} linear buckets, so every recorded value is stored with a relative error of at most 1/16 (about 6%) across the whole range of long,
+ * using a fixed amount of memory. Recording is a few atomic increments and never blocks, so it is safe to call from any number of threads.
+ *
+ * @author Fastily
+ */
+public class Histogram {
+    /**
+     * The number of linear buckets in each power of two.
+     */
+    private static final int SUB_BUCKETS = 16;
+
+    /**
+     * log<sub>2</sub> of {@link #SUB_BUCKETS}
+     */
+    private static final int SUB_BITS = 4;
+
+    /**
+     * The total number of buckets, enough to hold any non-negative long.
+     */
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    /**
+     * The number of values in each bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * The number of values recorded.
+     */
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * The sum of the values recorded.
+     */
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * The largest value recorded.
+     */
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     *
+     * @param value The value to record.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Clears all recorded values. Values recorded concurrently with a reset may be partially cleared.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    /**
+     * Takes a snapshot of the values recorded so far.
+     *
+     * @return A Snapshot of this Histogram.
+     */
+    public Snapshot snapshot() {
+        long[] l = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            n += l[i] = counts.get(i);
+
+        return new Snapshot(l, n, sum.sum(), max.get());
+    }
+
+    /**
+     * Finds the bucket of a value.
+     *
+     * @param value The non-negative value to find the bucket of.
+     * @return The index of the bucket of {@code value}.
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + (int) ((value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Finds the largest value which falls in a bucket.
+     *
+     * @param index The index of the bucket
+     * @return The largest value stored in the bucket at {@code index}.
+     */
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+
+        int shift = index / SUB_BUCKETS - 1;
+        return ((SUB_BUCKETS + (long) (index % SUB_BUCKETS) + 1) << shift) - 1;
+    }
+
+    /**
+     * An immutable copy of the values in a Histogram at a point in time.
+     *
+     * @author Fastily
+     */
+    public static final class Snapshot {
+        /**
+         * The number of values in each bucket.
+         */
+        private final long[] counts;
+
+        /**
+         * The number of values recorded.
+         */
+        public final long count;
+
+        /**
+         * The sum of the values recorded.
+         */
+        public final long sum;
+
+        /**
+         * The largest value recorded.
+         */
+        public final long max;
+
+        /**
+         * Constructor, creates a new Snapshot.
+         *
+         * @param counts The number of values in each bucket.
+         * @param count The number of values recorded.
+         * @param sum The sum of the values recorded.
+         * @param max The largest value recorded.
+         */
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * Gets the mean of the values recorded.
+         *
+         * @return The mean, or 0 if no values were recorded.
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Gets the value at a percentile, e.g. 99 for the 99th percentile. The result is the largest value in the bucket containing the percentile, so it
+         * is within about 6% of the exact value.
+         *
+         * @param percentile The percentile, between 0 and 100.
+         * @return The value at {@code percentile}, or 0 if no values were recorded.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0)
+                return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++)
+                if ((seen += counts[i]) >= rank)
+                    return Math.min(highestValueOf(i), max);
+
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[count=%d, mean=%.1f, p50=%d, p90=%d, p99=%d, max=%d]", count, getMean(), getValueAtPercentile(50),
+                    getValueAtPercentile(90), getValueAtPercentile(99), max);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.fastily.jwiki.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events emitted by jwiki. Events are only filled in and committed while a recording with them enabled is running, so they cost next
+ * to nothing otherwise. Record them with e.g. {@code java -XX:StartFlightRecording:filename=bot.jfr ...}, and view them in JDK Mission Control under
+ * the {@code jwiki} category, alongside GC and allocation events.
+ *
+ * @author Fastily
+ */
+public final class JfrEvents {
+    /**
+     * Constructors disallowed
+     */
+    private JfrEvents() {
+
+    }
+
+    /**
+     * An HTTP request to the API, from being sent to receiving the response headers.
+     */
+    @Name("org.fastily.jwiki.Request")
+    @Label("API Request")
+    @Category("jwiki")
+    @Description("An HTTP request to the MediaWiki API")
+    public static final class Request extends Event {
+        /**
+         * The hostname the request was sent to.
+         */
+        @Label("Host")
+        public String host;
+
+        /**
+         * The {@code action} of the request.
+         */
+        @Label("Action")
+        public String action;
+
+        /**
+         * The query modules of the request, or null.
+         */
+        @Label("Module")
+        public String module;
+
+        /**
+         * The HTTP status code of the response.
+         */
+        @Label("Status")
+        public int status;
+
+        /**
+         * The approximate size of the request.
+         */
+        @Label("Bytes Out")
+        @DataAmount
+        public long bytesOut;
+
+        /**
+         * The size of the response body, or -1 if unknown.
+         */
+        @Label("Bytes In")
+        @DataAmount
+        public long bytesIn;
+
+        /**
+         * The time the request waited to be sent.
+         */
+        @Label("Queue Wait")
+        @Timespan
+        public long queueWait;
+    }
+
+    /**
+     * Parsing a response body into JSON.
+     */
+    @Name("org.fastily.jwiki.JsonParse")
+    @Label("JSON Parse")
+    @Category("jwiki")
+    @Description("Parsing an API response into JSON")
+    public static final class JsonParse extends Event {
+        /**
+         * The length of the response body, in chars.
+         */
+        @Label("Length")
+        public long length;
+    }
+
+    /**
+     * Sleeping after the server reported that an action was rate limited.
+     */
+    @Name("org.fastily.jwiki.RateLimitWait")
+    @Label("Rate Limit Wait")
+    @Category("jwiki")
+    @Description("Sleeping after a ratelimited error")
+    public static final class RateLimitWait extends Event {
+        /**
+         * The rate limited action.
+         */
+        @Label("Action")
+        public String action;
+
+        /**
+         * The upper bound of the randomized backoff, in seconds.
+         */
+        @Label("Backoff Limit")
+        public int backoffLimit;
+    }
+
+    /**
+     * Parsing a {@code parsetree} into a WikiText.
+     */
+    @Name("org.fastily.jwiki.WikiTextParse")
+    @Label("WikiText Parse")
+    @Category("jwiki")
+    @Description("Parsing a parse tree into a WikiText")
+    public static final class WikiTextParse extends Event {
+        /**
+         * The length of the parse tree XML, in chars.
+         */
+        @Label("Length")
+        public long length;
+    }
+
+    /**
+     * Uploading one chunk of a file, including retries.
+     */
+    @Name("org.fastily.jwiki.UploadChunk")
+    @Label("Upload Chunk")
+    @Category("jwiki")
+    @Description("Uploading one chunk of a file")
+    public static final class UploadChunk extends Event {
+        /**
+         * The title of the file being uploaded.
+         */
+        @Label("Title")
+        public String title;
+
+        /**
+         * The offset of the chunk in the file.
+         */
+        @Label("Offset")
+        @DataAmount
+        public long offset;
+
+        /**
+         * The size of the chunk.
+         */
+        @Label("Size")
+        @DataAmount
+        public long size;
+
+        /**
+         * The number of attempts made.
+         */
+        @Label("Attempts")
+        public int attempts;
+
+        /**
+         * Flag indicating if the chunk was uploaded.
+         */
+        @Label("Success")
+        public boolean success;
+    }
+}
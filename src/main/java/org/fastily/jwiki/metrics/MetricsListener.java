@@ -0,0 +1,53 @@
+package org.fastily.jwiki.metrics;
+
+/**
+ * Receives measurements of the requests made by a Wiki. Methods are called synchronously by the thread which made the request, possibly by many threads at
+ * once, so implementations must be thread-safe and should return quickly. Exceptions thrown by a listener are logged and otherwise ignored.
+ *
+ * @author Fastily
+ * @see MetricsRegistry
+ */
+public interface MetricsListener {
+    /**
+     * Called when a request to the API has completed and its response has been read.
+     *
+     * @param e The measurements of the request.
+     */
+    void onRequest(RequestEvent e);
+
+    /**
+     * Called when an HTTP call has ended, with its connection-level timings. Does nothing by default.
+     *
+     * @param e The connection-level timings of the call.
+     * @see ConnectionTimer
+     */
+    default void onConnection(ConnectionEvent e) {
+
+    }
+
+    /**
+     * Combines two MetricsListeners into one which reports to both.
+     *
+     * @param a The first MetricsListener. Optional, may be null.
+     * @param b The second MetricsListener. Optional, may be null.
+     * @return A MetricsListener which reports to {@code a} and {@code b}, or the non-null one of them, or null if both are null.
+     */
+    static MetricsListener both(MetricsListener a, MetricsListener b) {
+        if (a == null || b == null)
+            return a == null ? b : a;
+
+        return new MetricsListener() {
+            @Override
+            public void onRequest(RequestEvent e) {
+                a.onRequest(e);
+                b.onRequest(e);
+            }
+
+            @Override
+            public void onConnection(ConnectionEvent e) {
+                a.onConnection(e);
+                b.onConnection(e);
+            }
+        };
+    }
+}
@@ -0,0 +1,271 @@
+package org.fastily.jwiki.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A MetricsListener which aggregates requests by action and module (see {@link RequestEvent#key()}), keeping latency {@link Histogram}s and byte and item
+ * counters for each. Connection-level timings are aggregated separately by hostname; see {@link #hostSnapshot()}. For example, to find slow modules:
+ *
+ * <pre>
+ * MetricsRegistry metrics = new MetricsRegistry();
+ * Wiki wiki = new Wiki.Builder().withMetrics(metrics).build();
+ * ...
+ * metrics.snapshot().forEach((k, v) -&gt; System.out.println(k + " " + v.total));
+ * </pre>
+ *
+ * @author Fastily
+ */
+public class MetricsRegistry implements MetricsListener {
+    /**
+     * The statistics of each group of requests, keyed by {@link RequestEvent#key()}.
+     */
+    private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * The connection-level statistics of each host, keyed by hostname.
+     */
+    private final ConcurrentHashMap<String, HostStats> hostStats = new ConcurrentHashMap<>();
+
+    @Override
+    public void onRequest(RequestEvent e) {
+        Stats s = stats.computeIfAbsent(e.key(), k -> new Stats());
+
+        s.requests.increment();
+        if (e.status >= 400)
+            s.errors.increment();
+
+        s.bytesOut.add(e.bytesOut);
+        if (e.bytesIn > 0)
+            s.bytesIn.add(e.bytesIn);
+        s.items.add(e.items);
+
+        s.total.record(e.totalTime());
+        s.queueWait.record(e.queueWait);
+        s.network.record(e.networkTime);
+        s.parse.record(e.parseTime);
+    }
+
+    @Override
+    public void onConnection(ConnectionEvent e) {
+        HostStats s = hostStats.computeIfAbsent(e.hostname, k -> new HostStats());
+
+        s.calls.increment();
+        if (e.failed)
+            s.failed.increment();
+
+        if (e.reused)
+            s.reused.increment();
+        else {
+            s.dns.record(e.dnsTime);
+            s.connect.record(e.connectTime);
+            s.tls.record(e.tlsTime);
+        }
+
+        s.timeToFirstByte.record(e.timeToFirstByte);
+    }
+
+    /**
+     * Takes a snapshot of the statistics recorded so far.
+     *
+     * @return An immutable Map of statistics, keyed and sorted by {@link RequestEvent#key()}.
+     */
+    public Map<String, Snapshot> snapshot() {
+        Map<String, Snapshot> m = new TreeMap<>();
+        stats.forEach((k, v) -> m.put(k, new Snapshot(v)));
+
+        return Collections.unmodifiableMap(m);
+    }
+
+    /**
+     * Takes a snapshot of the connection-level statistics recorded so far.
+     *
+     * @return An immutable Map of statistics, keyed and sorted by hostname.
+     */
+    public Map<String, HostSnapshot> hostSnapshot() {
+        Map<String, HostSnapshot> m = new TreeMap<>();
+        hostStats.forEach((k, v) -> m.put(k, new HostSnapshot(v)));
+
+        return Collections.unmodifiableMap(m);
+    }
+
+    /**
+     * Clears all recorded statistics.
+     */
+    public void reset() {
+        stats.clear();
+        hostStats.clear();
+    }
+
+    /**
+     * The mutable statistics of a group of requests.
+     */
+    private static class Stats {
+        /**
+         * Counters for this group of requests.
+         */
+        private final LongAdder requests = new LongAdder(), errors = new LongAdder(), bytesIn = new LongAdder(), bytesOut = new LongAdder(),
+                items = new LongAdder();
+
+        /**
+         * Latency histograms for this group of requests.
+         */
+        private final Histogram total = new Histogram(), queueWait = new Histogram(), network = new Histogram(), parse = new Histogram();
+    }
+
+    /**
+     * The mutable connection-level statistics of a host.
+     */
+    private static class HostStats {
+        /**
+         * Counters for this host.
+         */
+        private final LongAdder calls = new LongAdder(), reused = new LongAdder(), failed = new LongAdder();
+
+        /**
+         * Phase histograms for this host. DNS, connect and TLS times are only recorded for new connections.
+         */
+        private final Histogram dns = new Histogram(), connect = new Histogram(), tls = new Histogram(), timeToFirstByte = new Histogram();
+    }
+
+    /**
+     * The statistics of a group of requests at a point in time. All times are in nanoseconds.
+     *
+     * @author Fastily
+     */
+    public static final class Snapshot {
+        /**
+         * The number of requests.
+         */
+        public final long requests;
+
+        /**
+         * The number of requests which returned an HTTP error status.
+         */
+        public final long errors;
+
+        /**
+         * The total size of the responses, in bytes.
+         */
+        public final long bytesIn;
+
+        /**
+         * The approximate total size of the requests, in bytes.
+         */
+        public final long bytesOut;
+
+        /**
+         * The total number of items returned.
+         */
+        public final long items;
+
+        /**
+         * The distribution of the total time taken by each request.
+         */
+        public final Histogram.Snapshot total;
+
+        /**
+         * The distribution of the time each request waited to be sent.
+         */
+        public final Histogram.Snapshot queueWait;
+
+        /**
+         * The distribution of the network time of each request.
+         */
+        public final Histogram.Snapshot network;
+
+        /**
+         * The distribution of the time spent parsing each response.
+         */
+        public final Histogram.Snapshot parse;
+
+        /**
+         * Constructor, creates a new Snapshot.
+         *
+         * @param s The statistics to copy.
+         */
+        private Snapshot(Stats s) {
+            requests = s.requests.sum();
+            errors = s.errors.sum();
+            bytesIn = s.bytesIn.sum();
+            bytesOut = s.bytesOut.sum();
+            items = s.items.sum();
+
+            total = s.total.snapshot();
+            queueWait = s.queueWait.snapshot();
+            network = s.network.snapshot();
+            parse = s.parse.snapshot();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[requests=%d, errors=%d, in=%d, out=%d, items=%d, total=%s]", requests, errors, bytesIn, bytesOut, items, total);
+        }
+    }
+
+    /**
+     * The connection-level statistics of a host at a point in time. All times are in nanoseconds.
+     *
+     * @author Fastily
+     */
+    public static final class HostSnapshot {
+        /**
+         * The number of HTTP calls.
+         */
+        public final long calls;
+
+        /**
+         * The number of calls which used a pooled connection.
+         */
+        public final long reused;
+
+        /**
+         * The number of calls which failed with a network error.
+         */
+        public final long failed;
+
+        /**
+         * The distribution of DNS, TCP connect and TLS handshake times of new connections.
+         */
+        public final Histogram.Snapshot dns, connect, tls;
+
+        /**
+         * The distribution of the time to first byte of each call.
+         */
+        public final Histogram.Snapshot timeToFirstByte;
+
+        /**
+         * Constructor, creates a new HostSnapshot.
+         *
+         * @param s The statistics to copy.
+         */
+        private HostSnapshot(HostStats s) {
+            calls = s.calls.sum();
+            reused = s.reused.sum();
+            failed = s.failed.sum();
+
+            dns = s.dns.snapshot();
+            connect = s.connect.snapshot();
+            tls = s.tls.snapshot();
+            timeToFirstByte = s.timeToFirstByte.snapshot();
+        }
+
+        /**
+         * Gets the fraction of calls which used a pooled connection.
+         *
+         * @return The connection reuse rate, between 0 and 1.
+         */
+        public double getReuseRate() {
+            return calls == 0 ? 0 : (double) reused / calls;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[calls=%d, reuse=%.2f, failed=%d, connect=%s, tls=%s, ttfb=%s]", calls, getReuseRate(), failed, connect, tls,
+                    timeToFirstByte);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.fastily.jwiki.metrics;
+
+/**
+ * The measurements of a single request to the API. All times are in nanoseconds.
+ *
+ * @author Fastily
+ */
+public final class RequestEvent {
+    /**
+     * The hostname the request was sent to.
+     */
+    public final String hostname;
+
+    /**
+     * The {@code action} of the request, e.g. {@code query} or {@code edit}.
+     */
+    public final String action;
+
+    /**
+     * The modules of a {@code query} request, i.e. its {@code list}, {@code prop}, {@code meta} and {@code generator} values (e.g.
+     * {@code categorymembers|revisions}), which match the ids of the QTemplates it was created from. Null for other actions.
+     */
+    public final String module;
+
+    /**
+     * The HTTP status code of the response.
+     */
+    public final int status;
+
+    /**
+     * The approximate size of the request (URL and body), in bytes.
+     */
+    public final long bytesOut;
+
+    /**
+     * The size of the response body, in bytes, or -1 if unknown.
+     */
+    public final long bytesIn;
+
+    /**
+     * The time spent waiting for the request to be allowed to be sent. See {@code RequestScheduler}.
+     */
+    public final long queueWait;
+
+    /**
+     * The time from sending the request to reading the last byte of the response.
+     */
+    public final long networkTime;
+
+    /**
+     * The time spent parsing the response into JSON.
+     */
+    public final long parseTime;
+
+    /**
+     * The number of items (pages, list entries, etc.) in the response.
+     */
+    public final int items;
+
+    /**
+     * Constructor, creates a new RequestEvent.
+     *
+     * @param hostname The hostname the request was sent to.
+     * @param action The {@code action} of the request.
+     * @param module The modules of a {@code query} request, or null.
+     * @param status The HTTP status code of the response.
+     * @param bytesOut The approximate size of the request, in bytes.
+     * @param bytesIn The size of the response body, in bytes, or -1 if unknown.
+     * @param queueWait The time spent waiting for the request to be allowed to be sent.
+     * @param networkTime The time from sending the request to reading the last byte of the response.
+     * @param parseTime The time spent parsing the response.
+     * @param items The number of items in the response.
+     */
+    public RequestEvent(String hostname, String action, String module, int status, long bytesOut, long bytesIn, long queueWait, long networkTime,
+            long parseTime, int items) {
+        this.hostname = hostname;
+        this.action = action;
+        this.module = module;
+        this.status = status;
+        this.bytesOut = bytesOut;
+        this.bytesIn = bytesIn;
+        this.queueWait = queueWait;
+        this.networkTime = networkTime;
+        this.parseTime = parseTime;
+        this.items = items;
+    }
+
+    /**
+     * Gets the key that this request is grouped under in a {@link MetricsRegistry}, i.e. {@code action} or {@code action/module}.
+     *
+     * @return The key of this request.
+     */
+    public String key() {
+        return module == null ? action : action + "/" + module;
+    }
+
+    /**
+     * Gets the total time taken by this request.
+     *
+     * @return The sum of the queue wait, network time, and parse time.
+     */
+    public long totalTime() {
+        return queueWait + networkTime + parseTime;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%s @ %s: status=%d, in=%d, out=%d, queue=%d, network=%d, parse=%d, items=%d]", key(), hostname, status, bytesIn, bytesOut,
+                queueWait, networkTime, parseTime, items);
+    }
+}
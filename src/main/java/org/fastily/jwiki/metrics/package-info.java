@@ -0,0 +1,5 @@
+/**
+ * Instrumentation for requests made by jwiki. Register a {@link org.fastily.jwiki.metrics.MetricsListener} (such as a
+ * {@link org.fastily.jwiki.metrics.MetricsRegistry}) with {@code Wiki.Builder.withMetrics()} to receive timings and sizes for every request.
+ */
+package org.fastily.jwiki.metrics;
@@ -76,6 +76,23 @@ public class GSONP {
         }
     }
 
+    /**
+     * Convert a JsonObject of JsonObject or a JsonArray of JsonObject to a List of JsonObject.
+     *
+     * @param input A JsonObject containing only other JsonObject objects, or a JsonArray of JsonObject.
+     * @return A List of JsonObject derived from {@code input}, or an empty List if {@code input} is null or not a container.
+     */
+    public static List<JsonObject> getAllJO(JsonElement input) {
+        if (input == null)
+            return new ArrayList<>();
+        else if (input.isJsonArray())
+            return getJAofJO(input.getAsJsonArray());
+        else if (input.isJsonObject())
+            return getJOofJO(input.getAsJsonObject());
+
+        return new ArrayList<>();
+    }
+
     /**
      * Get a JsonArray of JsonObject as a List of JsonObject. PRECONDITION: {@code key} points to a JsonArray of
      * JsonObject in {@code input}
@@ -0,0 +1,39 @@
+package org.fastily.jwiki.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the thread pools which run jwiki's parallel queries.
+ *
+ * @author Fastily
+ */
+public final class Workers {
+    /**
+     * Constructors disallowed
+     */
+    private Workers() {
+
+    }
+
+    /**
+     * Creates an ExecutorService which runs up to {@code threads} blocking tasks, such as API requests, at once. Threads are daemon threads, so an
+     * ExecutorService which was not shut down does not keep the JVM alive.
+     *
+     * @param threads The maximum number of tasks to run at once.
+     * @param name The name to prefix each thread's name with.
+     * @return A new ExecutorService.
+     */
+    public static ExecutorService newPool(int threads, String name) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory tf = r -> {
+            Thread t = new Thread(r, String.format("jwiki-%s-%d", name, count.incrementAndGet()));
+            t.setDaemon(true);
+            return t;
+        };
+
+        return Executors.newFixedThreadPool(threads, tf);
+    }
+}
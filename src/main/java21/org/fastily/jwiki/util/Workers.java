@@ -0,0 +1,104 @@
+package org.fastily.jwiki.util;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the thread pools which run jwiki's parallel queries. This is the Java 21 version from the multi-release JAR, which runs each task on its own
+ * virtual thread.
+ *
+ * @author Fastily
+ */
+public final class Workers {
+    /**
+     * Constructors disallowed
+     */
+    private Workers() {
+
+    }
+
+    /**
+     * Creates an ExecutorService which runs up to {@code threads} blocking tasks, such as API requests, at once. Each task runs on a new virtual thread,
+     * and tasks over the limit wait for a permit on their own virtual thread instead of in a queue, so blocking is cheap. Tasks still waiting for a
+     * permit when the ExecutorService is shut down with {@link ExecutorService#shutdownNow()} are dropped.
+     *
+     * @param threads The maximum number of tasks to run at once.
+     * @param name The name to prefix each thread's name with.
+     * @return A new ExecutorService.
+     */
+    public static ExecutorService newPool(int threads, String name) {
+        return new Bounded(Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(String.format("jwiki-%s-", name), 1).factory()), threads);
+    }
+
+    /**
+     * An ExecutorService which limits the number of tasks of another ExecutorService running at once.
+     */
+    private static final class Bounded extends AbstractExecutorService {
+        /**
+         * The ExecutorService which runs the tasks.
+         */
+        private final ExecutorService pool;
+
+        /**
+         * One permit for each task which may run at once.
+         */
+        private final Semaphore permits;
+
+        /**
+         * Constructor, creates a new Bounded ExecutorService.
+         *
+         * @param pool The ExecutorService which runs the tasks.
+         * @param threads The maximum number of tasks to run at once.
+         */
+        private Bounded(ExecutorService pool, int threads) {
+            this.pool = pool;
+            this.permits = new Semaphore(threads);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            pool.execute(() -> {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    return; // interrupted by shutdownNow() while waiting, so drop the task
+                }
+
+                try {
+                    command.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            pool.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return pool.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return pool.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return pool.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return pool.awaitTermination(timeout, unit);
+        }
+    }
+}
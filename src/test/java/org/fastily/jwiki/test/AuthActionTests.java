@@ -1,9 +1,37 @@
 package org.fastily.jwiki.test;
 
+import com.google.gson.JsonObject;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.fastily.jwiki.core.AdaptiveLimiter;
+import org.fastily.jwiki.core.CrossWikiQuery;
+import org.fastily.jwiki.core.MQuery;
+import org.fastily.jwiki.core.NS;
+import org.fastily.jwiki.core.WQuery;
 import org.fastily.jwiki.core.Wiki;
+import org.fastily.jwiki.util.MultiMap;
+import org.fastily.jwiki.util.Tuple;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
@@ -16,12 +44,9 @@ class AuthActionTests extends BaseMockTemplate {
      * Initializes a logged-in Wiki.
      */
     protected void initWiki() {
-        addResponse("mockTokenNotLoggedIn");
+        addResponse("mockSiteInfoLogin");
         addResponse("mockLoginSuccess");
         addResponse("mockUserInfo");
-        addResponse("mockTokenLoggedIn");
-        addResponse("mockListSingleUserRights");
-        addResponse("mockNSInfo");
 
         wiki = new Wiki.Builder().withApiEndpoint(server.url("/w/api.php")).withLogin("Test", "password").build();
     }
@@ -51,4 +76,149 @@ class AuthActionTests extends BaseMockTemplate {
         addResponse("mockUndeleteSuccess");
         assertTrue(wiki.undelete("Test", "test").isSuccess());
     }
-}
\ No newline at end of file
+
+    /**
+     * Test restoring a logged-in Wiki from a session snapshot without making any requests.
+     *
+     * @param dir A temporary directory to write the session snapshot to.
+     * @throws IOException If the directory could not be read.
+     */
+    @Test
+    public void testRestoreSession(@TempDir Path dir) throws IOException {
+        Path session = dir.resolve("session.json");
+        assertTrue(wiki.saveSession(session));
+        assertTrue(wiki.saveSession(session));
+
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(List.of(session), files.collect(Collectors.toList()));
+        }
+        if (dir.getFileSystem().supportedFileAttributeViews().contains("posix"))
+            assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(session));
+
+        int requestCount = server.getRequestCount();
+        Wiki restored = new Wiki.Builder().withApiEndpoint(server.url("/w/api.php")).withLogin("Test", "password").withSessionFile(session).build();
+
+        assertEquals(requestCount, server.getRequestCount());
+        assertEquals("Test", restored.whoami());
+        assertEquals(wiki.getConfig().getToken(), restored.getConfig().getToken());
+        assertEquals("File:Test.jpg", restored.convertIfNotInNS("Test.jpg", NS.FILE));
+
+        addResponse("mockDeleteSuccess");
+        assertTrue(restored.delete("Test", "Test Reason").isSuccess());
+    }
+
+    /**
+     * Test that cross-wiki Wiki objects are cached and not bootstrapped until they are used.
+     */
+    @Test
+    public void testGetWikiIsLazy() {
+        int requestCount = server.getRequestCount();
+        Wiki other = wiki.getWiki("test2.example.org");
+
+        assertNotNull(other);
+        assertSame(other, wiki.getWiki("test2.example.org"));
+        assertEquals(requestCount, server.getRequestCount());
+    }
+
+    /**
+     * Test that registering a Wiki and its children with JMX does not keep them from being garbage collected.
+     *
+     * @throws InterruptedException If interrupted while waiting for the garbage collector.
+     */
+    @Test
+    public void testJmxUnregistersCollected() throws InterruptedException {
+        addResponse("mockSiteInfoLogin");
+        addResponse("mockLoginSuccess");
+        addResponse("mockUserInfo");
+
+        Wiki w = new Wiki.Builder().withApiEndpoint(server.url("/w/api.php")).withLogin("Test", "password").withJmx(true).build();
+        ObjectName parent = w.getStats().getObjectName(), child = w.getWiki("test2.example.org").getStats().getObjectName();
+
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(mbs.isRegistered(parent));
+        assertTrue(mbs.isRegistered(child));
+
+        w = null;
+        for (int i = 0; i < 100 && (mbs.isRegistered(parent) || mbs.isRegistered(child)); i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+
+        assertFalse(mbs.isRegistered(parent));
+        assertFalse(mbs.isRegistered(child));
+    }
+
+    /**
+     * Test a cross-wiki prop query, where titles are grouped by the raised group size of a user with {@code apihighlimits}.
+     */
+    @Test
+    public void testCrossWikiProp() {
+        addResponse("mockPageCategories");
+
+        String domain = server.url("/").host();
+        List<String> titles = IntStream.range(0, 60).mapToObj(i -> i == 0 ? "Foobar" : "Page " + i).collect(Collectors.toList());
+        int requestCount = server.getRequestCount();
+        List<Tuple<String, MultiMap<String, JsonObject>>> l = CrossWikiQuery.getProp(wiki, Map.of(domain, titles), WQuery.PAGECATEGORIES)
+                .collect(Collectors.toList());
+
+        assertEquals(requestCount + 1, server.getRequestCount());
+
+        assertEquals(1, l.size());
+        assertEquals(domain, l.get(0).x);
+        assertEquals(2, l.get(0).y.get("Foobar").size());
+        assertEquals("Category:Foo", l.get(0).y.get("Foobar").get(0).get("title").getAsString());
+    }
+
+    /**
+     * Test that closing the Stream of a cross-wiki query aborts the request in flight and stops the query from making more requests.
+     *
+     * @throws InterruptedException If interrupted while waiting for the request.
+     */
+    @Test
+    public void testCrossWikiClose() throws InterruptedException {
+        String domain = server.url("/").host();
+        AdaptiveLimiter limiter = wiki.getWiki(domain).getApiClient().getLimiter();
+        int requestCount = server.getRequestCount();
+
+        server.enqueue(new MockResponse().setHeadersDelay(2, TimeUnit.SECONDS).setBody(readResponse("mockPageCategories")));
+        Stream<Tuple<String, Boolean>> s = CrossWikiQuery.run(wiki, List.of(domain), w -> {
+            MQuery.exists(w, List.of("Foobar"));
+            return MQuery.exists(w, List.of("Foobar")).get("Foobar");
+        });
+
+        for (int i = 0; i < 100 && server.getRequestCount() == requestCount; i++)
+            Thread.sleep(10);
+        s.close();
+
+        // returned before the response arrived
+        for (int i = 0; i < 100 && limiter.getInFlight() > 0; i++)
+            Thread.sleep(10);
+        assertEquals(0, limiter.getInFlight());
+
+        Thread.sleep(500);
+        assertEquals(requestCount + 1, server.getRequestCount());
+    }
+
+    /**
+     * Test that limits are raised for users with {@code apihighlimits}, and that title lists too long for a URL are sent with {@code POST}.
+     *
+     * @throws InterruptedException If interrupted while waiting for a recorded request.
+     */
+    @Test
+    public void testHighLimits() throws InterruptedException {
+        assertEquals(5000, wiki.getConfig().getMaxResultLimit());
+        assertEquals(500, wiki.getConfig().getMaxGroupQuery());
+
+        while (server.takeRequest(1, TimeUnit.MILLISECONDS) != null)
+            ; // discard requests made by earlier tests
+
+        int requestCount = server.getRequestCount();
+        addResponse("mockPageCategories");
+        MQuery.exists(wiki, IntStream.range(0, 500).mapToObj(i -> "A rather long title for page number " + i).collect(Collectors.toList()));
+
+        RecordedRequest r = server.takeRequest();
+        assertEquals("POST", r.getMethod());
+        assertTrue(r.getBody().readUtf8().contains("titles="));
+        assertEquals(requestCount + 1, server.getRequestCount());
+    }
+}
@@ -1,7 +1,11 @@
 package org.fastily.jwiki.test;
 
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.QueueDispatcher;
+import okhttp3.mockwebserver.RecordedRequest;
 import org.fastily.jwiki.core.Wiki;
 import org.fastily.jwiki.core.WikiLogger;
 import org.junit.jupiter.api.AfterAll;
@@ -13,6 +17,7 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.function.Function;
 
 import static org.junit.jupiter.api.Assertions.fail;
 
@@ -32,6 +37,11 @@ public class BaseMockTemplate {
      */
     protected Wiki wiki;
 
+    /**
+     * Flag indicating if this test replaced the {@code server}'s queue with {@link #dispatch(Function)}.
+     */
+    private boolean dispatching;
+
     /**
      * Initializes mock server
      *
@@ -70,6 +80,8 @@ public class BaseMockTemplate {
     @AfterEach
     void tearDown() {
         wiki = null;
+        if (dispatching)
+            server.setDispatcher(new QueueDispatcher());
     }
 
     /**
@@ -78,12 +90,37 @@ public class BaseMockTemplate {
      * @param fn The text file, without a {@code .txt} extension, to load a response from.
      */
     protected void addResponse(String fn) {
+        server.enqueue(new MockResponse().setBody(readResponse(fn)));
+    }
+
+    /**
+     * Answers each request to the {@code server} with a response chosen from its URL, instead of from the queue. Use this when requests are made
+     * concurrently, so the order in which they arrive is not known. The queue is restored after each test.
+     *
+     * @param route Gets the text file, without a {@code .json} extension, to respond to a request URL with.
+     */
+    protected void dispatch(Function<HttpUrl, String> route) {
+        dispatching = true;
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest r) {
+                return new MockResponse().setBody(readResponse(route.apply(r.getRequestUrl())));
+            }
+        });
+    }
+
+    /**
+     * Reads the body of a mock response.
+     *
+     * @param fn The text file, without a {@code .json} extension, to load a response from.
+     * @return The body of the response.
+     */
+    protected String readResponse(String fn) {
         try {
-            server.enqueue(new MockResponse()
-                    .setBody(String.join("\n", Files.readAllLines(Paths.get(getClass().getResource(fn + ".json").toURI())))));
+            return String.join("\n", Files.readAllLines(Paths.get(getClass().getResource(fn + ".json").toURI())));
         } catch (URISyntaxException | IOException e) {
             WikiLogger.error(wiki, "Error during mock generation response", e);
-            fail(e);
+            return fail(e);
         }
     }
 
@@ -92,7 +129,7 @@ public class BaseMockTemplate {
      * initialization behavior.
      */
     protected void initWiki() {
-        addResponse("mockNSInfo");
+        addResponse("mockSiteInfo");
         wiki = new Wiki.Builder().withApiEndpoint(server.url("/w/api.php")).build();
     }
 }
\ No newline at end of file
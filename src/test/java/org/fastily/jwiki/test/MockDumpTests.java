@@ -0,0 +1,154 @@
+package org.fastily.jwiki.test;
+
+import org.fastily.jwiki.core.DumpReader;
+import org.fastily.jwiki.dwrap.DumpRevision;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests reading of XML dumps.
+ *
+ * @author Fastily
+ */
+class MockDumpTests {
+    /**
+     * Gets the path to the mock dump.
+     *
+     * @return The path to the mock dump.
+     * @throws URISyntaxException If the path could not be resolved.
+     */
+    private Path mockDump() throws URISyntaxException {
+        return Paths.get(getClass().getResource("mockDump.xml").toURI());
+    }
+
+    /**
+     * Tests reading every revision of a dump.
+     *
+     * @throws Exception On error.
+     */
+    @Test
+    void testReadDump() throws Exception {
+        List<DumpRevision> l;
+        try (DumpReader r = DumpReader.open(mockDump())) {
+            l = r.stream().collect(Collectors.toList());
+        }
+
+        assertEquals(3, l.size());
+
+        assertEquals("Foo & Bar", l.get(0).title);
+        assertEquals(0, l.get(0).ns);
+        assertEquals(10, l.get(0).pageid);
+        assertEquals(100, l.get(0).revid);
+        assertEquals(0, l.get(0).parentid);
+        assertEquals("Alice", l.get(0).user);
+        assertEquals("create", l.get(0).summary);
+        assertEquals(Instant.parse("2019-01-01T00:00:00Z"), l.get(0).timestamp);
+        assertEquals("Hello <b>world</b>", l.get(0).text);
+        assertEquals("abc", l.get(0).sha1);
+        assertFalse(l.get(0).minor);
+        assertNull(l.get(0).redirect);
+
+        assertEquals("Foo & Bar", l.get(1).title);
+        assertEquals(100, l.get(1).parentid);
+        assertEquals("127.0.0.1", l.get(1).user);
+        assertNull(l.get(1).summary);
+        assertNull(l.get(1).sha1);
+        assertTrue(l.get(1).minor);
+
+        assertEquals("Template:Baz", l.get(2).title);
+        assertEquals(10, l.get(2).ns);
+        assertEquals(20, l.get(2).pageid);
+        assertEquals("Template:Qux", l.get(2).redirect);
+        assertNull(l.get(2).user);
+    }
+
+    /**
+     * Tests reading gzip compressed dumps, and rejecting other compressed formats.
+     *
+     * @param dir A temporary directory to write the compressed dump to.
+     * @throws Exception On error.
+     */
+    @Test
+    void testCompressedDump(@TempDir Path dir) throws Exception {
+        Path gz = dir.resolve("dump.xml.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gz))) {
+            Files.copy(mockDump(), out);
+        }
+
+        try (DumpReader r = DumpReader.open(gz)) {
+            assertEquals(List.of(100L, 101L, 200L), r.stream().map(rev -> rev.revid).collect(Collectors.toList()));
+        }
+
+        assertThrows(IOException.class, () -> new DumpReader(new ByteArrayInputStream("BZh91AY&SY".getBytes(StandardCharsets.US_ASCII))));
+    }
+
+    /**
+     * Tests reading a dump which is split into several blocks in parallel.
+     *
+     * @param dir A temporary directory to write the dump to.
+     * @throws Exception On error.
+     */
+    @Test
+    void testReadParallel(@TempDir Path dir) throws Exception {
+        int pages = 40000;
+        String text = "x".repeat(300);
+
+        Path dump = dir.resolve("dump.xml");
+        try (Writer w = Files.newBufferedWriter(dump)) {
+            w.write("<mediawiki>\n  <siteinfo><sitename>Test</sitename></siteinfo>\n");
+            for (int i = 1; i <= pages; i++)
+                w.write(String.format("  <page>\n    <title>Page %d</title>\n    <ns>0</ns>\n    <id>%d</id>\n    <revision>\n      <id>%d</id>\n"
+                        + "      <timestamp>2020-01-01T00:00:00Z</timestamp>\n      <text xml:space=\"preserve\">%s</text>\n    </revision>\n  </page>\n",
+                        i, i, i, text));
+            w.write("</mediawiki>\n");
+        }
+        assertTrue(Files.size(dump) > 8 << 20);
+
+        Set<Long> seen = ConcurrentHashMap.newKeySet();
+        DumpReader.readParallel(dump, rev -> {
+            assertEquals("Page " + rev.pageid, rev.title);
+            assertEquals(text, rev.text);
+            seen.add(rev.revid);
+        });
+
+        assertEquals(pages, seen.size());
+    }
+
+    /**
+     * Tests reading a dump in parallel whose header is longer than a block, and a dump without any pages.
+     *
+     * @throws Exception On error.
+     */
+    @Test
+    void testReadParallelLongHeader() throws Exception {
+        String header = "<mediawiki>\n  <siteinfo><sitename>Test</sitename><!--" + "x".repeat(10 << 20) + "--></siteinfo>\n";
+        String page = "  <page>\n    <title>Foo</title>\n    <ns>0</ns>\n    <id>1</id>\n    <revision>\n      <id>2</id>\n"
+                + "      <timestamp>2020-01-01T00:00:00Z</timestamp>\n      <text xml:space=\"preserve\">Hello</text>\n    </revision>\n  </page>\n";
+
+        List<String> titles = new ArrayList<>();
+        DumpReader.readParallel(new ByteArrayInputStream((header + page + "</mediawiki>\n").getBytes(StandardCharsets.UTF_8)), 2,
+                rev -> titles.add(rev.title));
+        assertEquals(List.of("Foo"), titles);
+
+        DumpReader.readParallel(new ByteArrayInputStream((header + "</mediawiki>\n").getBytes(StandardCharsets.UTF_8)), 2, rev -> fail("No pages"));
+    }
+}
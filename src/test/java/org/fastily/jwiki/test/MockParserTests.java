@@ -0,0 +1,190 @@
+package org.fastily.jwiki.test;
+
+import org.fastily.jwiki.core.WParser;
+import org.fastily.jwiki.core.WParser.WTemplate;
+import org.fastily.jwiki.core.WParser.WikiText;
+import org.fastily.jwiki.util.Tuple;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Differential tests for the local wikitext parser, against parse trees recorded from the server.
+ *
+ * @author Fastily
+ */
+class MockParserTests extends BaseMockTemplate {
+    /**
+     * Asserts that two WikiText objects have the same text and templates, recursively.
+     *
+     * @param expected The expected WikiText
+     * @param actual The WikiText to check
+     */
+    private static void assertSameTree(WikiText expected, WikiText actual) {
+        assertEquals(expected.toString(false), actual.toString(false));
+
+        List<WTemplate> e = expected.getTemplates(), a = actual.getTemplates();
+        assertEquals(e.size(), a.size());
+        for (int i = 0; i < e.size(); i++) {
+            assertEquals(e.get(i).title, a.get(i).title);
+            assertEquals(e.get(i).keySet(), a.get(i).keySet());
+            for (String k : e.get(i).keySet())
+                assertSameTree(e.get(i).get(k), a.get(i).get(k));
+        }
+    }
+
+    /**
+     * Parses wikitext both locally and with a recorded parse tree, and checks that the results are the same.
+     *
+     * @param text The wikitext to parse
+     * @param fixture The recorded response to {@code action=parse&prop=parsetree} for {@code text}.
+     * @return The locally parsed WikiText
+     */
+    private WikiText assertParsesLikeServer(String text, String fixture) {
+        addResponse(fixture);
+        WikiText remote = WParser.parseText(wiki, text), local = WParser.parseLocal(text);
+
+        assertNotNull(remote);
+        assertSameTree(remote, local);
+        return local;
+    }
+
+    /**
+     * Tests templates, parameters, comments, links and extension tags.
+     */
+    @Test
+    void testTemplates() {
+        String text = "Intro {{Foo|a|b=c|{{Bar|x=1}}}} text<!-- note -->\n{{ Baz <!-- c --> | key = value [[Link|label]] | 2 = <nowiki>{{not}}</nowiki> }}\n"
+                + "<ref name=\"r\">{{Cite|url=http://x}}</ref><references />";
+        WikiText wt = assertParsesLikeServer(text, "mockParseTree1");
+
+        assertTrue(wt.toString().endsWith("<ref name=\"r\">{{Cite|url=http://x}}</ref><references />"));
+
+        List<WTemplate> l = wt.getTemplatesR();
+        assertEquals(List.of("Bar", "Foo", "Baz"), List.of(l.get(0).title, l.get(1).title, l.get(2).title));
+        assertEquals("value [[Link|label]]", l.get(2).get("key").toString());
+    }
+
+    /**
+     * Tests headings, template arguments, unbalanced braces, {@code includeonly}/{@code noinclude}, and comments on their own line.
+     */
+    @Test
+    void testHeadingsAndBraces() {
+        WikiText wt = assertParsesLikeServer("== {{Heading}} ==\n{{{1|{{Default}}}}}\n{{{{{Nested}}}}}\n"
+                + "<includeonly>{{Hidden}}</includeonly><noinclude>{{Shown}}</noinclude>\n<!-- line comment -->\n{{Open|a=\n=b=\n}}\n{{Open|a", "mockParseTree2");
+
+        assertEquals(List.of("Heading", "", "Shown", "Open"), wt.getTemplates().stream().map(t -> t.title).collect(Collectors.toList()));
+        assertTrue(wt.toString().contains("{{{1|{{Default}}}}}"));
+        assertTrue(wt.toString().endsWith("{{Open|a"));
+    }
+
+    /**
+     * Tests pipes in links, equals signs in values, stray braces, and unclosed tags.
+     */
+    @Test
+    void testEdgeCases() {
+        WikiText wt = assertParsesLikeServer("{{A|[[File:X.png|thumb|{{B|1}}]]|k={{C}}=d}}{{{{D}}}}<nowiki>unclosed {{E}} x<y</br>", "mockParseTree3");
+
+        WTemplate a = wt.getTemplates().get(0);
+        assertEquals(2, a.keySet().size());
+        assertEquals("{{C}}=d", a.get("k").toString());
+        assertEquals("B", a.get("1").getTemplates().get(0).title);
+    }
+
+    /**
+     * Tests fetching and parsing the text of several pages at once.
+     */
+    @Test
+    void testParsePages() {
+        addResponse("mockPageTextBatch");
+
+        List<Tuple<String, WikiText>> l;
+        try (Stream<Tuple<String, WikiText>> s = WParser.parsePages(wiki, List.of("Foo", "Bar"), 2)) {
+            l = s.collect(Collectors.toList());
+        }
+
+        assertEquals(List.of("Foo", "Bar"), l.stream().map(t -> t.x).collect(Collectors.toList()));
+
+        WTemplate t = l.get(0).y.getTemplates().get(0);
+        assertEquals("Infobox person", t.title);
+        assertEquals("Foo", t.get("name").toString());
+        assertEquals("Stub", l.get(0).y.getTemplates().get(1).title);
+        assertTrue(l.get(1).y.getTemplates().isEmpty());
+    }
+
+    /**
+     * Tests that a page whose title is normalized by the server is parsed and returned once, under the title it was requested with.
+     */
+    @Test
+    void testParsePagesNormalized() {
+        addResponse("mockPageTextNormalized");
+
+        List<Tuple<String, WikiText>> l;
+        try (Stream<Tuple<String, WikiText>> s = WParser.parsePages(wiki, List.of("foo", "Bar"), 1)) {
+            l = s.collect(Collectors.toList());
+        }
+
+        assertEquals(List.of("foo", "Bar"), l.stream().map(t -> t.x).collect(Collectors.toList()));
+        assertEquals("Stub", l.get(0).y.getTemplates().get(0).title);
+        assertEquals("Hello", l.get(1).y.toString());
+    }
+
+    /**
+     * Tests that a batch of pages which could not be fetched is reported instead of being skipped.
+     */
+    @Test
+    void testParsePagesFailure() {
+        addResponse("mockPageTextMalformed");
+
+        try (Stream<Tuple<String, WikiText>> s = WParser.parsePages(wiki, List.of("Foo"), 1)) {
+            assertThrows(IllegalStateException.class, () -> s.collect(Collectors.toList()));
+        }
+    }
+
+    /**
+     * Tests finding templates by title, as the tree is modified.
+     */
+    @Test
+    void testTemplateIndex() {
+        WikiText wt = WParser.parseLocal("{{Foo|a={{Bar}}|b={{foo_bar|{{Bar}}}}}}{{ bar }}");
+
+        assertEquals(3, wt.getTemplatesR("bar").size());
+        assertEquals(1, wt.getTemplatesR("Foo  bar").size());
+        assertTrue(wt.getTemplatesR("Baz").isEmpty());
+
+        WTemplate foo = wt.getTemplatesR("Foo").get(0);
+        assertEquals(1, foo.get("b").getTemplatesR("Bar").size());
+
+        foo.remove("b");
+        assertEquals(2, wt.getTemplatesR("Bar").size());
+        assertTrue(wt.getTemplatesR("Foo bar").isEmpty());
+
+        WTemplate baz = new WTemplate();
+        baz.title = "Baz";
+        baz.put("1", new WikiText("x", new WTemplate()));
+        foo.put("a", baz);
+        assertEquals(1, wt.getTemplatesR("Bar").size());
+        assertEquals(List.of(baz), wt.getTemplatesR("baz"));
+        assertEquals(1, wt.getTemplatesR("").size());
+
+        foo.remap("a", "c");
+        assertEquals(List.of(baz), wt.getTemplatesR("Baz"));
+        foo.remap("a", "b");
+        assertEquals(Set.of("c"), foo.keySet());
+
+        baz.setTitle("Qux");
+        assertTrue(wt.getTemplatesR("Baz").isEmpty());
+        assertEquals(List.of(baz), wt.getTemplatesR("Qux"));
+        assertEquals("{{Foo|c={{Qux|1=x{{}}}}}}{{bar}}", wt.toString());
+
+        foo.drop();
+        assertTrue(wt.getTemplatesR("Qux").isEmpty());
+        assertTrue(wt.getTemplatesR("").isEmpty());
+        assertEquals(wt.getTemplatesR(), wt.getTemplatesR("Bar"));
+    }
+}
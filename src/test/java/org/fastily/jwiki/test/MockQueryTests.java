@@ -1,15 +1,53 @@
 package org.fastily.jwiki.test;
 
+import com.google.gson.JsonObject;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.fastily.jwiki.core.AdaptiveLimiter;
+import org.fastily.jwiki.core.GQuery;
+import org.fastily.jwiki.core.MQuery;
 import org.fastily.jwiki.core.NS;
+import org.fastily.jwiki.core.PQuery;
+import org.fastily.jwiki.core.QueryPublisher;
+import org.fastily.jwiki.core.RequestScheduler;
+import org.fastily.jwiki.core.RequestScheduler.Priority;
+import org.fastily.jwiki.core.WQuery;
+import org.fastily.jwiki.core.WikiStats;
+import org.fastily.jwiki.core.Wiki;
 import org.fastily.jwiki.dwrap.LogEntry;
 import org.fastily.jwiki.dwrap.ProtectedTitleEntry;
 import org.fastily.jwiki.dwrap.RCEntry;
+import org.fastily.jwiki.metrics.Histogram;
+import org.fastily.jwiki.metrics.MetricsRegistry;
+import org.fastily.jwiki.util.MultiMap;
 import org.fastily.jwiki.util.Tuple;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -223,4 +261,663 @@ class MockQueryTests extends BaseMockTemplate {
         assertTrue(l.contains("File:TestTest.jpg"));
     }
 
-}
\ No newline at end of file
+    /**
+     * Tests fetching page text with a generator, where the text of some pages is only returned by a continuation query, and the generator then
+     * continues with a new batch of pages.
+     *
+     * @throws InterruptedException If interrupted while waiting for a recorded request.
+     */
+    @Test
+    void testGeneratorPageText() throws InterruptedException {
+        while (server.takeRequest(1, TimeUnit.MILLISECONDS) != null)
+            ; // discard requests made by earlier tests
+
+        addResponse("mockGeneratorText1");
+        addResponse("mockGeneratorText2");
+        addResponse("mockGeneratorText3");
+
+        Map<String, String> m = GQuery.getPageText(wiki, WQuery.CATEGORYMEMBERS, Map.of("cmtitle", "Category:Example"));
+
+        assertEquals(3, m.size());
+        assertEquals("Hello, World!", m.get("Foo"));
+        assertEquals("Goodbye!", m.get("Bar"));
+        assertEquals("Hello again!", m.get("Baz"));
+
+        RecordedRequest r = server.takeRequest();
+        assertNull(r.getRequestUrl().queryParameter("rvcontinue"));
+        assertNull(r.getRequestUrl().queryParameter("gcmcontinue"));
+
+        r = server.takeRequest();
+        assertEquals("2|456", r.getRequestUrl().queryParameter("rvcontinue"));
+        assertEquals("gcmcontinue||", r.getRequestUrl().queryParameter("continue"));
+        assertNull(r.getRequestUrl().queryParameter("gcmcontinue"));
+
+        // the props of the previous batch are complete, so their continuation must not be sent with the next batch
+        r = server.takeRequest();
+        assertNull(r.getRequestUrl().queryParameter("rvcontinue"));
+        assertEquals("page|42415a|3", r.getRequestUrl().queryParameter("gcmcontinue"));
+        assertEquals("Category:Example", r.getRequestUrl().queryParameter("gcmtitle"));
+
+        assertNull(server.takeRequest(1, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Tests that a generator query which fails after retrying throws, instead of passing its incomplete batch on as if the query was complete.
+     */
+    @Test
+    void testGeneratorFailure() {
+        addResponse("mockGeneratorText1");
+        for (int i = 0; i <= WQuery.DEFAULT_RETRIES; i++)
+            server.enqueue(new MockResponse().setResponseCode(503));
+
+        List<String> titles = new ArrayList<>();
+        assertThrows(IllegalStateException.class, () -> GQuery.forEachPage(wiki, WQuery.CATEGORYMEMBERS, Map.of("cmtitle", "Category:Example"),
+                jo -> titles.add(jo.get("title").getAsString()), WQuery.PAGETEXT));
+        assertTrue(titles.isEmpty());
+    }
+
+    /**
+     * Tests fetching several page properties at once, where one module continues after the other is exhausted.
+     */
+    @Test
+    void testGetProps() {
+        addResponse("mockMultiProp1");
+        addResponse("mockMultiProp2");
+
+        MultiMap<String, JsonObject> m = MQuery.getProps(wiki, List.of("Foo"), WQuery.PAGECATEGORIES, WQuery.LINKSONPAGE).get("Foo");
+
+        assertEquals(1, m.get("categories").size());
+        assertEquals(2, m.get("links").size());
+        assertEquals("Baz", m.get("links").get(1).get("title").getAsString());
+    }
+
+    /**
+     * Tests that fetching several page properties throws if a continuation fails after retrying, instead of returning the properties fetched so far.
+     */
+    @Test
+    void testGetPropsFailure() {
+        addResponse("mockMultiProp1");
+        for (int i = 0; i <= WQuery.DEFAULT_RETRIES; i++)
+            server.enqueue(new MockResponse().setResponseCode(503));
+
+        assertThrows(IllegalStateException.class, () -> MQuery.getProps(wiki, List.of("Foo"), WQuery.PAGECATEGORIES, WQuery.LINKSONPAGE));
+    }
+
+    /**
+     * Tests fetching page text when the server cuts a batch off and returns the rest of the content in a continuation.
+     *
+     * @throws InterruptedException If interrupted while waiting for a recorded request.
+     */
+    @Test
+    void testPageTextContinue() throws InterruptedException {
+        while (server.takeRequest(1, TimeUnit.MILLISECONDS) != null)
+            ; // discard requests made so far
+
+        addResponse("mockPageTextCont1");
+        addResponse("mockPageTextCont2");
+        Map<String, String> m = MQuery.getPageText(wiki, List.of("Foo", "Bar"));
+
+        assertEquals(Map.of("Foo", "Hello, World!", "Bar", "Hello again!"), m);
+        assertNull(server.takeRequest().getRequestUrl().queryParameter("rvcontinue"));
+        assertEquals("2|457", server.takeRequest().getRequestUrl().queryParameter("rvcontinue"));
+    }
+
+    /**
+     * Tests bootstrapping and fetching page text with {@code formatversion=2}, where pages are returned as an array.
+     *
+     * @throws InterruptedException If interrupted while waiting for a recorded request.
+     */
+    @Test
+    void testFormatVersion2() throws InterruptedException {
+        addResponse("mockSiteInfoFv2");
+        Wiki fv2 = new Wiki.Builder().withApiEndpoint(server.url("/w/api.php")).withFormatVersion2(true).build();
+
+        assertEquals("<Anonymous>", fv2.whoami());
+        assertEquals("File:Test.jpg", fv2.convertIfNotInNS("Test.jpg", NS.FILE));
+
+        addResponse("mockPageTextFv2");
+        Map<String, String> m = MQuery.getPageText(fv2, List.of("Foo", "Bar"));
+
+        assertEquals("Hello, World!", m.get("Foo"));
+        assertEquals("", m.get("Bar"));
+
+        RecordedRequest last = null;
+        for (RecordedRequest r; (r = server.takeRequest(1, TimeUnit.MILLISECONDS)) != null; )
+            last = r;
+
+        assertNotNull(last);
+        assertEquals("2", last.getRequestUrl().queryParameter("formatversion"));
+    }
+
+    /**
+     * Tests that field projection replaces the default {@code *prop} parameter of a query.
+     *
+     * @throws InterruptedException If interrupted while waiting for a recorded request.
+     */
+    @Test
+    void testProjection() throws InterruptedException {
+        while (server.takeRequest(1, TimeUnit.MILLISECONDS) != null)
+            ; // discard requests made by earlier tests
+
+        addResponse("mockRecentChanges");
+        new WQuery(wiki, WQuery.RECENTCHANGES).project("title", "timestamp").next();
+
+        assertEquals("title|timestamp", server.takeRequest().getRequestUrl().queryParameter("rcprop"));
+        assertThrows(IllegalArgumentException.class, () -> new WQuery(wiki, WQuery.PAGECATEGORIES).project(WQuery.PAGECATEGORIES, "title"));
+    }
+
+    /**
+     * Tests a partitioned all pages fetch, where the range boundary is chosen from a sample of random pages.
+     */
+    @Test
+    void testPartitionedAllPages() {
+        List<HttpUrl> requests = Collections.synchronizedList(new ArrayList<>());
+        dispatch(u -> {
+            requests.add(u);
+            if ("random".equals(u.queryParameter("list")))
+                return "mockRandom";
+
+            return u.queryParameter("apto") != null ? "mockAllPagesLow" : u.queryParameter("apcontinue") == null ? "mockAllPagesHigh1" : "mockAllPagesHigh2";
+        });
+
+        List<String> l;
+        try (Stream<String> s = PQuery.allPages(wiki, NS.MAIN, 2, true)) {
+            l = s.collect(Collectors.toList());
+        }
+
+        // the boundary is the middle of the sorted sample, and is only returned by the range starting at it
+        assertEquals(List.of("Alpha", "Beta", "Karigane Junichi", "Mango", "Zebra"), l);
+
+        List<String> ranges = requests.stream().filter(u -> "allpages".equals(u.queryParameter("list")))
+                .map(u -> u.queryParameter("apfrom") + "/" + u.queryParameter("apto") + "/" + u.queryParameter("apcontinue")).sorted()
+                .collect(Collectors.toList());
+        assertEquals(List.of("Karigane Junichi/null/Zebra", "Karigane Junichi/null/null", "null/Karigane Junichi/null"), ranges);
+    }
+
+    /**
+     * Tests that a partitioned fetch reports a partition which could not be fetched, instead of ending early.
+     */
+    @Test
+    void testPartitionedAllPagesFailure() {
+        dispatch(u -> "random".equals(u.queryParameter("list")) ? "mockRandom" : u.queryParameter("apto") != null ? "mockAllPagesLow" : "mockAllPagesMalformed");
+
+        assertThrows(IllegalStateException.class, () -> {
+            try (Stream<String> s = PQuery.allPages(wiki, NS.MAIN, 2, false)) {
+                s.forEach(t -> {
+                });
+            }
+        });
+    }
+
+    /**
+     * Tests that a partitioned fetch only fetches a few replies ahead of the caller, and stops when its Stream is closed.
+     *
+     * @throws InterruptedException If interrupted while waiting for the fetching threads.
+     */
+    @Test
+    void testPartitionedAllPagesClose() throws InterruptedException {
+        AtomicInteger fetched = new AtomicInteger();
+        dispatch(u -> {
+            if ("random".equals(u.queryParameter("list")))
+                return "mockRandom";
+            else if (u.queryParameter("apto") != null)
+                return "mockAllPagesLow";
+
+            fetched.incrementAndGet();
+            return "mockAllPagesHigh1"; // never ends
+        });
+
+        try (Stream<String> s = PQuery.allPages(wiki, NS.MAIN, 2, true)) {
+            assertEquals("Alpha", s.iterator().next());
+
+            Thread.sleep(500);
+            assertTrue(fetched.get() <= PQuery.BUFFERED_REPLIES + 1);
+        }
+
+        for (int i = 0; i < 100 && partitionThreads() > 0; i++)
+            Thread.sleep(20);
+        assertEquals(0, partitionThreads());
+    }
+
+    /**
+     * Counts the live threads which fetch partitioned queries.
+     *
+     * @return The number of threads fetching partitioned queries.
+     */
+    private static long partitionThreads() {
+        return Thread.getAllStackTraces().keySet().stream().filter(t -> t.getName().startsWith("jwiki-partition-")).count();
+    }
+
+    /**
+     * Tests a time-partitioned recent changes fetch, where adjacent windows must not overlap and the newest window is returned first.
+     */
+    @Test
+    void testPartitionedRecentChanges() {
+        Map<String, String> windows = new ConcurrentHashMap<>();
+        dispatch(u -> {
+            windows.put(u.queryParameter("rcstart"), u.queryParameter("rcend"));
+            return u.queryParameter("rcstart").equals("2017-12-31T00:00:09Z") ? "mockRecentChangesNew" : "mockRecentChangesOld";
+        });
+
+        Instant start = Instant.parse("2017-12-31T00:00:00Z"), end = Instant.parse("2017-12-31T00:00:09Z");
+        List<String> l;
+        try (Stream<RCEntry> s = PQuery.recentChanges(wiki, start, end, 2)) {
+            l = s.map(e -> e.title).collect(Collectors.toList());
+        }
+
+        assertEquals(List.of("Title3", "Title2", "Title1"), l);
+        assertEquals(Map.of("2017-12-31T00:00:09Z", "2017-12-31T00:00:05Z", "2017-12-31T00:00:04Z", "2017-12-31T00:00:00Z"), windows);
+
+        // a window which could not be fetched is reported, instead of ending early
+        dispatch(u -> u.queryParameter("rcstart").equals("2017-12-31T00:00:09Z") ? "mockRecentChangesNew" : "mockRecentChangesMalformed");
+        assertThrows(IllegalStateException.class, () -> {
+            try (Stream<RCEntry> s = PQuery.recentChanges(wiki, start, end, 2)) {
+                s.forEach(e -> {
+                });
+            }
+        });
+    }
+
+    /**
+     * Tests that a query is retried after a server error.
+     */
+    @Test
+    void testQueryRetry() {
+        server.enqueue(new MockResponse().setResponseCode(503).setBody("<html>Service Unavailable</html>"));
+        addResponse("mockAllPages");
+
+        WQuery wq = new WQuery(wiki, WQuery.ALLPAGES).setRetries(2, Duration.ofMillis(1));
+
+        assertEquals(3, wq.next().listComp("allpages").size());
+        assertFalse(wq.hasFailed());
+    }
+
+    /**
+     * Tests resuming a query from a checkpoint file.
+     *
+     * @param dir A temporary directory to write the checkpoint file to.
+     * @throws InterruptedException If interrupted while waiting for a recorded request.
+     */
+    @Test
+    void testQueryCheckpoint(@TempDir Path dir) throws InterruptedException {
+        Path checkpoint = dir.resolve("random.json");
+
+        addResponse("mockRandom");
+        WQuery wq = new WQuery(wiki, WQuery.RANDOM).checkpoint(checkpoint);
+        wq.next();
+        assertTrue(wq.has());
+
+        while (server.takeRequest(1, TimeUnit.MILLISECONDS) != null)
+            ; // discard requests made so far
+
+        // the reply was not processed yet, so it is fetched again
+        addResponse("mockRandom");
+        new WQuery(wiki, WQuery.RANDOM).checkpoint(checkpoint).next();
+        assertNull(server.takeRequest().getRequestUrl().queryParameter("rncontinue"));
+
+        assertTrue(wq.commit());
+        addResponse("mockRandom");
+        new WQuery(wiki, WQuery.RANDOM).checkpoint(checkpoint).next();
+        assertEquals("0.674224663894|0.674225086928|46611783|0", server.takeRequest().getRequestUrl().queryParameter("rncontinue"));
+
+        addResponse("mockRandom");
+        new WQuery(wiki, WQuery.RANDOM).set("rnnamespace", "6").checkpoint(checkpoint).next();
+        assertNull(server.takeRequest().getRequestUrl().queryParameter("rncontinue"));
+    }
+
+    /**
+     * Tests that the concurrency limit grows after successful responses and is halved when the server reports {@code maxlag}.
+     */
+    @Test
+    void testAdaptiveLimiter() {
+        AdaptiveLimiter limiter = wiki.getApiClient().getLimiter();
+        int before = limiter.getLimit();
+
+        server.enqueue(new MockResponse().setHeader("MediaWiki-API-Error", "maxlag").setBody("{\"error\":{\"code\":\"maxlag\"}}"));
+        new WQuery(wiki, WQuery.ALLPAGES).setRetries(0, Duration.ZERO).next();
+
+        assertEquals(Math.max(1, before / 2), limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    /**
+     * Tests that the concurrency limit only grows with successful responses, however long they take, and only shrinks when the server is overloaded.
+     */
+    @Test
+    void testAdaptiveLimiterAimd() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(2, 4);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(false);
+        }
+        assertEquals(4, limiter.getLimit());
+
+        assertTrue(limiter.tryAcquire());
+        limiter.release(true);
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    /**
+     * Tests that a cancelled request releases its slot without lowering the concurrency limit.
+     *
+     * @throws InterruptedException If interrupted while waiting for the request.
+     */
+    @Test
+    void testAdaptiveLimiterCancel() throws InterruptedException {
+        AdaptiveLimiter limiter = wiki.getApiClient().getLimiter();
+        int before = limiter.getLimit();
+
+        int requestCount = server.getRequestCount();
+        server.enqueue(new MockResponse().setHeadersDelay(2, TimeUnit.SECONDS).setBody("{}"));
+        WQuery wq = new WQuery(wiki, WQuery.ALLPAGES).setRetries(0, Duration.ZERO);
+        Thread t = new Thread(wq::next);
+        t.start();
+
+        // wait for the server to take the response, so that it is not left for the next test
+        for (int i = 0; i < 100 && server.getRequestCount() == requestCount; i++)
+            Thread.sleep(10);
+        wq.cancel();
+        t.join(1000);
+
+        // returned before the response arrived
+        assertFalse(t.isAlive());
+        assertEquals(before, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    /**
+     * Tests that a request holds its slot until its response body has been read, not just until the headers arrive.
+     *
+     * @throws InterruptedException If interrupted while waiting for the request.
+     */
+    @Test
+    void testAdaptiveLimiterBody() throws InterruptedException {
+        AdaptiveLimiter limiter = wiki.getApiClient().getLimiter();
+        int requestCount = server.getRequestCount();
+
+        server.enqueue(new MockResponse().setBodyDelay(1, TimeUnit.SECONDS).setBody(readResponse("mockRandom")));
+        Thread t = new Thread(() -> new WQuery(wiki, WQuery.RANDOM).next());
+        t.start();
+
+        for (int i = 0; i < 100 && server.getRequestCount() == requestCount; i++)
+            Thread.sleep(10);
+        Thread.sleep(300); // the headers were sent, the body was not
+
+        assertEquals(1, limiter.getInFlight());
+        t.join(5000);
+        assertFalse(t.isAlive());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    /**
+     * Tests that waiting requests are served by priority, and that requests made through a Wiki release their slot.
+     */
+    @Test
+    void testRequestScheduler() throws Throwable {
+        RequestScheduler rs = new RequestScheduler(1, 10);
+        AdaptiveLimiter limiter = new AdaptiveLimiter(16, 16);
+        List<Priority> order = Collections.synchronizedList(new ArrayList<>());
+
+        rs.acquire(wiki, limiter);
+
+        List<Thread> tl = new ArrayList<>();
+        for (Priority p : List.of(Priority.BULK, Priority.NORMAL, Priority.INTERACTIVE)) {
+            Thread t = new Thread(() -> RequestScheduler.withPriority(p, () -> {
+                try {
+                    rs.acquire(wiki, limiter);
+                    order.add(p);
+                    rs.release(limiter, false);
+                } catch (Throwable e) {
+                    throw new IllegalStateException(e);
+                }
+                return null;
+            }));
+            tl.add(t);
+            t.start();
+
+            while (rs.getQueued() < tl.size())
+                Thread.sleep(1);
+        }
+
+        rs.release(limiter, false);
+        for (Thread t : tl)
+            t.join();
+
+        assertEquals(List.of(Priority.INTERACTIVE, Priority.NORMAL, Priority.BULK), order);
+        assertEquals(0, rs.getInFlight());
+        assertEquals(0, rs.getQueued());
+
+        addResponse("mockRandom");
+        assertFalse(RequestScheduler.withPriority(Priority.BULK, () -> new WQuery(wiki, WQuery.RANDOM).next().listComp("random")).isEmpty());
+        assertEquals(Priority.NORMAL, RequestScheduler.currentPriority());
+        assertEquals(0, wiki.getScheduler().getInFlight());
+    }
+
+    /**
+     * Tests that requests are measured per action and module, that connection reuse is measured per host, and that histogram percentiles are accurate.
+     */
+    @Test
+    void testMetrics() {
+        Histogram h = new Histogram();
+        for (int i = 1; i <= 1000; i++)
+            h.record(i * 1000L);
+
+        Histogram.Snapshot hs = h.snapshot();
+        assertEquals(1000, hs.count);
+        assertEquals(1000000, hs.max);
+        assertEquals(500000, hs.getValueAtPercentile(50), 500000 / 16.0);
+        assertEquals(990000, hs.getValueAtPercentile(99), 990000 / 16.0);
+
+        MetricsRegistry metrics = new MetricsRegistry();
+        addResponse("mockSiteInfo");
+        Wiki w = new Wiki.Builder().withApiEndpoint(server.url("/w/api.php")).withMetrics(metrics).build();
+
+        addResponse("mockRandom");
+        int n = new WQuery(w, WQuery.RANDOM).next().listComp("random").size();
+
+        Map<String, MetricsRegistry.Snapshot> snap = metrics.snapshot();
+        assertEquals(Set.of("query/random", "query/siteinfo|userinfo|tokens"), snap.keySet());
+
+        MetricsRegistry.Snapshot rs = snap.get("query/random");
+        assertEquals(1, rs.requests);
+        assertEquals(0, rs.errors);
+        assertEquals(n, rs.items);
+        assertTrue(rs.bytesIn > 0 && rs.bytesOut > 0);
+        assertEquals(1, rs.total.count);
+
+        // the second call reuses the connection opened by the first
+        MetricsRegistry.HostSnapshot hs2 = metrics.hostSnapshot().get(server.getHostName());
+        assertEquals(2, hs2.calls);
+        assertEquals(1, hs2.reused);
+        assertEquals(0, hs2.failed);
+        assertEquals(1, hs2.connect.count);
+        assertEquals(2, hs2.timeToFirstByte.count);
+    }
+
+    /**
+     * Tests that requests and response parsing are recorded as Java Flight Recorder events.
+     */
+    @Test
+    void testJfrEvents(@TempDir Path dir) throws Throwable {
+        Path out = dir.resolve("test.jfr");
+        try (Recording rec = new Recording()) {
+            rec.enable("org.fastily.jwiki.Request").withoutThreshold();
+            rec.enable("org.fastily.jwiki.JsonParse").withoutThreshold();
+            rec.start();
+
+            addResponse("mockRandom");
+            new WQuery(wiki, WQuery.RANDOM).next();
+
+            rec.stop();
+            rec.dump(out);
+        }
+
+        List<RecordedEvent> l = RecordingFile.readAllEvents(out);
+        RecordedEvent req = l.stream().filter(e -> e.getEventType().getName().equals("org.fastily.jwiki.Request")).findFirst().orElseThrow();
+        assertEquals("query", req.getString("action"));
+        assertEquals("random", req.getString("module"));
+        assertEquals(200, req.getInt("status"));
+        assertTrue(req.getLong("bytesIn") > 0);
+
+        assertTrue(l.stream().anyMatch(e -> e.getEventType().getName().equals("org.fastily.jwiki.JsonParse") && e.getLong("length") > 0));
+    }
+
+    /**
+     * Tests that a Wiki's statistics can be read and tuned over JMX.
+     */
+    @Test
+    void testJmx() throws Throwable {
+        addResponse("mockSiteInfo");
+        Wiki w = new Wiki.Builder().withApiEndpoint(server.url("/w/api.php")).withJmx(true).build();
+        WikiStats stats = w.getStats();
+
+        addResponse("mockRandom");
+        new WQuery(w, WQuery.RANDOM).next();
+
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(mbs.isRegistered(stats.getObjectName()));
+        assertEquals(2L, mbs.getAttribute(stats.getObjectName(), "Requests"));
+        assertEquals(0, mbs.getAttribute(stats.getObjectName(), "InFlight"));
+        assertTrue((Long) mbs.getAttribute(stats.getObjectName(), "BytesIn") > 0);
+        assertEquals(0.5, (Double) mbs.getAttribute(stats.getObjectName(), "ConnectionReuseRatio"), 0.001);
+
+        mbs.setAttribute(stats.getObjectName(), new Attribute("MaxConcurrency", 3));
+        assertEquals(3, w.getApiClient().getLimiter().getMaxLimit());
+
+        mbs.invoke(stats.getObjectName(), "resetCounters", null, null);
+        assertEquals(0, stats.getRequests());
+
+        stats.unregister();
+        assertFalse(mbs.isRegistered(stats.getObjectName()));
+    }
+
+    /**
+     * Tests that a QueryPublisher only queries for more results when the subscriber has demand, and stops when the subscription is cancelled.
+     *
+     * @throws InterruptedException If interrupted while waiting for a recorded request.
+     */
+    @Test
+    void testQueryPublisher() throws InterruptedException {
+        while (server.takeRequest(1, TimeUnit.MILLISECONDS) != null)
+            ; // discard requests made so far
+
+        List<String> items = new ArrayList<>();
+        List<Flow.Subscription> subscription = new ArrayList<>();
+        Flow.Subscriber<String> subscriber = new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription.add(s);
+            }
+
+            @Override
+            public void onNext(String item) {
+                items.add(item);
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                fail(e);
+            }
+
+            @Override
+            public void onComplete() {
+                fail("The query should not be exhausted");
+            }
+        };
+
+        QueryPublisher<String> p = new QueryPublisher<>(List.of(new WQuery(wiki, WQuery.RANDOM)).iterator(),
+                r -> r.listComp("random").stream().map(jo -> jo.get("title").getAsString()).collect(Collectors.toList()), Runnable::run);
+        p.subscribe(subscriber);
+        assertNull(server.takeRequest(1, TimeUnit.MILLISECONDS));
+
+        addResponse("mockRandom");
+        subscription.get(0).request(2);
+        assertEquals(List.of("File:Immortals Logo.svg", "Karigane Junichi"), items);
+        assertNotNull(server.takeRequest(1, TimeUnit.MILLISECONDS));
+
+        subscription.get(0).request(1); // served from the first reply
+        assertEquals(3, items.size());
+        assertNull(server.takeRequest(1, TimeUnit.MILLISECONDS));
+
+        addResponse("mockRandom");
+        subscription.get(0).request(1);
+        assertEquals(4, items.size());
+        assertEquals("0.674224663894|0.674225086928|46611783|0", server.takeRequest().getRequestUrl().queryParameter("rncontinue"));
+
+        subscription.get(0).cancel();
+        subscription.get(0).request(5);
+        assertEquals(4, items.size());
+        assertNull(server.takeRequest(1, TimeUnit.MILLISECONDS));
+
+        // a QueryPublisher may only be subscribed to once
+        List<Throwable> errors = new ArrayList<>();
+        p.subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+
+            }
+
+            @Override
+            public void onNext(String item) {
+
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                errors.add(e);
+            }
+
+            @Override
+            public void onComplete() {
+
+            }
+        });
+        assertTrue(errors.get(0) instanceof IllegalStateException);
+    }
+
+    /**
+     * Tests that a QueryPublisher signals a non-positive request as an error from its worker thread, and ignores requests after a terminal signal.
+     *
+     * @throws InterruptedException If interrupted while waiting for the error.
+     */
+    @Test
+    void testQueryPublisherTerminated() throws InterruptedException {
+        BlockingQueue<Throwable> errors = new LinkedBlockingQueue<>();
+        List<Flow.Subscription> subscription = new ArrayList<>();
+        List<String> threads = new ArrayList<>();
+
+        QueryPublisher.of(new WQuery(wiki, WQuery.RANDOM), r -> List.of("")).subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription.add(s);
+            }
+
+            @Override
+            public void onNext(String item) {
+                fail("No items were requested");
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                threads.add(Thread.currentThread().getName());
+                errors.add(e);
+            }
+
+            @Override
+            public void onComplete() {
+                fail("The query was not run");
+            }
+        });
+
+        subscription.get(0).request(0);
+        assertTrue(errors.poll(5, TimeUnit.SECONDS) instanceof IllegalArgumentException);
+        assertTrue(threads.get(0).startsWith("jwiki-publisher-"));
+
+        // the dedicated thread was shut down, so these must not be scheduled on it
+        subscription.get(0).request(1);
+        subscription.get(0).request(-1);
+        subscription.get(0).cancel();
+        assertNull(errors.poll(100, TimeUnit.MILLISECONDS));
+    }
+}